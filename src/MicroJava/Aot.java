@@ -0,0 +1,188 @@
+// MicroJava Ahead-of-Time Compiler
+// ---------------------------------
+// Syntax: java MicroJava.Aot fileName [-d directory] [-jar jarName]
+//=============================================================================
+package MicroJava;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.jar.*;
+
+public class Aot {
+
+	// Runs the translated program in class c. Called by its main method.
+	public static void execute(int dataSize, int startPC, Class<?> c) {
+		Run.dataSize = dataSize;
+		Run.console = System.out;
+		Run.setOffHeap(false, null);	// compiled code indexes Run.heap
+		try {
+			Run.initMemory();
+		} catch (IOException e) {
+			System.out.println("-- cannot allocate the heap: " + e.getMessage());
+			return;
+		}
+		Gc.localTop = 0;	// all frames are in compiled code
+		Run.out = new Output(1 << 16);
+		Run.in = Input.stdin();
+		Run.in.prompt = Run.out;
+		long startTime = System.currentTimeMillis();
+		boolean[] corrupted = new boolean[1];
+		try {
+			Run.onLargeStack(() -> {	// the frames of the program are Java frames
+				try {
+					c.getMethod("m" + startPC).invoke(null);
+				} catch (InvocationTargetException e) {
+					Throwable t = e.getCause();
+					if (t instanceof VMError) {
+						Jit.locate((VMError) t);
+						Run.exception(" at address " + (Run.pc-1) + ": " + t.getMessage());
+					} else if (t instanceof StackOverflowError) {
+						Jit.locate(t);
+						Run.exception(" at address " + (Run.pc-1) + ": method stack overflow");
+					} else {
+						throw new RuntimeException(t);
+					}
+				} catch (ReflectiveOperationException e) {
+					corrupted[0] = true;
+				}
+			});
+		} finally {
+			Run.out.close();
+		}
+		if (corrupted[0]) {
+			System.out.println("-- corrupted class " + c.getName());
+			return;
+		}
+		System.out.print("\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms");
+	}
+
+	// Derives a class name from the name of the object file
+	static String className(String fileName) {
+		String name = new File(fileName).getName();
+		if (name.endsWith(".obj")) name = name.substring(0, name.length() - 4);
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			b.append(Character.isJavaIdentifierPart(ch) ? ch : '_');
+		}
+		if (b.length() == 0 || !Character.isJavaIdentifierStart(b.charAt(0))) b.insert(0, 'P');
+		return b.toString();
+	}
+
+	static void writeClass(File dir, String name, byte[] b) throws IOException {
+		OutputStream out = new FileOutputStream(new File(dir, name + ".class"));
+		try {
+			out.write(b);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeJar(String jarName, String name, byte[] b) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, name);
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jarName), manifest);
+		try {
+			out.putNextEntry(new JarEntry(name + ".class"));
+			out.write(b);
+			out.closeEntry();
+			addRuntime(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Copies the classes of package MicroJava from where this class was loaded
+	static void addRuntime(JarOutputStream out) throws IOException {
+		File src;
+		try {
+			src = new File(Aot.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("cannot locate the MicroJava classes");
+		}
+		if (src.isDirectory()) {
+			File[] files = new File(src, "MicroJava").listFiles();
+			if (files == null) throw new IOException("cannot locate the MicroJava classes");
+			for (int i = 0; i < files.length; i++) {
+				if (!files[i].getName().endsWith(".class")) continue;
+				InputStream in = new FileInputStream(files[i]);
+				try {
+					copy(in, out, "MicroJava/" + files[i].getName());
+				} finally {
+					in.close();
+				}
+			}
+		} else {
+			JarFile jar = new JarFile(src);
+			try {
+				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+					JarEntry entry = e.nextElement();
+					if (!entry.getName().startsWith("MicroJava/") || !entry.getName().endsWith(".class")) continue;
+					InputStream in = jar.getInputStream(entry);
+					try {
+						copy(in, out, entry.getName());
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				jar.close();
+			}
+		}
+	}
+
+	static void copy(InputStream in, JarOutputStream out, String name) throws IOException {
+		byte[] buf = new byte[4096];
+		out.putNextEntry(new JarEntry(name));
+		for (int n = in.read(buf); n > 0; n = in.read(buf)) out.write(buf, 0, n);
+		out.closeEntry();
+	}
+
+	public static void main(String[] arg) {
+		String fileName = null, jarName = null;
+		File dir = new File(".");
+		for (int i = 0; i < arg.length; i++) {
+			if (arg[i].equals("-d") && i + 1 < arg.length) dir = new File(arg[++i]);
+			else if (arg[i].equals("-jar") && i + 1 < arg.length) jarName = arg[++i];
+			else fileName = arg[i];
+		}
+		if (fileName == null) {
+			System.out.println("Syntax: java MicroJava.Aot filename [-d directory] [-jar jarName]");
+			return;
+		}
+		try {
+			Run.reg = null;
+			Run.load(fileName);
+		} catch (FileNotFoundException e) {
+			System.out.println("-- file " + fileName + " not found");
+			return;
+		} catch (IOException e) {
+			System.out.println("-- error reading file " + fileName);
+			return;
+		} catch (FormatException e) {
+			System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+			return;
+		}
+		if (Run.reg != null) {
+			System.out.println("-- " + fileName + " holds register code, which cannot be translated");
+			return;
+		}
+		if (Run.legacy) {
+			System.out.println("-- " + fileName + " is from an older compiler, which cannot be translated; compile it again");
+			return;
+		}
+		String name = className(fileName);
+		try {
+			byte[] b = new Jit(Run.code, new Predecoder(Run.code), Run.startPC).program(name, Run.dataSize);
+			if (jarName != null) writeJar(jarName, name, b);
+			else writeClass(dir, name, b);
+		} catch (FormatException e) {
+			System.out.println("-- cannot translate " + fileName + ": " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("-- error writing " + (jarName != null ? jarName : name + ".class") + ": " + e.getMessage());
+		}
+	}
+}
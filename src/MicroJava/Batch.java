@@ -0,0 +1,220 @@
+/* MicroJava Batch Runner
+ *
+ * Runs one program once per input file (Run -batch): the program is loaded
+ * once into an Engine, and the runs are tasks of a fork-join pool with a
+ * machine per worker. The outputs go to one file per input or, in the order
+ * of the inputs, each after a line "=== index input result". With -workers,
+ * the runs go to worker JVMs instead (see Coordinator).
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+final class Batch {
+
+    private static final String[] result = {"completed", "stopped", "rejected"}; // see Execution
+
+    static void main(String[] arg) {
+        String fileName = null, inputs = null, outDir = null, outName = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int workers = 0, shard = 0, retries = 2;
+        String jvm = "";
+        List<String> options = new ArrayList<String>();
+        for (int i = 0; i < arg.length; i++) {
+            if (arg[i].equals("-batch") && i + 1 < arg.length) inputs = arg[++i];
+            else if (arg[i].equals("-outdir") && i + 1 < arg.length) outDir = arg[++i];
+            else if (arg[i].equals("-out") && i + 1 < arg.length) outName = arg[++i];
+            else if (arg[i].equals("-threads") && i + 1 < arg.length) {
+                try {
+                    threads = Integer.parseInt(arg[++i]);
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+            }
+            else if ((arg[i].equals("-workers") || arg[i].equals("-shard") || arg[i].equals("-retries")) && i + 1 < arg.length) {
+                int n;
+                try {
+                    n = Integer.parseInt(arg[i + 1]);
+                } catch (NumberFormatException e) {
+                    n = -1;
+                }
+                if (arg[i].equals("-workers")) workers = n; else if (arg[i].equals("-shard")) shard = n; else retries = n;
+                if (n < 0) threads = 0; // wrong syntax
+                i++;
+            }
+            else if (arg[i].equals("-jvm") && i + 1 < arg.length) jvm = arg[++i];
+            else if (arg[i].equals("-debug") || arg[i].equals("-trace") || arg[i].equals("-pc")
+                    || arg[i].equals("-method") || arg[i].equals("-first") || arg[i].equals("-mapheap")
+                    || arg[i].equals("-snapshot")) {
+                System.out.println("-- " + arg[i] + " cannot be used with -batch, the runs would share one file");
+                return;
+            }
+            else if (arg[i].startsWith("-")) {
+                options.add(arg[i]);
+                if (Run.takesValue(arg[i]) && i + 1 < arg.length) options.add(arg[++i]);
+            }
+            else fileName = arg[i];
+        }
+        if (fileName == null || inputs == null || threads < 1 || (outDir != null && outName != null)) {
+            System.out.println("Syntax: java MicroJava.Run filename -batch inputs [-outdir dir] [-out file] [-threads n] [-workers n [-shard k] [-retries r] [-jvm options]] [options]");
+            return;
+        }
+        File[] files;
+        try {
+            files = inputFiles(inputs);
+        } catch (IOException e) {
+            System.out.println("-- cannot read input list " + inputs);
+            return;
+        }
+        Engine engine = new Engine(threads); // a machine per worker
+        Program p;
+        try {
+            p = engine.load(fileName);
+        } catch (NoSuchFileException e) {
+            System.out.println("-- file " + fileName + " not found");
+            return;
+        } catch (IOException e) {
+            System.out.println("-- " + e.getMessage());
+            return;
+        }
+        String[] opts = options.toArray(new String[options.size()]);
+        long startTime = System.currentTimeMillis();
+        if (workers > 0) {
+            Coordinator c = new Coordinator(fileName, opts, files, outDir, workers, shard, retries, jvm);
+            try {
+                OutputStream out = outDir != null ? null : outName == null ? System.out : new FileOutputStream(outName);
+                try {
+                    c.run(out);
+                } finally {
+                    if (out != null && out != System.out) out.close(); else System.out.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("-- batch: " + e.getMessage());
+                return;
+            }
+            int[] count = c.count;
+            System.out.print("\n-- batch: " + files.length + " runs, " + count[Execution.stopped] + " stopped, "
+                    + count[Execution.rejected] + " rejected, " + count[Coordinator.lost] + " lost, "
+                    + c.crashes + " workers died");
+            System.out.print("\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms");
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            int[] count = new int[result.length];
+            if (outDir != null) {
+                List<ForkJoinTask<Integer>> runs = new ArrayList<ForkJoinTask<Integer>>();
+                for (int i = 0; i < files.length; i++) {
+                    File in = files[i], out = new File(outDir, files[i].getName() + ".out");
+                    runs.add(pool.submit(() -> runToFile(engine, p, in, out, opts)));
+                }
+                for (int i = 0; i < runs.size(); i++) count[runs.get(i).join()]++;
+            } else {
+                List<ForkJoinTask<Outcome>> runs = new ArrayList<ForkJoinTask<Outcome>>();
+                for (int i = 0; i < files.length; i++) {
+                    int index = i;
+                    runs.add(pool.submit(() -> runToBuffer(engine, p, index, files[index], opts)));
+                }
+                OutputStream out = outName == null ? System.out : new FileOutputStream(outName);
+                try {
+                    for (int i = 0; i < runs.size(); i++) { // in input order, as the runs finish
+                        Outcome r = runs.get(i).join();
+                        out.write(r.text);
+                        count[r.result]++;
+                    }
+                } finally {
+                    if (out != System.out) out.close(); else out.flush();
+                }
+            }
+            System.out.print("\n-- batch: " + files.length + " runs, " + count[Execution.stopped] + " stopped, "
+                    + count[Execution.rejected] + " rejected");
+            System.out.print("\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms");
+        } catch (IOException e) {
+            System.out.println("-- error writing " + outName + ": " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // The files of directory name, or the files listed in file name
+    private static File[] inputFiles(String name) throws IOException {
+        File f = new File(name);
+        if (f.isDirectory()) {
+            File[] files = f.listFiles(File::isFile);
+            if (files == null) throw new IOException(name);
+            Arrays.sort(files);
+            return files;
+        }
+        List<File> files = new ArrayList<File>();
+        for (String line : Files.readAllLines(f.toPath())) {
+            line = line.trim();
+            if (line.length() > 0) files.add(new File(line));
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    static int runToFile(Engine engine, Program p, File in, File out, String[] opts) throws IOException {
+        InputStream input;
+        try {
+            input = new FileInputStream(in);
+        } catch (FileNotFoundException e) {
+            System.out.println("-- file " + in + " not found");
+            return Execution.rejected;
+        }
+        try {
+            OutputStream output;
+            try {
+                output = new BufferedOutputStream(new FileOutputStream(out));
+            } catch (FileNotFoundException e) {
+                System.out.println("-- cannot write output file " + out);
+                return Execution.rejected;
+            }
+            try {
+                return engine.execution(p, input, output, opts).run();
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    // The output of a run after its header line
+    static Outcome runToBuffer(Engine engine, Program p, int index, File in, String[] opts) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int res;
+        try {
+            InputStream input = new FileInputStream(in);
+            try {
+                res = engine.execution(p, input, output, opts).run();
+            } finally {
+                input.close();
+            }
+        } catch (FileNotFoundException e) {
+            output.write(("-- file " + in + " not found").getBytes());
+            res = Execution.rejected;
+        }
+        ByteArrayOutputStream text = new ByteArrayOutputStream(output.size() + 64);
+        text.write(("=== " + index + " " + in.getPath() + " " + result[res] + "\n").getBytes());
+        output.writeTo(text);
+        text.write('\n');
+        return new Outcome(text.toByteArray(), res);
+    }
+
+    static final class Outcome {
+        final byte[] text;
+        final int result;
+
+        Outcome(byte[] text, int result) {
+            this.text = text;
+            this.result = result;
+        }
+    }
+}
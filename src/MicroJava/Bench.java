@@ -0,0 +1,66 @@
+/* MicroJava Interpreter Benchmark
+ *
+ * Runs an object file repeatedly in one JVM with several configurations of
+ * Run and prints the best and the median time of a run for each of them.
+ */
+package MicroJava;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+public class Bench {
+
+    static final int warmup = 3; // untimed runs per configuration
+
+    private static final String[] defaults = {"-classic", "default", "-nofuse", "-tos", "-unchecked"};
+
+    // Runs fileName with the options in config and returns the time in ns
+    static long time(String fileName, String config) {
+        String[] opts = config.equals("default") ? new String[0] : config.split(",");
+        String[] arg = new String[opts.length + 1];
+        arg[0] = fileName;
+        System.arraycopy(opts, 0, arg, 1, opts.length);
+        long start = System.nanoTime();
+        Run.main(arg);
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        String fileName = null;
+        int runs = 10;
+        String[] configs = new String[args.length];
+        int nConfigs = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) runs = Integer.parseInt(args[++i]);
+            else if (fileName == null) fileName = args[i];
+            else configs[nConfigs++] = args[i];
+        }
+        if (fileName == null || runs < 1) {
+            System.out.println("use: java MicroJava.Bench <file.obj> [-n runs] [config ...]");
+            return;
+        }
+        if (nConfigs == 0) {
+            configs = defaults;
+            nConfigs = defaults.length;
+        }
+        PrintStream out = System.out;
+        PrintStream none = new PrintStream(new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        });
+        out.println("config                   best ms  median ms");
+        for (int c = 0; c < nConfigs; c++) {
+            long[] t = new long[runs];
+            System.setOut(none);
+            try {
+                for (int i = 0; i < warmup; i++) time(fileName, configs[c]);
+                for (int i = 0; i < runs; i++) t[i] = time(fileName, configs[c]);
+            } finally {
+                System.setOut(out);
+            }
+            Arrays.sort(t);
+            out.printf("%-22s %9.1f %10.1f%n", configs[c], t[0] / 1e6, t[runs / 2] / 1e6);
+        }
+    }
+}
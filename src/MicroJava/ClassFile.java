@@ -0,0 +1,255 @@
+/* MicroJava Class File Writer
+ *
+ * Builds the class files of Jit and Aot in memory. They have version 49,
+ * which the JVM verifies without stack map frames.
+ */
+package MicroJava;
+
+import java.util.HashMap;
+
+class ClassFile {
+
+    static final int // access flags
+            ACC_PUBLIC   = 0x0001,
+            ACC_STATIC   = 0x0008,
+            ACC_SUPER    = 0x0020;
+
+    static final int // JVM instruction codes
+            iconst_0     = 0x03,
+            bipush       = 0x10,
+            sipush       = 0x11,
+            ldc_w        = 0x13,
+            iload        = 0x15,
+            aload        = 0x19,
+            aload_0      = 0x2a,
+            aload_1      = 0x2b,
+            iaload       = 0x2e,
+            istore       = 0x36,
+            astore       = 0x3a,
+            pop          = 0x57,
+            dup          = 0x59,
+            iadd         = 0x60,
+            isub         = 0x64,
+            imul         = 0x68,
+            ineg         = 0x74,
+            ishl         = 0x78,
+            ishr         = 0x7a,
+            if_icmpeq    = 0x9f,
+            if_icmpne    = 0xa0,
+            if_icmplt    = 0xa1,
+            if_icmpge    = 0xa2,
+            if_icmpgt    = 0xa3,
+            if_icmple    = 0xa4,
+            goto_        = 0xa7,
+            ireturn      = 0xac,
+            return_      = 0xb1,
+            invokespecial = 0xb7,
+            invokestatic = 0xb8,
+            athrow       = 0xbf;
+
+    // The code of one method
+    static class Method {
+        int access, name, desc;
+        int maxStack, maxLocals;
+        byte[] code = new byte[256];
+        int size;                        // used length of code
+        int[] lines = new int[64];       // pairs of (code offset, line number)
+        int nLines;
+
+        void put(int x) {
+            if (size == code.length) {
+                byte[] newCode = new byte[2 * code.length];
+                System.arraycopy(code, 0, newCode, 0, size);
+                code = newCode;
+            }
+            code[size++] = (byte) x;
+        }
+
+        void put2(int x) {
+            put(x >> 8);
+            put(x);
+        }
+
+        void put2(int pos, int x) {
+            code[pos] = (byte) (x >> 8);
+            code[pos + 1] = (byte) x;
+        }
+
+        // Marks the following instructions as belonging to source line n
+        void line(int n) {
+            if (nLines + 2 > lines.length) {
+                int[] newLines = new int[2 * lines.length];
+                System.arraycopy(lines, 0, newLines, 0, nLines);
+                lines = newLines;
+            }
+            lines[nLines++] = size;
+            lines[nLines++] = n;
+        }
+    }
+
+    private Buffer pool = new Buffer(); // constant pool entries
+    private int poolSize = 1;           // index 0 is unused
+    private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+    private int thisClass, superClass;
+    private Method[] methods = new Method[4];
+    private int nMethods;
+    private int sourceFile;             // SourceFile attribute, 0 if none
+
+    ClassFile(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    //----- constant pool
+
+    private int constant(String key, int tag, int a, int b) {
+        Integer idx = constants.get(key);
+        if (idx != null) return idx.intValue();
+        pool.put(tag);
+        if (tag == 3) pool.put4(a);
+        else if (tag == 7) pool.put2(a);
+        else { pool.put2(a); pool.put2(b); }
+        constants.put(key, poolSize);
+        return poolSize++;
+    }
+
+    int utf8(String s) {
+        Integer idx = constants.get("U" + s);
+        if (idx != null) return idx.intValue();
+        byte[] b;
+        try {
+            b = s.getBytes("UTF-8"); // names are plain ASCII
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        pool.put(1);
+        pool.put2(b.length);
+        for (int i = 0; i < b.length; i++) pool.put(b[i]);
+        constants.put("U" + s, poolSize);
+        return poolSize++;
+    }
+
+    int integer(int val) {
+        return constant("I" + val, 3, val, 0);
+    }
+
+    int classRef(String name) {
+        int n = utf8(name);
+        return constant("C" + name, 7, n, 0);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        int c = classRef(owner);
+        int nt = constant("N" + name + " " + desc, 12, utf8(name), utf8(desc));
+        return constant("M" + owner + "." + name + desc, 10, c, nt);
+    }
+
+    // Names the source of the class, as shown in stack traces
+    void sourceFile(String name) {
+        sourceFile = utf8(name);
+    }
+
+    //----- methods
+
+    Method method(int access, String name, String desc) {
+        Method m = new Method();
+        m.access = access;
+        m.name = utf8(name);
+        m.desc = utf8(desc);
+        if (nMethods == methods.length) {
+            Method[] newMethods = new Method[2 * nMethods];
+            System.arraycopy(methods, 0, newMethods, 0, nMethods);
+            methods = newMethods;
+        }
+        methods[nMethods++] = m;
+        return m;
+    }
+
+    // Returns the class file. Throws FormatException if a method exceeds
+    // the limits of the class file format.
+    byte[] toBytes() throws FormatException {
+        int codeAttr = utf8("Code"), lineAttr = utf8("LineNumberTable");
+        int sourceAttr = sourceFile > 0 ? utf8("SourceFile") : 0;
+        if (poolSize > 0xffff) throw new FormatException("constant pool too large");
+        Buffer b = new Buffer();
+        b.put4(0xcafebabe);
+        b.put2(0);   // minor version
+        b.put2(49);  // major version
+        b.put2(poolSize);
+        b.put(pool.buf, pool.size);
+        b.put2(ACC_PUBLIC | ACC_SUPER);
+        b.put2(thisClass);
+        b.put2(superClass);
+        b.put2(0);   // interfaces
+        b.put2(0);   // fields
+        b.put2(nMethods);
+        for (int i = 0; i < nMethods; i++) {
+            Method m = methods[i];
+            if (m.size == 0 || m.size > 0xffff) throw new FormatException("method code too large");
+            int nLines = m.nLines / 2;
+            b.put2(m.access);
+            b.put2(m.name);
+            b.put2(m.desc);
+            b.put2(1);   // attributes
+            b.put2(codeAttr);
+            b.put4(12 + m.size + (nLines > 0 ? 8 + 4 * nLines : 0));
+            b.put2(m.maxStack);
+            b.put2(m.maxLocals);
+            b.put4(m.size);
+            b.put(m.code, m.size);
+            b.put2(0);   // exception table
+            if (nLines > 0) {
+                b.put2(1);
+                b.put2(lineAttr);
+                b.put4(2 + 4 * nLines);
+                b.put2(nLines);
+                for (int k = 0; k < m.nLines; k += 2) {
+                    b.put2(m.lines[k]);
+                    b.put2(m.lines[k + 1]);
+                }
+            } else {
+                b.put2(0);
+            }
+        }
+        if (sourceFile > 0) {
+            b.put2(1);
+            b.put2(sourceAttr);
+            b.put4(2);
+            b.put2(sourceFile);
+        } else {
+            b.put2(0);
+        }
+        byte[] res = new byte[b.size];
+        System.arraycopy(b.buf, 0, res, 0, b.size);
+        return res;
+    }
+
+    // A growable byte buffer
+    private static class Buffer {
+        byte[] buf = new byte[512];
+        int size;
+
+        void put(int x) {
+            if (size == buf.length) {
+                byte[] newBuf = new byte[2 * buf.length];
+                System.arraycopy(buf, 0, newBuf, 0, size);
+                buf = newBuf;
+            }
+            buf[size++] = (byte) x;
+        }
+
+        void put2(int x) {
+            put(x >> 8);
+            put(x);
+        }
+
+        void put4(int x) {
+            put2(x >> 16);
+            put2(x);
+        }
+
+        void put(byte[] b, int n) {
+            for (int i = 0; i < n; i++) put(b[i]);
+        }
+    }
+}
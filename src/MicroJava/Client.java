@@ -0,0 +1,125 @@
+/* MicroJava Client
+ *
+ * Runs a program on a Daemon instead of in a JVM of its own. It takes the
+ * arguments of Run, passes its standard input and output to the program and
+ * exits with the result of the run (see Execution), or 3 if the daemon
+ * cannot be reached.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Client {
+
+    static final int unreachable = 3; // exit status
+
+    public static void main(String[] arg) {
+        String fileName = null, socket = null;
+        int port = Daemon.port;
+        boolean send = false;
+        List<String> options = new ArrayList<String>();
+        for (int i = 0; i < arg.length; i++) {
+            if (arg[i].equals("-port") && i + 1 < arg.length) {
+                try {
+                    port = Integer.parseInt(arg[++i]);
+                } catch (NumberFormatException e) {
+                    fileName = null; break;
+                }
+            }
+            else if (arg[i].equals("-socket") && i + 1 < arg.length) socket = arg[++i];
+            else if (arg[i].equals("-send")) send = true;
+            else if (arg[i].equals("-batch")) {
+                System.out.println("-- -batch cannot be used with the daemon");
+                System.exit(Execution.rejected);
+            }
+            else if (arg[i].startsWith("-")) {
+                options.add(arg[i]);
+                if (Run.takesValue(arg[i]) && i + 1 < arg.length) options.add(arg[++i]);
+            }
+            else fileName = arg[i];
+        }
+        if (fileName == null) {
+            System.out.println("Syntax: java MicroJava.Client [-port n | -socket path] [-send] filename [options of Run]");
+            System.exit(Execution.rejected);
+        }
+        SocketAddress address = socket != null ? UnixDomainSocketAddress.of(socket)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        int result;
+        try {
+            result = run(address, fileName, send, options, System.in, System.out);
+        } catch (NoSuchFileException e) {
+            System.out.println("-- file " + fileName + " not found");
+            result = Execution.rejected;
+        } catch (IOException e) {
+            System.out.println("-- cannot reach the daemon at " + address + ": " + e.getMessage());
+            result = unreachable;
+        }
+        System.out.flush();
+        System.exit(result); // also ends the thread that copies the input
+    }
+
+    // Runs the object file fileName on the daemon at address, with the input
+    // stdin and the output stdout; returns the result of the run. With send,
+    // the file itself goes to the daemon, otherwise its absolute path.
+    static int run(SocketAddress address, String fileName, boolean send, List<String> options,
+            InputStream stdin, OutputStream stdout) throws IOException {
+        File file = new File(fileName);
+        byte[] image = send ? Files.readAllBytes(file.toPath()) : null;
+        SocketChannel ch = SocketChannel.open(address);
+        try {
+            OutputStream raw = Daemon.output(ch);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw));
+            if (send) {
+                out.writeByte(Daemon.image);
+                out.writeUTF(fileName);
+                out.writeInt(image.length);
+                out.write(image);
+            } else {
+                out.writeByte(Daemon.path);
+                out.writeUTF(file.getAbsolutePath());
+            }
+            out.writeInt(options.size());
+            for (String o : options) out.writeUTF(o);
+            out.flush();
+            Thread input = new Thread(() -> copyInput(stdin, ch, raw), "MicroJava client input");
+            input.setDaemon(true);
+            input.start();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Daemon.input(ch)));
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.readInt()) != Daemon.end) {
+                while (n > 0) {
+                    int k = in.read(buf, 0, Math.min(n, buf.length));
+                    if (k < 0) throw new EOFException("connection closed");
+                    stdout.write(buf, 0, k);
+                    n -= k;
+                }
+                stdout.flush();
+            }
+            return in.readInt();
+        } finally {
+            ch.close(); // ends the thread that copies the input
+        }
+    }
+
+    // Sends stdin to the program, until it ends
+    private static void copyInput(InputStream stdin, SocketChannel ch, OutputStream out) {
+        byte[] buf = new byte[1 << 16];
+        try {
+            int n;
+            while ((n = stdin.read(buf)) > 0) out.write(buf, 0, n);
+            ch.shutdownOutput();
+        } catch (IOException e) {
+            // the program has ended
+        }
+    }
+}
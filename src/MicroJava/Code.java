@@ -6,8 +6,10 @@
  */
 package MicroJava;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 public class Code {
 
@@ -80,6 +82,9 @@ public class Code {
     public int pc;       // next free byte in code buffer
     public int mainPc;   // pc of main function (set by parser)
     public int dataSize; // length of static data in words (set by parser)
+    public Obj globals;  // static variables (set by parser)
+    private ArrayList<Integer> sitePcs = new ArrayList<Integer>();   // pcs of new and newarray
+    private ArrayList<Struct> siteTypes = new ArrayList<Struct>();   // types they create
     boolean showError;   // turn on/off all errors
 
     void error(String errorMessage) {
@@ -192,11 +197,21 @@ public class Code {
                 put2(x.adr);
                 break;
             case Operand.Elem:
-                put(Code.astore);
+                if (x.type.kind == Struct.CHAR) {
+                    put(Code.bastore);
+                } else {
+                    put(Code.astore);
+                }
                 break;
         }
     }
 
+    // Records that the new or newarray instruction at the current pc creates an object of type t
+    public void allocSite(Struct t) {
+        sitePcs.add(pc);
+        siteTypes.add(t);
+    }
+
     //------------- jumps ---------------
     // Unconditional jump
     public void putJump(int adr) {
@@ -237,6 +252,51 @@ public class Code {
             put4(mainPc);
             s.write(buf, codeSize, pc - codeSize);    // header
             s.write(buf, 0, codeSize);                // code
+            writeTypes(new DataOutputStream(s));      // for the garbage collector
+        } catch (IOException e) {
+            error("cannot write code file");
+        }
+    }
+
+    // Write which globals, array elements and object fields hold references (see Gc.readTypes)
+    private void writeTypes(DataOutputStream s) throws IOException {
+        s.writeByte('M');
+        s.writeByte('T');
+        s.writeInt(sitePcs.size());
+        for (int i = 0; i < sitePcs.size(); i++) {
+            Struct t = siteTypes.get(i);
+            s.writeInt(sitePcs.get(i));
+            if (t.kind == Struct.ARRAY) {
+                s.writeInt(t.elemType.isRefType() ? 4 : 3);   // Gc.REFS, Gc.INTS
+            } else {
+                s.writeInt(5);                                // Gc.OBJECT
+                s.writeInt(t.nFields);
+                writeMask(s, t.fields, t.nFields);
+            }
+        }
+        s.writeInt(dataSize);
+        writeMask(s, globals, dataSize);
+        s.flush();
+    }
+
+    // Write a bit set of the variables in list that hold references
+    private void writeMask(DataOutputStream s, Obj list, int n) throws IOException {
+        int[] mask = new int[(n + 31) >> 5];
+        for (Obj o = list; o != null; o = o.next) {
+            if (o.kind == Obj.VARIABLE && o.type.isRefType() && o.adr >= 0 && o.adr < n)
+                mask[o.adr >> 5] |= 1 << (o.adr & 31);
+        }
+        for (int i = 0; i < mask.length; i++) s.writeInt(mask[i]);
+    }
+
+    // Write the code buffer translated to register code (see RegCode)
+    public void writeRegisterCode(OutputStream s) {
+        try {
+            byte[] code = new byte[pc];
+            System.arraycopy(buf, 0, code, 0, pc);
+            new RegCode(code, mainPc, dataSize).write(s);
+        } catch (FormatException e) {
+            error("cannot generate register code: " + e.getMessage());
         } catch (IOException e) {
             error("cannot write code file");
         }
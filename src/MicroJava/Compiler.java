@@ -2,6 +2,7 @@
 package MicroJava;
 
 import java.io.*;
+import java.util.Arrays;
 
 public class Compiler {
 
@@ -16,20 +17,29 @@ public class Compiler {
 
     public static void main(String args[]) {
         if (args.length > 0) {
-            compile(args[0], objFileName(args[0]));
+            compile(args[0], objFileName(args[0]), Arrays.asList(args).contains("-reg"));
         } else {
-            System.out.println("use: java MicroJava.Compiler <inputfileName>");
+            System.out.println("use: java MicroJava.Compiler <inputfileName> [-reg]");
         }
     }
 
     public static void compile(String source, String output) {
+        compile(source, output, false);
+    }
+
+    // With register set, the object file holds register code (see RegCode)
+    public static void compile(String source, String output, boolean register) {
         try {
             Parser parser = new Parser(new InputStreamReader(new FileInputStream(source)));
             parser.parse();
             if (parser.errors == 0) {
                 try {
                     System.out.println("Compilation successful (0 errors).");
-                    parser.code.write(new FileOutputStream(output));
+                    if (register) {
+                        parser.code.writeRegisterCode(new FileOutputStream(output));
+                    } else {
+                        parser.code.write(new FileOutputStream(output));
+                    }
                 } catch (IOException e) {
                     System.out.println("-- cannot open output file " + output);
                 }
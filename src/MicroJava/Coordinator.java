@@ -0,0 +1,311 @@
+/* MicroJava Batch Coordinator
+ *
+ * Runs a batch in Worker JVMs instead of threads (Run -batch ... -workers n).
+ * An idle worker takes the next shard of inputs or, when none is left, the
+ * rest of a slow shard; the first result of an input counts. If a worker
+ * dies, the inputs of its shard without a result run again on a new one, up
+ * to retries times; then they are reported as lost.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+final class Coordinator {
+
+    static final int done = -1;  // index that ends a shard (see Worker)
+    static final int lost = 3;   // result of an input given up; the others are those of Execution
+
+    private final String fileName, outDir;
+    private final String[] opts, jvm;
+    private final File[] files;
+    private final int workers, retries;
+
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+    private final ArrayDeque<Shard> queue = new ArrayDeque<Shard>();   // shards that no worker has
+    private final List<Shard> active = new ArrayList<Shard>();        // shards that workers run
+    private final List<Proc> procs = new ArrayList<Proc>();
+    private final List<Proc> idle = new ArrayList<Proc>();
+    private final byte[] results;      // result per input, -1 while unknown
+    private final Shard[] shardOf;     // shard per input
+    private final byte[][] texts;      // outputs that wait for earlier ones
+    private OutputStream out;          // combined output, null with outDir
+    private int next;                  // first input whose output is not written yet
+    private int finished;              // inputs with a result
+    private long shardTime, shardsEnded; // for the average time of a shard
+
+    final int[] count = new int[4];    // inputs per result
+    int crashes;                       // workers that died without being stopped
+
+    Coordinator(String fileName, String[] opts, File[] files, String outDir, int workers, int shardSize, int retries, String jvm) {
+        this.fileName = new File(fileName).getAbsolutePath();
+        this.opts = opts;
+        this.files = files;
+        this.outDir = outDir;
+        this.workers = workers;
+        this.retries = retries;
+        this.jvm = jvm.trim().isEmpty() ? new String[0] : jvm.trim().split("\\s+");
+        results = new byte[files.length];
+        Arrays.fill(results, (byte) -1);
+        shardOf = new Shard[files.length];
+        texts = outDir == null ? new byte[files.length][] : null;
+        if (shardSize < 1) shardSize = Math.max(1, Math.min(64, files.length / (8 * workers))); // about 8 per worker
+        for (int i = 0; i < files.length; i += shardSize) {
+            int[] indices = new int[Math.min(shardSize, files.length - i)];
+            for (int k = 0; k < indices.length; k++) indices[k] = i + k;
+            Shard s = new Shard(queue.size(), indices);
+            for (int k : indices) shardOf[k] = s;
+            queue.add(s);
+        }
+    }
+
+    // Runs the batch; the combined output goes to out
+    void run(OutputStream out) throws IOException {
+        this.out = out;
+        try {
+            for (int i = 0; i < workers && !queue.isEmpty(); i++) assign(start());
+            while (finished < files.length) {
+                Event e;
+                try {
+                    e = events.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException x) {
+                    throw new InterruptedIOException();
+                }
+                if (e == null) { // a shard may have become slow
+                    for (int i = idle.size() - 1; i >= 0 && !active.isEmpty(); i--) {
+                        Shard s = straggler();
+                        if (s == null) break;
+                        send(idle.remove(i), s);
+                    }
+                } else if (e.died) {
+                    died(e.from);
+                } else if (e.index != done) {
+                    record(e.index, e.result, e.text);
+                    Shard s = shardOf[e.index];
+                    if (complete(s)) {
+                        for (Proc p : new ArrayList<Proc>(s.procs))
+                            if (p != e.from) stop(p); // it ran the shard as well
+                    }
+                } else if (e.from.shard != null && e.from.shard.id == e.shard) {
+                    Proc p = e.from;
+                    Shard s = p.shard;
+                    shardTime += System.currentTimeMillis() - p.since;
+                    shardsEnded++;
+                    s.procs.remove(p);
+                    p.shard = null;
+                    if (complete(s)) active.remove(s);
+                    else if (s.procs.isEmpty()) requeue(s);
+                    assign(p);
+                }
+            }
+        } finally {
+            for (Proc p : procs) {
+                try {
+                    p.to.writeInt(-1);
+                    p.to.close();
+                } catch (IOException e) {
+                    // it has gone already
+                }
+            }
+        }
+    }
+
+    // Starts a worker
+    private Proc start() throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.addAll(Arrays.asList(jvm));
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("MicroJava.Worker");
+        Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Proc p = new Proc(process);
+        procs.add(p);
+        try {
+            p.to.writeUTF(fileName);
+            p.to.writeInt(opts.length);
+            for (String o : opts) p.to.writeUTF(o);
+            p.to.writeUTF(outDir == null ? "" : outDir);
+        } catch (IOException e) {
+            // it has died, see died()
+        }
+        Thread t = new Thread(() -> read(p), "MicroJava coordinator");
+        t.setDaemon(true);
+        t.start();
+        return p;
+    }
+
+    // Gives p the next shard or lets it wait
+    private void assign(Proc p) {
+        Shard s = queue.poll();
+        if (s == null) s = straggler();
+        if (s == null) idle.add(p);
+        else send(p, s);
+    }
+
+    // The inputs of shard s without a result go to worker p
+    private void send(Proc p, Shard s) {
+        if (!active.contains(s)) active.add(s);
+        s.procs.add(p);
+        p.shard = s;
+        p.since = System.currentTimeMillis();
+        try {
+            int n = 0;
+            for (int i : s.indices) if (results[i] < 0) n++;
+            p.to.writeInt(s.id);
+            p.to.writeInt(n);
+            for (int i : s.indices) {
+                if (results[i] < 0) {
+                    p.to.writeInt(i);
+                    p.to.writeUTF(files[i].getPath());
+                }
+            }
+            p.to.flush();
+        } catch (IOException e) {
+            // it has died, see died()
+        }
+    }
+
+    // A shard that only one worker runs and that has taken twice as long as an average one, or null
+    private Shard straggler() {
+        if (shardsEnded == 0) return null;
+        long now = System.currentTimeMillis(), average = shardTime / shardsEnded;
+        Shard slowest = null;
+        long longest = 2 * average;
+        for (Shard s : active) {
+            if (s.procs.size() != 1) continue;
+            long t = now - s.procs.get(0).since;
+            if (t > longest) { slowest = s; longest = t; }
+        }
+        return slowest;
+    }
+
+    private void died(Proc p) throws IOException {
+        procs.remove(p);
+        idle.remove(p);
+        Shard s = p.shard;
+        if (s != null) {
+            s.procs.remove(p);
+            if (!complete(s) && s.procs.isEmpty()) {
+                if (++s.attempts > retries) {
+                    for (int i : s.indices)
+                        if (results[i] < 0) record(i, lost, ("=== " + i + " " + files[i].getPath() + " lost\n\n").getBytes());
+                    active.remove(s);
+                } else {
+                    requeue(s);
+                }
+            }
+        }
+        if (!p.stopped) crashes++;
+        if (finished < files.length && procs.size() < workers && (!queue.isEmpty() || !active.isEmpty()))
+            assign(start());
+    }
+
+    private void requeue(Shard s) {
+        active.remove(s);
+        queue.addFirst(s);
+        if (!idle.isEmpty()) send(idle.remove(idle.size() - 1), queue.poll());
+    }
+
+    private void stop(Proc p) {
+        p.shard.procs.remove(p);
+        p.shard = null;
+        p.stopped = true;
+        p.process.destroyForcibly(); // died() starts another one
+    }
+
+    private boolean complete(Shard s) {
+        for (int i : s.indices) if (results[i] < 0) return false;
+        return true;
+    }
+
+    // Takes the first result of input i and writes what is complete of the combined output
+    private void record(int i, int result, byte[] text) throws IOException {
+        if (results[i] >= 0) return;
+        results[i] = (byte) result;
+        count[result]++;
+        finished++;
+        if (texts == null) return;
+        texts[i] = text;
+        while (next < files.length && texts[next] != null) {
+            out.write(texts[next]);
+            texts[next++] = null;
+        }
+    }
+
+    // Reads the answers of worker p until it ends
+    private void read(Proc p) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(p.process.getInputStream()));
+            while (true) {
+                int shard = in.readInt(), index = in.readInt();
+                if (index == done) {
+                    events.add(new Event(p, shard, done, 0, null));
+                } else {
+                    int result = in.readByte();
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    events.add(new Event(p, shard, index, result, text));
+                }
+            }
+        } catch (IOException e) {
+            // the worker has ended
+        }
+        try {
+            p.process.waitFor();
+        } catch (InterruptedException e) {
+            // report it anyway
+        }
+        Event e = new Event(p, -1, done, 0, null);
+        e.died = true;
+        events.add(e);
+    }
+
+    private static final class Shard {
+        final int id;
+        final int[] indices;
+        final List<Proc> procs = new ArrayList<Proc>(); // the workers that run it
+        int attempts;                                  // workers that died on it
+
+        Shard(int id, int[] indices) {
+            this.id = id;
+            this.indices = indices;
+        }
+    }
+
+    // A worker process
+    private static final class Proc {
+        final Process process;
+        final DataOutputStream to;
+        Shard shard;     // the shard it runs, or null
+        long since;      // when it got the shard
+        boolean stopped; // by the coordinator
+
+        Proc(Process process) {
+            this.process = process;
+            to = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        }
+    }
+
+    // An answer of a worker, or its end
+    private static final class Event {
+        final Proc from;
+        final int shard, index, result;
+        final byte[] text;
+        boolean died;
+
+        Event(Proc from, int shard, int index, int result, byte[] text) {
+            this.from = from;
+            this.shard = shard;
+            this.index = index;
+            this.result = result;
+            this.text = text;
+        }
+    }
+}
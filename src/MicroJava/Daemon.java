@@ -0,0 +1,287 @@
+/* MicroJava Daemon
+ *
+ * Runs programs for Clients on the machines of one Engine, which it makes and
+ * warms up at startup, so that a run pays neither for the start of a JVM nor
+ * for the warm-up of the interpreter. Requests beyond the pool wait in a
+ * queue; loaded programs stay in a cache of the ones used last.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class Daemon {
+
+    static final int port = 7411;          // default TCP port
+    static final byte path = 0, image = 1; // how the object file is sent
+    static final int end = -1;             // follows the output, precedes the result
+
+    private final Engine engine;
+    private final int pool;
+    private final Map<String, Loaded> programs; // by file name, the one used last at the end
+
+    // A daemon with pool machines that keeps up to cache programs loaded
+    Daemon(int pool, int cache) {
+        this.pool = pool;
+        engine = new Engine(pool, Long.MAX_VALUE); // the warm machines stay
+        programs = new LinkedHashMap<String, Loaded>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+                return size() > cache;
+            }
+        };
+    }
+
+    public static void main(String[] arg) {
+        String socket = null, warm = null;
+        int tcp = port, pool = Runtime.getRuntime().availableProcessors(), queue = 64, cache = 64, rounds = 20;
+        boolean reject = false, ok = true;
+        for (int i = 0; i < arg.length && ok; i++) {
+            try {
+                if (arg[i].equals("-port") && i + 1 < arg.length) tcp = Integer.parseInt(arg[++i]);
+                else if (arg[i].equals("-socket") && i + 1 < arg.length) socket = arg[++i];
+                else if (arg[i].equals("-pool") && i + 1 < arg.length) pool = Integer.parseInt(arg[++i]);
+                else if (arg[i].equals("-queue") && i + 1 < arg.length) queue = Integer.parseInt(arg[++i]);
+                else if (arg[i].equals("-cache") && i + 1 < arg.length) cache = Integer.parseInt(arg[++i]);
+                else if (arg[i].equals("-rounds") && i + 1 < arg.length) rounds = Integer.parseInt(arg[++i]);
+                else if (arg[i].equals("-warm") && i + 1 < arg.length) warm = arg[++i];
+                else if (arg[i].equals("-full") && i + 1 < arg.length) {
+                    String p = arg[++i];
+                    reject = p.equals("reject");
+                    ok = reject || p.equals("wait");
+                }
+                else ok = false;
+            } catch (NumberFormatException e) {
+                ok = false;
+            }
+        }
+        if (!ok || pool < 1 || queue < 1 || cache < 1 || rounds < 0) {
+            System.out.println("Syntax: java MicroJava.Daemon [-port n | -socket path] [-pool n] [-queue n] [-full wait|reject] [-cache n] [-warm file.obj [-rounds n]]");
+            return;
+        }
+        try {
+            new Daemon(pool, cache).serve(socket != null ? UnixDomainSocketAddress.of(socket)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), tcp), queue, reject, warm, rounds);
+        } catch (IOException e) {
+            System.out.println("-- daemon: " + e.getMessage());
+        }
+    }
+
+    // Accepts requests at address until the JVM ends
+    void serve(SocketAddress address, int queue, boolean reject, String warm, int rounds) throws IOException {
+        Program warmup = null;
+        if (warm != null) warmup = program(warm);
+        engine.warm(pool, warmup, rounds);
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(pool, pool, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), r -> {
+                    Thread t = new Thread(r, "MicroJava daemon");
+                    t.setDaemon(true); // the accepting thread keeps the JVM alive
+                    return t;
+                },
+                (r, executor) -> {
+                    if (reject) throw new RejectedExecutionException();
+                    try {
+                        executor.getQueue().put(r); // the accepting thread waits for room
+                    } catch (InterruptedException e) {
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress) {
+            Path file = ((UnixDomainSocketAddress) address).getPath();
+            Files.deleteIfExists(file); // left by an earlier daemon
+            file.toFile().deleteOnExit();
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        System.out.println("-- daemon at " + address + " with " + pool + " machines");
+        while (true) {
+            SocketChannel ch = server.accept();
+            try {
+                workers.execute(() -> request(ch, null));
+            } catch (RejectedExecutionException e) { // the answer takes no machine
+                Thread t = new Thread(() -> request(ch, "-- daemon busy, " + queue + " requests are waiting\n"));
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    // Runs one request, or answers it with refusal if that is not null. The
+    // client sends the object file, as a path that the daemon reads itself or
+    // as a name and the bytes, then the options of Run, then the input until
+    // it shuts down its side. The daemon answers with the output in chunks (a
+    // length and the bytes), then end and the result (see Execution).
+    private void request(SocketChannel ch, String refusal) {
+        try (SocketChannel c = ch) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output(c)));
+            OutputStream chunks = new Chunks(out);
+            int result = Execution.rejected;
+            String name = null;
+            Program p = null;
+            try {
+                byte kind = in.readByte();
+                name = in.readUTF();
+                if (kind == image) {
+                    byte[] b = new byte[in.readInt()];
+                    in.readFully(b);
+                    if (refusal == null) p = engine.load(name, b);
+                } else if (refusal == null) {
+                    p = program(name);
+                }
+            } catch (NoSuchFileException e) {
+                message(chunks, "-- file " + name + " not found\n");
+            } catch (IOException e) {
+                message(chunks, "-- " + e.getMessage() + "\n");
+            }
+            String[] options = new String[in.readInt()];
+            for (int i = 0; i < options.length; i++) options[i] = in.readUTF();
+            String bad = unsupported(options);
+            if (refusal != null) {
+                message(chunks, refusal);
+            } else if (bad != null) {
+                message(chunks, "-- " + bad + " cannot be used with the daemon, it would write files of the daemon\n");
+                p = null;
+            }
+            if (p != null) {
+                long startTime = System.currentTimeMillis();
+                Execution e = engine.execution(p, in, chunks, options);
+                result = e.run();
+                if (result != Execution.rejected) {
+                    String s = "\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms";
+                    for (String o : options)
+                        if (o.equals("-quota")) s += "\n-- " + e.instructions() + " instructions";
+                    message(chunks, s);
+                }
+            }
+            out.writeInt(end);
+            out.writeInt(result);
+            out.flush();
+            c.shutdownOutput();
+            while (in.read() >= 0) {} // the input that the program left; closing before would reset the output
+        } catch (IOException e) {
+            // the client has gone
+        }
+    }
+
+    // The program in file name, loaded again when the file has changed or has
+    // left the cache
+    private Program program(String name) throws IOException {
+        File f = new File(name);
+        long modified = f.lastModified(), size = f.length();
+        Loaded l;
+        synchronized (programs) {
+            l = programs.get(name);
+        }
+        if (l == null || l.modified != modified || l.size != size) {
+            l = new Loaded(engine.load(name), modified, size);
+            synchronized (programs) {
+                programs.put(name, l);
+            }
+        }
+        return l.program;
+    }
+
+    // Number of programs in the cache
+    int cached() {
+        synchronized (programs) {
+            return programs.size();
+        }
+    }
+
+    // An option that would make the daemon write files, or null
+    private static String unsupported(String[] options) {
+        for (String o : options)
+            if (o.equals("-debug") || o.equals("-trace") || o.equals("-pc") || o.equals("-method")
+                    || o.equals("-first") || o.equals("-mapheap") || o.equals("-out") || o.equals("-batch")
+                    || o.equals("-snapshot"))
+                return o;
+        return null;
+    }
+
+    private static void message(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes());
+        out.flush();
+    }
+
+    // Streams of a socket channel; unlike Channels.newInputStream() and newOutputStream(),
+    // a read and a write may wait at the same time (the Client writes input while it reads output)
+    static InputStream input(SocketChannel ch) {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                return ch.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    static OutputStream output(SocketChannel ch) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+        };
+    }
+
+    // Writes the output of a program as chunks of the protocol
+    private static final class Chunks extends OutputStream {
+        private final DataOutputStream out;
+
+        Chunks(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static final class Loaded {
+        final Program program;
+        final long modified, size;
+
+        Loaded(Program program, long modified, long size) {
+            this.program = program;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
@@ -59,6 +59,32 @@ public class Decoder {
             bread       = 52,
             bprint      = 53,
             trap        = 54;
+    private static final int // superinstructions of the predecoded stream
+            load_load   = 55,
+            load_const  = 56,
+            add_const   = 57,
+            sub_const   = 58,
+            inc         = 59,
+            dec         = 60,
+            load_aload  = 61,
+            getstatic_inc = 62,
+            getstatic_dec = 63,
+            store_jmp   = 64,
+            jeq_lc      = 65,
+            jge_lc      = 70,
+            jeq_ll      = 71,
+            jge_ll      = 76;
+    private static final String[] names = {
+            "-- error--", "load", "load0", "load1", "load2", "load3",
+            "store", "store0", "store1", "store2", "store3",
+            "getstatic", "putstatic", "getfield", "putfield",
+            "const0", "const1", "const2", "const3", "const4", "const5",
+            "const_m1", "const", "add", "sub", "mul", "div", "rem", "neg",
+            "shl", "shr", "new", "newarray", "aload", "astore", "baload",
+            "bastore", "arraylength", "pop", "jmp", "jeq", "jne", "jlt",
+            "jle", "jgt", "jge", "call", "return", "enter", "exit", "read",
+            "print", "bread", "bprint", "trap"};
+    private static final String[] cond = {"eq", "ne", "lt", "le", "gt", "ge"};
     private static byte[] code;        // code buffer
     private static int cur;            // address of next byte to decode
     private static int adr;            // address of currently decoded instruction
@@ -255,4 +281,73 @@ public class Decoder {
             }
         }
     }
+
+    // Print the predecoded instruction stream of p, including superinstructions.
+    // Jump targets are shown as code addresses.
+    public static void decode(Predecoder p) {
+        int[] ops = p.ops;
+        for (int i = 0; i < p.size; i = p.next(i)) {
+            int op = ops[i];
+            String s;
+            if (op >= jmp && op <= call) {
+                s = ops[i + 1] < p.size ? "" + p.addr[ops[i + 1]] : "?";
+                s = (op == jmp ? "jmp" : op == call ? "call" : "j" + cond[op - jeq]) + " " + s;
+            } else if (op >= jeq_lc && op <= jge_lc) {
+                s = "j" + cond[op - jeq_lc] + "_lc " + ops[i + 1] + " " + ops[i + 3]
+                        + " " + p.addr[ops[i + 5]];
+            } else if (op >= jeq_ll && op <= jge_ll) {
+                s = "j" + cond[op - jeq_ll] + "_ll " + ops[i + 1] + " " + ops[i + 3]
+                        + " " + p.addr[ops[i + 5]];
+            } else {
+                switch (op) {
+                    case 0:
+                        s = "-- error-- " + ops[i + 1];
+                        break;
+                    case load_load:
+                        s = "load_load " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case load_const:
+                        s = "load_const " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case add_const:
+                        s = "add_const " + ops[i + 1];
+                        break;
+                    case sub_const:
+                        s = "sub_const " + ops[i + 1];
+                        break;
+                    case inc:
+                        s = "inc " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case dec:
+                        s = "dec " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case load_aload:
+                        s = "load_aload " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case getstatic_inc:
+                        s = "getstatic_inc " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case getstatic_dec:
+                        s = "getstatic_dec " + ops[i + 1] + " " + ops[i + 3];
+                        break;
+                    case store_jmp:
+                        s = "store_jmp " + ops[i + 1] + " " + p.addr[ops[i + 3]];
+                        break;
+                    case enter:
+                        s = "enter " + ops[i + 1] + " " + ops[i + 2];
+                        break;
+                    default: // plain instruction, its operands are already decoded
+                        s = name(op);
+                        if (Predecoder.length(op) > 1) s = s + " " + ops[i + 1];
+                        break;
+                }
+            }
+            System.out.println(p.addr[i] + ": " + s);
+        }
+    }
+
+    // Returns the mnemonic of the plain instruction op
+    private static String name(int op) {
+        return names[op > 0 && op <= trap ? op : 0];
+    }
 }
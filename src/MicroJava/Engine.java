@@ -0,0 +1,156 @@
+/* MicroJava Engine
+ *
+ * Loads Programs and creates Executions of them, which run on Machines of
+ * the engine. An engine keeps at most max machines; an execution waits
+ * while all of them are busy, and machines idle for keepAlive are dropped.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class Engine {
+
+    private final ClassLoader parent = Engine.class.getClassLoader(); // loads the classes of the machines
+    private final int max;          // machines at most
+    private final long keepAlive;   // ns an idle machine is kept
+    private int machines;           // machines created and not dropped
+    private final ArrayDeque<Machine> idle = new ArrayDeque<Machine>(); // the last released first
+    private final ReentrantLock lock = new ReentrantLock(); // guards machines and idle
+    private final Condition free = lock.newCondition();     // a machine was released or dropped
+    final AtomicInteger waiting = new AtomicInteger();      // executions waiting for input without a machine
+
+    // An engine with 4 machines per processor at most, kept for a minute
+    public Engine() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public Engine(int max) {
+        this(max, 60_000);
+    }
+
+    // Long.MAX_VALUE as keepAliveMillis keeps idle machines for good
+    public Engine(int max, long keepAliveMillis) {
+        if (max < 1) throw new IllegalArgumentException("an engine needs a machine");
+        this.max = max;
+        this.keepAlive = keepAliveMillis < Long.MAX_VALUE / 1_000_000 ? keepAliveMillis * 1_000_000 : Long.MAX_VALUE;
+    }
+
+    // Machines of the engine, idle or busy
+    public int machines() {
+        lock.lock();
+        try {
+            evict();
+            return machines;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Executions that wait for input without holding a machine (see Execution.startVirtual())
+    public int waiting() {
+        return waiting.get();
+    }
+
+    // Reads and checks the object file fileName
+    public Program load(String fileName) throws IOException {
+        return load(fileName, Files.readAllBytes(Paths.get(fileName)));
+    }
+
+    // Checks the object file in image; name stands for it in messages
+    public Program load(String name, byte[] image) throws IOException {
+        image = image.clone();
+        Machine m = acquire();
+        Object decoded;
+        try {
+            decoded = m.decode(image);
+        } catch (RuntimeException | Error e) {
+            drop(m);
+            throw e;
+        }
+        release(m);
+        if (decoded instanceof String) throw new IOException("corrupted object file " + name + ": " + decoded);
+        return new Program(name, (Object[]) decoded);
+    }
+
+    // An execution of p that reads from in (nothing if it is null) and writes to out
+    public Execution execution(Program p, InputStream in, OutputStream out, String... options) {
+        return new Execution(this, p, in, out, options);
+    }
+
+    // Makes n machines ready for executions (at most max). If warmup is not
+    // null, each of them runs it rounds times with the given options first
+    // (without input, output discarded), so the JVM has compiled its
+    // interpreter before real programs arrive.
+    public void warm(int n, Program warmup, int rounds, String... options) {
+        Machine[] m = new Machine[Math.min(n, max)];
+        PrintStream none = new PrintStream(OutputStream.nullOutputStream());
+        for (int i = 0; i < m.length; i++) {
+            m[i] = acquire();
+            for (int k = 0; warmup != null && k < rounds; k++)
+                m[i].run(warmup, options, InputStream.nullInputStream(), none);
+        }
+        for (int i = 0; i < m.length; i++) release(m[i]);
+    }
+
+    // An idle machine, or a new one if there are less than max; waits while
+    // all machines are busy. The machine that was released last comes first,
+    // as its code is most likely still compiled and in the caches. A lock
+    // rather than a monitor, so a virtual thread waits without pinning its carrier.
+    Machine acquire() {
+        lock.lock();
+        try {
+            evict();
+            while (idle.isEmpty() && machines >= max) free.awaitUninterruptibly();
+            Machine m = idle.pollFirst();
+            if (m != null) return m;
+            machines++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return new Machine(parent);
+        } catch (RuntimeException | Error e) {
+            drop(null);
+            throw e;
+        }
+    }
+
+    void release(Machine m) {
+        lock.lock();
+        try {
+            m.idleSince = System.nanoTime();
+            idle.addFirst(m);
+            evict();
+            free.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forgets m (or a machine that could not be created) after a failure of the VM
+    void drop(Machine m) {
+        lock.lock();
+        try {
+            machines--;
+            free.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the machines that have been idle for keepAlive; they are the last in idle
+    private void evict() {
+        long now = System.nanoTime();
+        while (!idle.isEmpty() && now - idle.peekLast().idleSince >= keepAlive) {
+            idle.pollLast();
+            machines--;
+            free.signal(); // a waiting execution may create a machine
+        }
+    }
+}
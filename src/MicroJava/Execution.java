@@ -0,0 +1,217 @@
+/* MicroJava Execution
+ *
+ * One run of a Program with its own input and output, created by
+ * Engine.execution(). run() executes it in the calling thread on a Machine
+ * of the engine, a Scheduler in slices that may each take another machine.
+ * startVirtual() runs it on a virtual thread, which needs Java 21; while the
+ * program waits for input, it holds no machine. The output also receives
+ * the messages of the VM. cancel() stops an execution of startVirtual() or
+ * of a Scheduler at the end of its current slice.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.util.concurrent.CompletableFuture;
+
+public final class Execution {
+
+    public static final int // results of run()
+            completed = 0,  // the program terminated
+            stopped   = 1,  // it stopped with an exception
+            rejected  = 2,  // it did not run: bad options or not enough memory
+            running   = 3,  // it has not ended yet (Scheduler)
+            waiting   = 4;  // it waits for input (startVirtual())
+
+    static final long checkQuantum = 1 << 20; // instructions of startVirtual() between two checks of cancel()
+
+    private final Engine engine;
+    private final Program program;
+    private final InputStream in;
+    private final PrintStream out;
+    private final String[] options;
+    private boolean started;
+    private Object[] suspended;     // between two slices (see Run.suspend())
+    private volatile boolean cancelled;
+    private long instructions;
+    private int heapSize;
+
+    Execution(Engine engine, Program program, InputStream in, OutputStream out, String[] options) {
+        this.engine = engine;
+        this.program = program;
+        this.in = in != null ? in : InputStream.nullInputStream();
+        this.out = out instanceof PrintStream ? (PrintStream) out : new PrintStream(out);
+        this.options = options.clone();
+    }
+
+    public Program program() {
+        return program;
+    }
+
+    // Instructions executed, counted by the classic interpreter (-classic, -quota, Scheduler), otherwise 0
+    public long instructions() {
+        return instructions;
+    }
+
+    // Size of the heap in words when the execution ended
+    public int heapSize() {
+        return heapSize;
+    }
+
+    // Stops the execution with an exception before its next slice; the program
+    // then ends as if it had stopped there (stopped). Has no effect on run().
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Runs the program to its end; an execution runs only once
+    public int run() {
+        begin();
+        Machine m = engine.acquire();
+        int result;
+        try {
+            result = m.run(program, options, in, out);
+        } catch (RuntimeException | Error e) { // a failure of the VM: m is not reused
+            engine.drop(m);
+            throw e;
+        }
+        end(m);
+        return result;
+    }
+
+    // Starts the program on a virtual thread; the future completes with the
+    // result. Without virtual threads (before Java 21) a waiting execution
+    // would keep a platform thread, so this throws UnsupportedOperationException.
+    public CompletableFuture<Integer> startVirtual() {
+        Object builder = ofVirtual();
+        if (builder == null) throw new UnsupportedOperationException("startVirtual() needs virtual threads, Java 21 or later");
+        begin();
+        CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        try {
+            Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class).invoke(builder, parked(result));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot start a virtual thread", e);
+        }
+        return result;
+    }
+
+    // Like startVirtual(), but on a daemon platform thread, which any JVM has;
+    // for the few executions of a pipeline of Stages
+    CompletableFuture<Integer> startPlatform() {
+        begin();
+        CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        Thread t = new Thread(parked(result), "MicroJava " + program.name());
+        t.setDaemon(true);
+        t.start();
+        return result;
+    }
+
+    // Runs runParked() and completes result with what it returns
+    private Runnable parked(CompletableFuture<Integer> result) {
+        return () -> {
+            try {
+                result.complete(runParked());
+            } catch (RuntimeException | Error x) {
+                result.completeExceptionally(x);
+            }
+        };
+    }
+
+    // True if the JVM has virtual threads, which startVirtual() needs
+    public static boolean virtualThreads() {
+        return ofVirtual() != null;
+    }
+
+    // Thread.ofVirtual(), through reflection because the tree builds on Java 17; null without it
+    private static Object ofVirtual() {
+        try {
+            return Thread.class.getMethod("ofVirtual").invoke(null);
+        } catch (ReflectiveOperationException e) { // before Java 21, or a preview that is not enabled
+            return null;
+        }
+    }
+
+    // Runs the program to its end; while it waits for input, it holds no machine
+    int runParked() {
+        Machine m = engine.acquire();
+        int result;
+        try {
+            result = m.start(program, options, in, out, true);
+            while (result == running || result == waiting) {
+                if (result == waiting) {
+                    Machine w = m;
+                    Object[] state = w.suspend();
+                    m = null;
+                    engine.release(w);
+                    engine.waiting.incrementAndGet();
+                    try {
+                        w.await(state); // uses no state of w, which may run others meanwhile
+                    } finally {
+                        engine.waiting.decrementAndGet();
+                    }
+                    m = engine.acquire();
+                    m.resume(state);
+                }
+                result = cancelled ? m.cancel() : m.slice(checkQuantum);
+            }
+        } catch (RuntimeException | Error e) {
+            if (m != null) engine.drop(m);
+            throw e;
+        }
+        end(m);
+        return result;
+    }
+
+    // Sets the execution up for slice(); returns running or rejected
+    int start() {
+        begin();
+        Machine m = engine.acquire();
+        int result;
+        try {
+            result = m.start(program, options, in, out, false);
+        } catch (RuntimeException | Error e) {
+            engine.drop(m);
+            throw e;
+        }
+        return pause(m, result);
+    }
+
+    // Runs the started execution for about quantum instructions on any
+    // machine; returns running or its result
+    int slice(long quantum) {
+        Machine m = engine.acquire();
+        int result;
+        try {
+            m.resume(suspended);
+            suspended = null;
+            result = cancelled ? m.cancel() : m.slice(quantum);
+        } catch (RuntimeException | Error e) {
+            engine.drop(m);
+            throw e;
+        }
+        return pause(m, result);
+    }
+
+    // Ends the execution, or takes it out of m until its next slice, so that
+    // the engine needs no more machines than the scheduler has threads
+    private int pause(Machine m, int result) {
+        if (result != running) {
+            end(m);
+        } else {
+            suspended = m.suspend();
+            engine.release(m);
+        }
+        return result;
+    }
+
+    private synchronized void begin() {
+        if (started) throw new IllegalStateException("execution of " + program.name() + " already started");
+        started = true;
+    }
+
+    private void end(Machine m) {
+        instructions = m.steps();
+        heapSize = m.heapSize();
+        engine.release(m);
+        out.flush();
+    }
+}
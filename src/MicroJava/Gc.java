@@ -0,0 +1,512 @@
+/* MicroJava Garbage Collector
+ *
+ * Mark-compact collector for the heap (Run.mem). Blocks have a header word
+ * (mark, pin, kind, size); references typed by the compiler (see
+ * Code.writeTypes) are precise, other values that hit a block are ambiguous
+ * and pin it. The heap grows up to Run.heapMax when collecting does not help.
+ * Char arrays hold the index of their chars in Run.chars, compacted as well.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.util.Arrays;
+
+class Gc {
+
+    private static final int // instruction codes
+            new_        = 31,
+            newarray    = 32;
+
+    static final int // block kinds
+            FREE    = 0,
+            UNTYPED = 1,   // all words may be references
+            CHARS   = 2,   // char array
+            INTS    = 3,   // int array
+            REFS    = 4,   // array of references
+            OBJECT  = 5;   // object, fields as given by its type
+
+    private static final int
+            MARK  = 1 << 31,
+            PIN   = 1 << 30,
+            KIND  = 27,             // position of the kind
+            INFO  = (1 << 27) - 1;  // mask of size or type
+
+    static boolean stats;      // print statistics at the end (-gc)
+
+    // type information from the object file, null if there is none
+    private static int[] siteHeader;   // siteHeader[pc]: header for the site at pc, 0 if unknown
+    private static int[] typeSize;     // number of fields of object type t
+    private static int[][] typeMask;   // bit f of typeMask[t]: field f holds a reference
+    private static int[] globalMask;   // bit i: data[i] holds a reference
+
+    // roots of Jit and Tree
+    private static int[] held = new int[64];    // values of JVM locals
+    private static int nHeld;
+    private static int[][] frames = new int[64][]; // frames of Tree
+    private static int nFrames;
+    static int localTop = -1;  // end of the frames in Run.local while Jit or Tree count theirs in Run.sp, else -1
+
+    private static int freeList;       // header address of the first FREE block in the list, 0 if none
+
+    // new addresses during a collection, per region of 1 << REGION words
+    private static final int REGION = 6;
+    private static int[] first;        // first[r]: header address of the first block that starts in region r, 0 if none
+    private static int[] firstDest;    // firstDest[r]: where the live blocks in front of first[r] end after compaction
+    private static int[] work = new int[256]; // blocks still to be scanned
+    private static int nWork;
+
+    // statistics
+    static int collections;
+    static long totalTime, maxTime;    // pause times in ns
+    static long reclaimed;             // words freed in all collections
+
+    // Forgets the heap of a previous run; the type information stays
+    static void reset() {
+        freeList = 0;
+        first = null; firstDest = null;
+        dropRoots();
+        collections = 0;
+        totalTime = 0; maxTime = 0;
+        reclaimed = 0;
+    }
+
+    // The free list for a Snapshot
+    static int freeList() {
+        return freeList;
+    }
+
+    static void setFreeList(int h) {
+        freeList = h;
+    }
+
+    // The state of the collector for Run.suspend(), in classes of the JDK
+    static Object[] save() {
+        return new Object[] {stats, types(), freeList, collections, totalTime, maxTime, reclaimed};
+    }
+
+    static void restore(Object[] s) {
+        stats = (Boolean) s[0];
+        setTypes((Object[]) s[1]);
+        freeList = (Integer) s[2];
+        collections = (Integer) s[3];
+        totalTime = (Long) s[4];
+        maxTime = (Long) s[5];
+        reclaimed = (Long) s[6];
+        first = null; firstDest = null;
+        dropRoots();
+    }
+
+    //----- roots outside of Run
+
+    // Keeps val alive (and in place) until release()
+    static void hold(int val) {
+        if (nHeld == held.length) held = Arrays.copyOf(held, 2 * nHeld);
+        held[nHeld++] = val;
+    }
+
+    static void release(int n) {
+        nHeld -= n;
+    }
+
+    // Keeps the values in frame f alive until releaseFrame()
+    static void holdFrame(int[] f) {
+        if (nFrames == frames.length) frames = Arrays.copyOf(frames, 2 * nFrames);
+        frames[nFrames++] = f;
+    }
+
+    static void releaseFrame() {
+        frames[--nFrames] = null;
+    }
+
+    // Forgets all roots outside of Run, e.g. after an error ended the run
+    static void dropRoots() {
+        nHeld = 0;
+        Arrays.fill(frames, 0, nFrames, null);
+        nFrames = 0;
+        localTop = -1;
+    }
+
+    //----- type information
+
+    // The type information in classes of the JDK, so that all Machines can share it (see Run.decode())
+    static Object[] types() {
+        return new Object[] {siteHeader, typeSize, typeMask, globalMask};
+    }
+
+    static void setTypes(Object[] t) {
+        siteHeader = (int[]) t[0];
+        typeSize = (int[]) t[1];
+        typeMask = (int[][]) t[2];
+        globalMask = (int[]) t[3];
+    }
+
+    // Reads the type information that follows the code in an object file;
+    // false if there is none, i.e. the file is from an older compiler
+    static boolean readTypes(DataInputStream in, byte[] code, int dataSize) throws IOException, FormatException {
+        siteHeader = null; typeSize = null; typeMask = null; globalMask = null;
+        int a = in.read();
+        if (a < 0) return false;
+        if (a != 'M' || in.read() != 'T') throw new FormatException("wrong marker of type information");
+        int n = in.readInt();
+        if (n < 0 || n > code.length) throw new FormatException("bad number of allocation sites");
+        int[] sites = new int[code.length];
+        int[] sizes = new int[n];
+        int[][] masks = new int[n][];
+        int nTypes = 0;
+        for (int i = 0; i < n; i++) {
+            int pc = in.readInt(), kind = in.readInt();
+            if (pc < 0 || pc + 2 >= code.length) throw new FormatException("allocation site out of code area");
+            if (kind == INTS || kind == REFS) {
+                if (code[pc] != newarray) throw new FormatException("no newarray at " + pc);
+                sites[pc] = kind << KIND;
+            } else if (kind == OBJECT) {
+                int size = in.readInt();
+                if (code[pc] != new_ || size != (((code[pc+1] << 8) + (code[pc+2] & 0xff)) << 16 >> 16))
+                    throw new FormatException("no new of " + size + " fields at " + pc);
+                sizes[nTypes] = size;
+                masks[nTypes] = new int[(size + 31) >> 5];
+                for (int k = 0; k < masks[nTypes].length; k++) masks[nTypes][k] = in.readInt();
+                sites[pc] = OBJECT << KIND | nTypes;
+                nTypes++;
+            } else {
+                throw new FormatException("bad kind of allocation site at " + pc);
+            }
+        }
+        if (in.readInt() != dataSize) throw new FormatException("type information does not match data size");
+        int[] globals = new int[(dataSize + 31) >> 5];
+        for (int k = 0; k < globals.length; k++) globals[k] = in.readInt();
+        siteHeader = sites;
+        typeSize = sizes;
+        typeMask = masks;
+        globalMask = globals;
+        return true;
+    }
+
+    //----- allocation
+
+    // Allocates an object of size fields for the new instruction at pc site (-1 if unknown)
+    static int newObject(int size, int site) throws VMError {
+        if (size < 0) throw new VMError("negative object size");
+        int header = UNTYPED << KIND | size;
+        if (siteHeader != null && site >= 0 && site < siteHeader.length && siteHeader[site] >>> KIND == OBJECT)
+            header = siteHeader[site];
+        return allocate(header, size);
+    }
+
+    // Allocates an array of len elements (bytes if b == 0) for the newarray instruction at pc site
+    static int newArray(int len, int b, int site) throws VMError {
+        if (len < 0) throw new VMError("negative array size");
+        int size, kind = UNTYPED;
+        if (b == 0) {
+            reserveChars(len); // before allocate(), which may compact Run.chars
+            int adr = allocate(CHARS << KIND | 2, 2);
+            Run.mem.set(adr, len);
+            Run.mem.set(adr + 1, Run.charFree);
+            Run.charFree += len;
+            return adr;
+        } else {
+            size = 1 + len;
+            if (siteHeader != null && site >= 0 && site < siteHeader.length && siteHeader[site] != 0)
+                kind = siteHeader[site] >>> KIND;
+        }
+        if (size > INFO) throw new VMError("heap overflow");
+        int adr = allocate(kind << KIND | size, size);
+        Run.mem.set(adr, len);
+        return adr;
+    }
+
+    // Makes room for len chars behind Run.charFree, collecting or growing Run.chars
+    private static void reserveChars(int len) throws VMError {
+        if (len <= Run.chars.length - Run.charFree) return;
+        collect();
+        if (len <= Run.chars.length - Run.charFree && Run.charFree <= Run.chars.length / 2) return;
+        long max = Math.min(4L * Run.heapMax, Integer.MAX_VALUE - 8);
+        long n = Math.min(Math.max(2L * Run.chars.length, (long) Run.charFree + len), max);
+        if (n > Run.chars.length) {
+            try {
+                Run.chars = Arrays.copyOf(Run.chars, (int) n);
+            } catch (OutOfMemoryError e) {
+                // fail below unless the collection made room
+            }
+        }
+        if (len > Run.chars.length - Run.charFree) throw new VMError("heap overflow");
+    }
+
+    // Returns the address of a zeroed block of size words after a header
+    private static int allocate(int header, int size) throws VMError {
+        int h = take(size);
+        if (h == 0) {
+            collect();
+            h = take(size);
+            if (Run.free > Run.heapSize / 2) grow(0); // mostly live data: collect less often
+        }
+        if (h == 0 && grow(size)) h = take(size);
+        if (h == 0) throw new VMError("heap overflow");
+        Run.mem.set(h, header);
+        return h + 1;
+    }
+
+    // Doubles the heap, or enlarges it more so that a block of size words fits
+    // behind the last block; false if this would exceed Run.heapMax
+    private static boolean grow(int size) {
+        long n = Math.max(2L * Run.heapSize, (long) Run.free + 1 + size);
+        if (n > Run.heapMax) n = Run.heapMax;
+        if (n <= Run.heapSize || n < (long) Run.free + 1 + size) return false;
+        if (!Run.mem.grow((int) n)) return false;
+        Run.heap = Run.mem.array();
+        Run.heapSize = (int) n;
+        return true;
+    }
+
+    // Returns the header address of a zeroed block of size words, 0 if there is no room
+    private static int take(int size) {
+        Heap heap = Run.mem;
+        int h = Run.free;
+        if (size <= Run.heapSize - 1 - h) {
+            Run.free = h + 1 + size;
+            return h;
+        }
+        // first fit in the free list
+        int prev = 0;
+        for (h = freeList; h != 0; prev = h, h = heap.get(h + 1)) {
+            int n = heap.get(h) & INFO;
+            if (n < size) continue;
+            int next = heap.get(h + 1);
+            if (n > size) { // split, the rest stays in the list if it can hold the link
+                int r = h + 1 + size;
+                heap.set(r, FREE << KIND | (n - size - 1));
+                if (n - size - 1 > 0) {
+                    heap.set(r + 1, next);
+                    next = r;
+                }
+            }
+            if (prev == 0) freeList = next; else heap.set(prev + 1, next);
+            for (int i = h + 1; i <= h + size; i++) heap.set(i, 0);
+            return h;
+        }
+        return 0;
+    }
+
+    //----- collection
+
+    private static int size(int header) {
+        return kind(header) == OBJECT ? typeSize[header & INFO] : header & INFO;
+    }
+
+    private static int kind(int header) {
+        return (header >>> KIND) & 7;
+    }
+
+    // True if the block at adr is a char array (see Run.legacy)
+    static boolean isChars(int adr) {
+        return kind(Run.mem.get(adr - 1)) == CHARS;
+    }
+
+    // Returns the header address of the block at adr, 0 if adr is not the
+    // address of a block; walks at most one region from first[]
+    private static int block(int adr) {
+        int h = adr - 1;
+        if (h < 1 || h >= Run.free) return 0;
+        Heap heap = Run.mem;
+        int b = first[h >> REGION];
+        if (b == 0) return 0;
+        while (b < h) b += 1 + size(heap.get(b));
+        return b == h && kind(heap.get(h)) != FREE ? h : 0;
+    }
+
+    // Marks the block at adr if adr is one; pins it if the reference is ambiguous
+    private static void mark(int adr, boolean pin) {
+        if (block(adr) == 0) return;
+        Heap heap = Run.mem;
+        int header = heap.get(adr - 1);
+        if (pin) header |= PIN;
+        if ((header & MARK) == 0) {
+            header |= MARK;
+            if (nWork == work.length) {
+                int[] newWork = new int[2 * nWork];
+                System.arraycopy(work, 0, newWork, 0, nWork);
+                work = newWork;
+            }
+            work[nWork++] = adr;
+        }
+        heap.set(adr - 1, header);
+    }
+
+    // Marks the blocks that the references in block adr point to
+    private static void scan(int adr) {
+        Heap heap = Run.mem;
+        int header = heap.get(adr - 1);
+        int n = size(header);
+        switch (kind(header)) {
+            case UNTYPED:
+                for (int i = 0; i < n; i++) mark(heap.get(adr + i), true);
+                break;
+            case REFS:
+                for (int i = 1; i < n; i++) mark(heap.get(adr + i), false);
+                break;
+            case OBJECT:
+                int[] m = typeMask[header & INFO];
+                for (int i = 0; i < n; i++)
+                    if ((m[i >> 5] & 1 << (i & 31)) != 0) mark(heap.get(adr + i), false);
+                break;
+        }
+    }
+
+    // Replaces a precise reference by the new address of its block: slides
+    // the blocks of its region from firstDest[] as the compaction will
+    private static int forward(int adr) {
+        int h = adr - 1;
+        if (h < 1 || h >= Run.free) return adr;
+        Heap heap = Run.mem;
+        int b = first[h >> REGION], d = firstDest[h >> REGION], n;
+        if (b == 0) return adr;
+        for (; b <= h; b += 1 + n) {
+            int header = heap.get(b);
+            n = size(header);
+            if ((header & MARK) == 0) continue;
+            if ((header & PIN) != 0) {
+                if (b == h) return adr;
+                d = b + 1 + n;
+            } else {
+                if (b == h) return d + 1;
+                d += 1 + n;
+            }
+        }
+        return adr;
+    }
+
+    static void collect() throws VMError {
+        long start = System.nanoTime();
+        Heap heap = Run.mem;
+        int top = Run.free, h, n, header;
+        int regions = (top >> REGION) + 1;
+        if (first == null || first.length < regions) {
+            try {
+                first = new int[regions];
+                firstDest = new int[regions];
+            } catch (OutOfMemoryError e) {
+                first = null; firstDest = null;
+                throw new VMError("heap overflow");
+            }
+        }
+
+        // the first block of every region
+        Arrays.fill(first, 0, regions, 0);
+        long used = 0;
+        for (h = 1; h < top; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if (first[h >> REGION] == 0) first[h >> REGION] = h;
+            if (kind(header) != FREE) used += 1 + n;
+        }
+
+        // mark
+        nWork = 0;
+        for (int i = 0; i < Run.esp; i++) mark(Run.stack[i], true);
+        int sp = Math.min(localTop >= 0 ? localTop : Run.sp, Run.local.length);
+        for (int i = 0; i < sp; i++) mark(Run.local[i], true);
+        for (int i = 0; i < nHeld; i++) mark(held[i], true);
+        for (int i = 0; i < nFrames; i++)
+            for (int v : frames[i]) mark(v, true);
+        for (int i = 0; i < Run.data.length; i++) {
+            if (globalMask == null) mark(Run.data[i], true);
+            else if ((globalMask[i >> 5] & 1 << (i & 31)) != 0) mark(Run.data[i], false);
+        }
+        while (nWork > 0) scan(work[--nWork]);
+
+        // new addresses: live blocks slide down, pinned blocks stay
+        int dest = 1;
+        long live = 0;
+        for (h = 1; h < top; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if (first[h >> REGION] == h) firstDest[h >> REGION] = dest;
+            if ((header & MARK) == 0) continue;
+            live += 1 + n;
+            if ((header & PIN) != 0) dest = h + 1 + n;
+            else dest += 1 + n;
+        }
+
+        // update the precise references
+        if (globalMask != null) {
+            for (int i = 0; i < Run.data.length; i++)
+                if ((globalMask[i >> 5] & 1 << (i & 31)) != 0) Run.data[i] = forward(Run.data[i]);
+        }
+        for (h = 1; h < top; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if ((header & MARK) == 0) continue;
+            if (kind(header) == REFS) {
+                for (int i = 2; i <= n; i++) heap.set(h + i, forward(heap.get(h + i)));
+            } else if (kind(header) == OBJECT) {
+                int[] m = typeMask[header & INFO];
+                for (int i = 0; i < n; i++)
+                    if ((m[i >> 5] & 1 << (i & 31)) != 0) heap.set(h + 1 + i, forward(heap.get(h + 1 + i)));
+            }
+        }
+
+        // move the blocks and rebuild the free list from the gaps
+        dest = 1;
+        freeList = 0;
+        int last = 0; // last block in the free list
+        for (h = 1; h < top; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if ((header & MARK) == 0) continue;
+            if ((header & PIN) != 0) {
+                if (dest < h) {
+                    heap.set(dest, FREE << KIND | (h - dest - 1));
+                    if (h - dest - 1 > 0) {
+                        heap.set(dest + 1, 0);
+                        if (last == 0) freeList = dest; else heap.set(last + 1, dest);
+                        last = dest;
+                    }
+                }
+                heap.set(h, header & ~(MARK | PIN));
+                dest = h + 1 + n;
+            } else {
+                heap.copy(h + 1, dest + 1, n);
+                heap.set(dest, header & ~MARK);
+                dest += 1 + n;
+            }
+        }
+        heap.clear(dest, top);
+        Run.free = dest;
+
+        // slide the chars of the live char arrays together, keeping their order
+        int nChars = 0;
+        for (h = 1; h < dest; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if (kind(header) == CHARS) nChars++;
+        }
+        long[] order = new long[nChars]; // index of the first char, address
+        nChars = 0;
+        for (h = 1; h < dest; h += 1 + n) {
+            header = heap.get(h);
+            n = size(header);
+            if (kind(header) == CHARS) order[nChars++] = (long) heap.get(h + 2) << 32 | (h + 1);
+        }
+        Arrays.sort(order);
+        int to = 0;
+        for (int i = 0; i < nChars; i++) {
+            int adr = (int) order[i], from = (int) (order[i] >>> 32), len = heap.get(adr);
+            System.arraycopy(Run.chars, from, Run.chars, to, len);
+            heap.set(adr + 1, to);
+            to += len;
+        }
+        Arrays.fill(Run.chars, to, Run.charFree, (byte) 0);
+        Run.charFree = to;
+
+        long time = System.nanoTime() - start;
+        collections++;
+        totalTime += time;
+        if (time > maxTime) maxTime = time;
+        reclaimed += used - live;
+    }
+
+    static void printStats() {
+        Run.console.print("\n-- gc: " + collections + " collections, " + reclaimed + " words reclaimed, "
+                + (totalTime / 1000) + " us total pause, " + (maxTime / 1000) + " us max pause");
+    }
+}
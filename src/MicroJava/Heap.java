@@ -0,0 +1,156 @@
+/* MicroJava Heap Storage
+ *
+ * The words of the heap: the int array Run.heap, or segments of SEG words
+ * in direct memory or a memory-mapped file (Run -offheap, -mapheap), which
+ * grow without copying. Only Gc, Run.interpret() and Trace use the latter.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+abstract class Heap {
+
+    abstract int get(int adr);
+
+    abstract void set(int adr, int val);
+
+    // Number of words
+    abstract int size();
+
+    // Enlarges the heap to n words; false if there is no memory for them
+    abstract boolean grow(int n);
+
+    // The words as an array, null if they are not on the Java heap
+    int[] array() { return null; }
+
+    // Moves n words from adr from to adr to, like System.arraycopy
+    void copy(int from, int to, int n) {
+        if (to < from) for (int i = 0; i < n; i++) set(to + i, get(from + i));
+        else for (int i = n - 1; i >= 0; i--) set(to + i, get(from + i));
+    }
+
+    // Zeroes the words from..to-1
+    void clear(int from, int to) {
+        for (int i = from; i < to; i++) set(i, 0);
+    }
+
+    // Releases files; the heap must not be used afterwards
+    void close() {}
+
+    // The words in classes of the JDK, so that another Machine can use them (see Run.suspend())
+    abstract Object[] save();
+
+    // A heap from the result of save()
+    static Heap restore(Object[] s) {
+        return s.length == 1 ? new Array((int[]) s[0]) : new Mapped(s);
+    }
+
+    //----- the heap in an int array
+
+    static final class Array extends Heap {
+        private int[] a;
+
+        Array(int n) { a = new int[n]; }
+
+        Array(int[] a) { this.a = a; }
+
+        int get(int adr) { return a[adr]; }
+        void set(int adr, int val) { a[adr] = val; }
+        int size() { return a.length; }
+        int[] array() { return a; }
+        Object[] save() { return new Object[] {a}; }
+
+        boolean grow(int n) {
+            try {
+                a = Arrays.copyOf(a, n);
+            } catch (OutOfMemoryError e) {
+                return false;
+            }
+            return true;
+        }
+
+        void copy(int from, int to, int n) { System.arraycopy(a, from, a, to, n); }
+
+        void clear(int from, int to) { Arrays.fill(a, from, to, 0); }
+    }
+
+    //----- the heap outside the Java heap
+
+    static final class Mapped extends Heap {
+        private static final int
+                SHIFT = 20,
+                SEG   = 1 << SHIFT,  // words per segment
+                MASK  = SEG - 1;
+
+        private ByteBuffer[] segs = new ByteBuffer[0];
+        private int size;
+        private FileChannel file;    // null for direct memory
+
+        // A heap of n words in the file fileName, or in direct memory if fileName is null
+        Mapped(String fileName, int n) throws IOException {
+            if (fileName != null) {
+                RandomAccessFile f = new RandomAccessFile(fileName, "rw");
+                f.setLength(0); // the contents of a previous run must not show through
+                file = f.getChannel();
+            }
+            if (!grow(n)) {
+                close();
+                throw new IOException("cannot allocate " + n + " heap words");
+            }
+        }
+
+        Mapped(Object[] s) {
+            segs = (ByteBuffer[]) s[0];
+            size = (Integer) s[1];
+            file = (FileChannel) s[2];
+        }
+
+        Object[] save() { return new Object[] {segs, size, file}; }
+
+        int get(int adr) {
+            if (adr < 0 || adr >= size) throw new ArrayIndexOutOfBoundsException(adr);
+            return segs[adr >>> SHIFT].getInt((adr & MASK) << 2);
+        }
+
+        void set(int adr, int val) {
+            if (adr < 0 || adr >= size) throw new ArrayIndexOutOfBoundsException(adr);
+            segs[adr >>> SHIFT].putInt((adr & MASK) << 2, val);
+        }
+
+        int size() { return size; }
+
+        boolean grow(int n) {
+            int k = (int) (((long) n + SEG - 1) >> SHIFT);
+            if (k > segs.length) {
+                ByteBuffer[] s = Arrays.copyOf(segs, k);
+                try {
+                    for (int i = segs.length; i < k; i++) {
+                        ByteBuffer b = file == null
+                                ? ByteBuffer.allocateDirect(SEG << 2)
+                                : file.map(FileChannel.MapMode.READ_WRITE, (long) i * SEG << 2, SEG << 2);
+                        s[i] = b.order(ByteOrder.nativeOrder());
+                    }
+                } catch (IOException | OutOfMemoryError e) {
+                    return false; // the segments mapped so far are dropped with s
+                }
+                segs = s;
+            }
+            size = n;
+            return true;
+        }
+
+        void close() {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                // the mappings stay valid; nothing to report
+            }
+            file = null;
+        }
+    }
+}
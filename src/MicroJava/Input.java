@@ -0,0 +1,160 @@
+/* MicroJava Program Input
+ *
+ * The standard input of read and bread, from a buffer refilled in large
+ * blocks, or from a memory-mapped window if it is a regular file; readInt()
+ * parses numbers in place. Reads behave like System.in.read().
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+final class Input {
+
+    private static final int SIZE = 1 << 16;      // buffer size for streams
+    private static final long WINDOW = 1L << 30;  // bytes mapped at a time
+
+    private static final InputStream initialIn = System.in; // System.in when it reads file descriptor 0
+    private static Input stdin;                   // the Input of System.in
+
+    private final InputStream stream;
+    private final int size;     // buffer size for a stream
+    private FileChannel file;   // stdin as a regular file, null for a stream
+    private long next;          // file position of the next window
+    private ByteBuffer buf;     // buffered bytes: pos..lim-1; null while empty and saved
+    private int pos, lim;
+    private boolean ended;      // the last fill() found the end of the stream
+    Output prompt;              // flushed before waiting for a stream
+
+    Input(InputStream stream) {
+        this(stream, SIZE);
+    }
+
+    Input(InputStream stream, int size) {
+        this.stream = stream;
+        this.size = size;
+        if (stream == initialIn) {
+            try {
+                FileChannel ch = new FileInputStream(FileDescriptor.in).getChannel();
+                next = ch.position(); // fails for pipes
+                if (ch.size() > next) file = ch; // terminals and devices have no size
+            } catch (IOException e) {
+                file = null;
+            }
+        }
+        if (file == null) buf = ByteBuffer.wrap(new byte[size]);
+    }
+
+    // An Input from the result of save()
+    Input(Object[] s) {
+        stream = (InputStream) s[0];
+        size = (Integer) s[1];
+        file = (FileChannel) s[2];
+        next = (Long) s[3];
+        buf = (ByteBuffer) s[4];
+        pos = (Integer) s[5];
+        lim = (Integer) s[6];
+        ended = (Boolean) s[7];
+    }
+
+    // The state of this Input in classes of the JDK, so that another Machine
+    // can go on reading (see Run.suspend()); an empty buffer is dropped
+    Object[] save() {
+        if (pos == lim && file == null) {
+            buf = null;
+            pos = 0; lim = 0;
+        }
+        return new Object[] {stream, size, file, next, buf, pos, lim, ended};
+    }
+
+    // True if read() (number: readInt()) returns without waiting for the stream.
+    // A number is ready when a byte follows its digits; the non-digits before
+    // it are dropped except the last one, which may be its '-'.
+    boolean ready(boolean number) {
+        if (file != null || ended) return true;
+        if (!number) return pos < lim;
+        int i = pos;
+        while (i < lim && (buf.get(i) < '0' || buf.get(i) > '9')) i++;
+        if (i > pos) pos = i - 1;
+        while (i < lim && buf.get(i) >= '0' && buf.get(i) <= '9') i++;
+        return i < lim;
+    }
+
+    // Waits until ready(number); after an error, the input counts as ended and read() reports it
+    void await(boolean number) throws IOException {
+        try {
+            while (!ready(number)) more();
+        } catch (IOException e) {
+            ended = true;
+            throw e;
+        }
+    }
+
+    // Reads from the stream behind the buffered bytes
+    private void more() throws IOException {
+        if (buf == null) buf = ByteBuffer.wrap(new byte[size]);
+        byte[] b = buf.array();
+        if (pos > 0) {
+            System.arraycopy(b, pos, b, 0, lim - pos);
+            lim -= pos; pos = 0;
+        }
+        if (lim == b.length) { // a long number
+            b = Arrays.copyOf(b, 2 * b.length);
+            buf = ByteBuffer.wrap(b);
+        }
+        int n = stream.read(b, lim, b.length - lim);
+        if (n <= 0) ended = true;
+        else lim += n;
+    }
+
+    // The Input of the current System.in
+    static Input stdin() {
+        if (stdin == null || stdin.stream != System.in) stdin = new Input(System.in);
+        return stdin;
+    }
+
+    // Reads the next byte, -1 at the end of the input
+    int read() throws IOException {
+        if (pos == lim && !fill()) return -1;
+        return buf.get(pos++) & 0xff;
+    }
+
+    // Reads a decimal number: skips to the next digit, reads all digits and the
+    // byte after them; a '-' directly before the digits negates the number
+    int readInt() throws IOException {
+        int val = 0;
+        int prev = ' ';
+        int b = read();
+        while (b < '0' || b > '9') {
+            prev = b; b = read();
+        }
+        do {
+            val = 10 * val + b - '0';
+            if (pos == lim && !fill()) break;
+            b = buf.get(pos++);
+        } while (b >= '0' && b <= '9');
+        if (prev == '-') val = -val;
+        return val;
+    }
+
+    // Refills the buffer; false at the end of the input
+    private boolean fill() throws IOException {
+        if (file != null) {
+            long n = Math.min(file.size() - next, WINDOW);
+            if (n <= 0) return false;
+            buf = file.map(FileChannel.MapMode.READ_ONLY, next, n);
+            next += n;
+            pos = 0; lim = (int) n;
+            return true;
+        }
+        if (prompt != null) prompt.beforeInput();
+        if (buf == null) buf = ByteBuffer.wrap(new byte[size]);
+        int n = stream.read(buf.array(), 0, size);
+        pos = 0;
+        ended = n <= 0; // read() returns 0 only for an empty array
+        lim = ended ? 0 : n;
+        return !ended;
+    }
+}
@@ -0,0 +1,713 @@
+/* MicroJava Just-In-Time Compiler
+ *
+ * Translates methods that the interpreter has called threshold times, and
+ * the rest of methods whose loops have run threshold times (on-stack
+ * replacement), into classes of Java byte code; program() translates all
+ * methods into one class for Aot. The line numbers of the byte code are the
+ * addresses at which Run.interpret() reports errors. Locals and operands
+ * that a collection must see are handed to Gc.hold() before allocations.
+ */
+package MicroJava;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+public class Jit {
+
+    private static final int // instruction codes of the predecoded stream
+            load        =  1,
+            store       =  6,
+            getstatic   = 11,
+            putstatic   = 12,
+            getfield    = 13,
+            putfield    = 14,
+            const_      = 22,
+            add         = 23,
+            sub         = 24,
+            mul         = 25,
+            div         = 26,
+            rem         = 27,
+            neg         = 28,
+            shl         = 29,
+            shr         = 30,
+            new_        = 31,
+            newarray    = 32,
+            aload       = 33,
+            astore      = 34,
+            baload      = 35,
+            bastore     = 36,
+            arraylength = 37,
+            pop         = 38,
+            jmp         = 39,
+            jeq         = 40,
+            jge         = 45,
+            call        = 46,
+            return_     = 47,
+            enter       = 48,
+            exit        = 49,
+            read        = 50,
+            print       = 51,
+            bread       = 52,
+            bprint      = 53,
+            trap        = 54;
+
+    static final int threshold = 1000; // calls before a method is compiled
+
+    private static final String
+            helpers  = "MicroJava/Jit",
+            base     = "MicroJava/JitMethod",
+            prefix   = "MicroJava.jit.M",
+            source   = "MicroJava code"; // source file of generated classes
+
+    // JVM compare instructions for jeq .. jge
+    private static final int[] jvmJump = {ClassFile.if_icmpeq, ClassFile.if_icmpne,
+            ClassFile.if_icmplt, ClassFile.if_icmple, ClassFile.if_icmpgt, ClassFile.if_icmpge};
+
+    private byte[] byteCode;    // code of the program
+    private int startPC;        // address of main()
+    private Predecoder p;       // instruction stream without superinstructions
+    private StackFlow flow;     // methods and stack depths
+    private int[] counts;       // counts[t]: calls of the method or iterations of the loop at t
+    private JitMethod[] code;   // code[t]: compiled method or loop at stream index t, or null
+    private int[] frames;       // frames[j]: expression stack depth at the loop closed by j
+    private int[] state;        // state[t]: 1 = class loaded, -1 = cannot be compiled
+    private boolean[] allocates; // allocates[m]: the method at stream index m may allocate, itself or in a callee
+    private Loader loader = new Loader();
+    private String program;     // class of the whole program (see program()), else null
+
+    // p is code predecoded without superinstructions. The stream indices of
+    // Jit are those of the interpreter, because Predecoder.fuse() does not
+    // move instructions.
+    Jit(byte[] code, Predecoder p, int startPC) throws FormatException {
+        byteCode = code;
+        this.startPC = startPC;
+        this.p = p;
+        flow = new StackFlow(p, startPC);
+        counts = new int[p.size];
+        this.code = new JitMethod[p.size];
+        frames = new int[p.size];
+        state = new int[p.size];
+        allocates = new boolean[p.size];
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int m = 0; m < p.size; m = p.next(m)) {
+                if (!flow.start[m] || allocates[m]) continue;
+                for (int i = m; i < flow.end[m]; i = p.next(i)) {
+                    int op = p.ops[i];
+                    if (op == new_ || op == newarray || op == call && allocates[p.ops[i + 1]]) {
+                        allocates[m] = changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Counts a call of the method at stream index t, or an iteration of the
+    // loop that the backward jmp at stream index t closes. Returns true if
+    // the call or the rest of the loop can run compiled code.
+    boolean ready(int t) {
+        if (code[t] != null) return true;
+        if (++counts[t] != threshold) return false;
+        return compile(t);
+    }
+
+    // Calls the compiled method at stream index t. The arguments are taken
+    // from the expression stack, the result is pushed onto it.
+    void invoke(int t) throws VMError {
+        int n = p.ops[t + 1];
+        int[] args = new int[n];
+        for (int i = n - 1; i >= 0; i--) args[i] = Run.pop();
+        int top = Run.sp;
+        call();
+        if (flow.function[t]) Run.push(run(t, args, top));
+        else run(t, args, top);
+    }
+
+    // Continues the current method of the interpreter at the backward jmp at
+    // stream index j in compiled code (on-stack replacement). The locals of
+    // the frame and the expression stack of the method are handed over. When
+    // the method returns, its result is pushed and its frame is removed as
+    // by exit, so that the interpreter only has to execute return.
+    void resume(int j) throws VMError {
+        int m = method(j);
+        int nVars = p.ops[m + 2];
+        int[] frame = new int[nVars + frames[j]];
+        System.arraycopy(Run.local, Run.fp, frame, 0, nVars);
+        for (int i = frame.length - 1; i >= nVars; i--) frame[i] = Run.pop();
+        if (flow.function[m]) Run.push(run(j, frame, Run.fp));
+        else run(j, frame, Run.fp);
+        Run.sp = Run.fp;
+        Run.fp = Run.POP();
+    }
+
+    // Runs compiled code; Run.local holds frames of the interpreter up to top
+    private int run(int t, int[] args, int top) throws VMError {
+        Gc.localTop = top;
+        try {
+            return code[t].run(args);
+        } catch (VMError e) {
+            locate(e);
+            throw e;
+        } catch (StackOverflowError e) {
+            VMError v = new VMError("method stack overflow");
+            v.located = locate(e);
+            throw v;
+        } finally {
+            Gc.localTop = -1;
+        }
+    }
+
+    // Sets Run.pc for an error raised in compiled code from the line number
+    // of the innermost compiled method on the Java stack
+    static void locate(VMError e) {
+        if (locate((Throwable) e)) e.located = true;
+    }
+
+    // The same for a Throwable of the JVM, e.g. a StackOverflowError; false
+    // if it was not raised in compiled code
+    static boolean locate(Throwable e) {
+        StackTraceElement[] trace = e.getStackTrace();
+        for (int i = 0; i < trace.length; i++) {
+            if (source.equals(trace[i].getFileName()) && trace[i].getLineNumber() > 0) {
+                Run.pc = trace[i].getLineNumber();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //----- compilation
+
+    // Returns the name of the class for the method at stream index from, or
+    // for its loop closed by the jmp at stream index entry if entry >= 0
+    private String className(int from, int entry) {
+        if (entry < 0) return prefix + p.addr[from];
+        return prefix + p.addr[from] + "_" + p.addr[entry];
+    }
+
+    // Returns the stream index of the method that contains instruction i
+    private int method(int i) {
+        while (!flow.start[i]) i--;
+        return i;
+    }
+
+    // Compiles the method at stream index t, or the loop closed by the jmp at
+    // stream index t, and all methods that it may call. Returns false if one
+    // of them cannot be compiled.
+    private boolean compile(int t) {
+        int from = p.ops[t] == jmp ? method(t) : t;
+        boolean[] seen = new boolean[p.size];
+        int[] work = new int[p.size];
+        int[] closure = new int[p.size];
+        int n = 0, nClosure = 0;
+        seen[from] = true;
+        work[n++] = from;
+        while (n > 0) {
+            int m = work[--n];
+            closure[nClosure++] = m;
+            for (int i = m; i < flow.end[m]; i = p.next(i)) {
+                if (p.ops[i] == call && !seen[p.ops[i + 1]]) {
+                    seen[p.ops[i + 1]] = true;
+                    work[n++] = p.ops[i + 1];
+                }
+            }
+        }
+        for (int k = 0; k < nClosure; k++) {
+            int m = closure[k];
+            if (state[m] == 0) state[m] = define(m, -1) ? 1 : -1;
+        }
+        for (int k = 0; k < nClosure; k++) {
+            if (state[closure[k]] < 0) return false;
+        }
+        if (t != from && !define(from, t)) return false;
+        try {
+            code[t] = (JitMethod) Class.forName(className(from, t == from ? -1 : t), true, loader)
+                    .getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // Generates and verifies the class for the method at stream index from,
+    // or for its loop closed by the jmp at stream index entry if entry >= 0
+    private boolean define(int from, int entry) {
+        String name = className(from, entry);
+        try {
+            loader.add(name, generate(from, entry));
+            Class.forName(name, true, loader); // verifies the class
+            return true;
+        } catch (FormatException e) {
+            return false;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static String descriptor(int psize) {
+        StringBuilder b = new StringBuilder("(");
+        for (int i = 0; i < psize; i++) b.append('I');
+        return b.append(")I").toString();
+    }
+
+    private static void loadConst(ClassFile cf, ClassFile.Method m, int val) {
+        if (val >= -1 && val <= 5) {
+            m.put(ClassFile.iconst_0 + val);
+        } else if (val >= -128 && val <= 127) {
+            m.put(ClassFile.bipush);
+            m.put(val);
+        } else if (val >= -32768 && val <= 32767) {
+            m.put(ClassFile.sipush);
+            m.put2(val);
+        } else {
+            m.put(ClassFile.ldc_w);
+            m.put2(cf.integer(val));
+        }
+    }
+
+    // Hands the nVars locals and the values below the top n operands
+    // (b of them) to Gc.hold(), keeping the operand stack as it is; the b
+    // values pass through locals tmp..; returns the number of held values
+    private static int hold(ClassFile cf, ClassFile.Method m, int nVars, int b, int n, int tmp) throws FormatException {
+        if (tmp + b + n > 256) throw new FormatException("too many locals");
+        for (int k = 0; k < nVars; k++) {
+            m.put(ClassFile.iload);
+            m.put(k);
+            helper(cf, m, "hold", "(I)V");
+        }
+        if (b == 0) return nVars;
+        for (int k = b + n - 1; k >= 0; k--) {
+            m.put(ClassFile.istore);
+            m.put(tmp + k);
+        }
+        for (int k = 0; k < b + n; k++) {
+            m.put(ClassFile.iload);
+            m.put(tmp + k);
+            if (k < b) {
+                m.put(ClassFile.dup);
+                helper(cf, m, "hold", "(I)V");
+            }
+        }
+        return nVars + b;
+    }
+
+    private static void helper(ClassFile cf, ClassFile.Method m, String name, String desc) {
+        m.put(ClassFile.invokestatic);
+        m.put2(cf.methodRef(helpers, name, desc));
+    }
+
+    // Generates the class for the method at stream index from, with the
+    // method m (see translate())
+    private byte[] generate(int from, int entry) throws FormatException {
+        int psize = p.ops[from + 1];
+        String name = className(from, entry).replace('.', '/');
+        String desc = entry < 0 ? descriptor(psize) : "([I)I";
+        ClassFile cf = new ClassFile(name, base);
+        cf.sourceFile(source);
+
+        ClassFile.Method init = cf.method(ClassFile.ACC_PUBLIC, "<init>", "()V");
+        init.put(ClassFile.aload_0);
+        init.put(ClassFile.invokespecial);
+        init.put2(cf.methodRef(base, "<init>", "()V"));
+        init.put(ClassFile.return_);
+        init.maxStack = 1;
+        init.maxLocals = 1;
+
+        ClassFile.Method run = cf.method(ClassFile.ACC_PUBLIC, "run", "([I)I");
+        if (entry < 0) {
+            for (int i = 0; i < psize; i++) {
+                run.put(ClassFile.aload_1);
+                loadConst(cf, run, i);
+                run.put(ClassFile.iaload);
+            }
+        } else {
+            run.put(ClassFile.aload_1);
+        }
+        run.put(ClassFile.invokestatic);
+        run.put2(cf.methodRef(name, "m", desc));
+        run.put(ClassFile.ireturn);
+        run.maxStack = psize + 2;
+        run.maxLocals = 2;
+
+        translate(cf, from, entry, "m");
+        return cf.toBytes();
+    }
+
+    // Generates a class with a static method m<adr> for every method of the
+    // program (adr = address of its enter instruction) and a main method
+    // that runs it with Aot.execute()
+    byte[] program(String name, int dataSize) throws FormatException {
+        program = name.replace('.', '/');
+        ClassFile cf = new ClassFile(program, "java/lang/Object");
+        cf.sourceFile(source);
+        for (int i = 0; i < p.size; i = p.next(i)) {
+            if (flow.start[i]) translate(cf, i, -1, "m" + p.addr[i]);
+        }
+        ClassFile.Method main = cf.method(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC,
+                "main", "([Ljava/lang/String;)V");
+        loadConst(cf, main, dataSize);
+        loadConst(cf, main, startPC);
+        main.put(ClassFile.ldc_w);
+        main.put2(cf.classRef(program));
+        main.put(ClassFile.invokestatic);
+        main.put2(cf.methodRef("MicroJava/Aot", "execute", "(IILjava/lang/Class;)V"));
+        main.put(ClassFile.return_);
+        main.maxStack = 3;
+        main.maxLocals = 1;
+        byte[] b = cf.toBytes();
+        program = null;
+        return b;
+    }
+
+    // Generates the static method mName for the method at stream index from.
+    // It takes the parameters as ints and returns the result (0 for a void
+    // method); locals become JVM locals and the expression stack the operand
+    // stack, which is not limited. If entry >= 0, the method is entered at
+    // the target of the jmp at stream index entry with an array holding the
+    // locals followed by the expression stack.
+    private void translate(ClassFile cf, int from, int entry, String mName) throws FormatException {
+        int psize = p.ops[from + 1], nVars = p.ops[from + 2];
+        int to = flow.end[from];
+        int maxDepth = flow.analyze(from);
+        int[] depth = flow.depth;
+        String desc = entry < 0 ? descriptor(psize) : "([I)I";
+        ClassFile.Method m = cf.method(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, mName, desc);
+        m.maxStack = maxDepth + 3; // helpers take up to 3 operands more
+        int tmp = nVars + 1;                // locals for the values below the operands of hold()
+        m.maxLocals = tmp + maxDepth;
+        int[] pos = new int[to - from];    // pos[i - from]: offset of stream instruction i in m
+        int[] fixups = new int[to - from]; // offsets of jumps, their targets are still stream indices
+        int[] targets = new int[to - from];
+        int nFixups = 0;
+        int held = 0;                      // values handed to Gc.hold() before the current instruction
+        for (int i = from; i < to; i = p.next(i)) {
+            if (i != from && depth[i] < 0) continue; // unreachable
+            int op = p.ops[i];
+            pos[i - from] = m.size;
+            m.line(Predecoder.faultPc(byteCode, p.addr[i]));
+            switch (op) {
+                case load:
+                    m.put(ClassFile.iload);
+                    m.put(p.ops[i + 1]);
+                    break;
+                case store:
+                    m.put(ClassFile.istore);
+                    m.put(p.ops[i + 1]);
+                    break;
+                case getstatic:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "getstatic", "(I)I");
+                    break;
+                case putstatic:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "putstatic", "(II)V");
+                    break;
+                case getfield:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "getfield", "(II)I");
+                    break;
+                case putfield:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "putfield", "(III)V");
+                    break;
+                case const_:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    break;
+                case add:
+                    m.put(ClassFile.iadd);
+                    break;
+                case sub:
+                    m.put(ClassFile.isub);
+                    break;
+                case mul:
+                    m.put(ClassFile.imul);
+                    break;
+                case div:
+                    helper(cf, m, "div", "(II)I");
+                    break;
+                case rem:
+                    helper(cf, m, "rem", "(II)I");
+                    break;
+                case neg:
+                    m.put(ClassFile.ineg);
+                    break;
+                case shl:
+                    m.put(ClassFile.ishl);
+                    break;
+                case shr:
+                    m.put(ClassFile.ishr);
+                    break;
+                case new_:
+                    held = hold(cf, m, nVars, depth[i], 0, tmp);
+                    loadConst(cf, m, p.ops[i + 1]);
+                    loadConst(cf, m, p.addr[i]);
+                    helper(cf, m, "alloc", "(II)I");
+                    break;
+                case newarray:
+                    held = hold(cf, m, nVars, depth[i] - 1, 1, tmp);
+                    loadConst(cf, m, p.ops[i + 1]);
+                    loadConst(cf, m, p.addr[i]);
+                    helper(cf, m, "newarray", "(III)I");
+                    break;
+                case aload:
+                    helper(cf, m, "aload", "(II)I");
+                    break;
+                case astore:
+                    helper(cf, m, "astore", "(III)V");
+                    break;
+                case baload:
+                    helper(cf, m, "baload", "(II)I");
+                    break;
+                case bastore:
+                    helper(cf, m, "bastore", "(III)V");
+                    break;
+                case arraylength:
+                    helper(cf, m, "arraylength", "(I)I");
+                    break;
+                case pop:
+                    m.put(ClassFile.pop);
+                    break;
+                case call:
+                    int t = p.ops[i + 1];
+                    if (allocates[t]) held = hold(cf, m, nVars, depth[i] - p.ops[t + 1], p.ops[t + 1], tmp);
+                    helper(cf, m, "call", "()V");
+                    m.put(ClassFile.invokestatic);
+                    if (program != null)
+                        m.put2(cf.methodRef(program, "m" + p.addr[t], descriptor(p.ops[t + 1])));
+                    else
+                        m.put2(cf.methodRef(className(t, -1).replace('.', '/'), "m", descriptor(p.ops[t + 1])));
+                    if (!flow.function[t]) m.put(ClassFile.pop);
+                    break;
+                case return_:
+                    if (!flow.function[from]) m.put(ClassFile.iconst_0);
+                    m.put(ClassFile.ireturn);
+                    break;
+                case enter:
+                    if (entry >= 0) { // unpack the frame, then jump into the loop
+                        int target = p.ops[entry + 1];
+                        frames[entry] = depth[target];
+                        m.put(ClassFile.aload_0);
+                        m.put(ClassFile.astore);
+                        m.put(nVars);
+                        for (int k = 0; k < nVars + depth[target]; k++) {
+                            m.put(ClassFile.aload);
+                            m.put(nVars);
+                            loadConst(cf, m, k);
+                            m.put(ClassFile.iaload);
+                            if (k < nVars) {
+                                m.put(ClassFile.istore);
+                                m.put(k);
+                            }
+                        }
+                        fixups[nFixups] = m.size;
+                        targets[nFixups++] = target;
+                        m.put(ClassFile.goto_);
+                        m.put2(0);
+                        break;
+                    }
+                    loadConst(cf, m, nVars);
+                    helper(cf, m, "enter", "(I)V");
+                    for (int k = psize; k < nVars; k++) {
+                        m.put(ClassFile.iconst_0);
+                        m.put(ClassFile.istore);
+                        m.put(k);
+                    }
+                    break;
+                case exit:
+                    if (entry >= 0) break; // the frame belongs to the interpreter
+                    loadConst(cf, m, nVars + 2);
+                    helper(cf, m, "exit", "(I)V");
+                    break;
+                case read:
+                    helper(cf, m, "read", "()I");
+                    break;
+                case print:
+                    helper(cf, m, "print", "(II)V");
+                    break;
+                case bread:
+                    helper(cf, m, "bread", "()I");
+                    break;
+                case bprint:
+                    helper(cf, m, "bprint", "(II)V");
+                    break;
+                case trap:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "trap", "(I)Ljava/lang/Exception;");
+                    m.put(ClassFile.athrow);
+                    break;
+                case 0:
+                    loadConst(cf, m, p.ops[i + 1]);
+                    helper(cf, m, "wrong", "(I)Ljava/lang/Exception;");
+                    m.put(ClassFile.athrow);
+                    break;
+                default:
+                    if (op >= jmp && op <= jge) {
+                        fixups[nFixups] = m.size;
+                        targets[nFixups++] = p.ops[i + 1];
+                        m.put(op == jmp ? ClassFile.goto_ : jvmJump[op - jeq]);
+                        m.put2(0);
+                    } else {
+                        throw new FormatException("cannot compile opcode " + op + " at " + p.addr[i]);
+                    }
+            }
+            if (held > 0) {
+                loadConst(cf, m, held);
+                helper(cf, m, "release", "(I)V");
+                held = 0;
+            }
+        }
+        for (int k = 0; k < nFixups; k++) {
+            int offset = pos[targets[k] - from] - fixups[k];
+            if (offset < -32768 || offset > 32767) throw new FormatException("jump too far");
+            m.put2(fixups[k] + 1, offset);
+        }
+    }
+
+    // Defines the generated classes when they are first used
+    private static class Loader extends ClassLoader {
+        private HashMap<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        Loader() {
+            super(Jit.class.getClassLoader());
+        }
+
+        void add(String name, byte[] b) {
+            classes.put(name, b);
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = classes.remove(name);
+            if (b == null) throw new ClassNotFoundException(name);
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    //----- helpers called by compiled code
+
+    // Compiled frames are on the JVM stack; Run.sp only counts their words against Run.mStackMax.
+
+    // return address of a call
+    public static void call() throws VMError {
+        if (Run.sp == Run.mStackMax) throw new VMError("method stack overflow");
+        Run.sp++;
+    }
+
+    // frame pointer and nVars locals of an enter
+    public static void enter(int nVars) throws VMError {
+        if (Run.sp + 1 + nVars > Run.mStackMax) throw new VMError("method stack overflow");
+        Run.sp += 1 + nVars;
+    }
+
+    // frame and return address of a method with n - 2 locals
+    public static void exit(int n) {
+        Run.sp -= n;
+    }
+
+    public static int getstatic(int s) {
+        return Run.data[s];
+    }
+
+    public static void putstatic(int val, int s) {
+        Run.data[s] = val;
+    }
+
+    public static int getfield(int adr, int f) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        return Run.heap[adr + f];
+    }
+
+    public static void putfield(int adr, int val, int f) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        Run.heap[adr + f] = val;
+    }
+
+    public static int div(int x, int y) throws VMError {
+        if (y == 0) throw new VMError("division by zero");
+        return x / y;
+    }
+
+    public static int rem(int x, int y) throws VMError {
+        if (y == 0) throw new VMError("division by zero");
+        return x % y;
+    }
+
+    public static void hold(int val) {
+        Gc.hold(val);
+    }
+
+    public static void release(int n) {
+        Gc.release(n);
+    }
+
+    public static int alloc(int size, int site) throws VMError {
+        return Gc.newObject(size, site);
+    }
+
+    public static int newarray(int len, int b, int site) throws VMError {
+        return Gc.newArray(len, b, site);
+    }
+
+    public static int aload(int adr, int idx) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+        return Run.heap[adr+1+idx];
+    }
+
+    public static void astore(int adr, int idx, int val) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+        Run.heap[adr+1+idx] = val;
+    }
+
+    public static int baload(int adr, int idx) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+        return Run.chars[Run.heap[adr + 1] + idx];
+    }
+
+    public static void bastore(int adr, int idx, int val) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+        Run.chars[Run.heap[adr + 1] + idx] = (byte)val;
+    }
+
+    public static int arraylength(int adr) throws VMError {
+        if (adr == 0) throw new VMError("null reference used");
+        return Run.heap[adr];
+    }
+
+    public static int read() throws VMError {
+        try {
+            return Run.readInt();
+        } catch (IOException ex) {
+            throw new VMError("end of input");
+        }
+    }
+
+    public static int bread() throws VMError {
+        try {
+            return Run.readByte();
+        } catch (IOException ex) {
+            throw new VMError("end of input");
+        }
+    }
+
+    public static void print(int val, int len) {
+        Run.print(val, len);
+    }
+
+    public static void bprint(int val, int len) {
+        Run.bprint(val, len);
+    }
+
+    public static Exception trap(int n) {
+        return new VMError("trap(" + n + ")");
+    }
+
+    public static Exception wrong(int op) {
+        return new VMError("wrong opcode " + op);
+    }
+}
@@ -0,0 +1,10 @@
+/* MicroJava Compiled Method
+ *
+ * Superclass of the classes that Jit generates.
+ */
+package MicroJava;
+
+public abstract class JitMethod {
+
+    public abstract int run(int[] args) throws VMError;
+}
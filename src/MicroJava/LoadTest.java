@@ -0,0 +1,160 @@
+/* MicroJava Load Test
+ *
+ * Starts n executions of echo.obj (mj_files/echo.mj) with startVirtual(),
+ * each reading from a pipe of its own, and prints the platform threads, the
+ * machines and the heap per execution once all of them wait for input. It
+ * needs virtual threads (Java 21 or later).
+ */
+package MicroJava;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class LoadTest {
+
+    static final String[] options = {"-heap", "1000", "-mstack", "100"}; // small programs
+
+    static final int[] defaults = {1000, 2000, 4000, 8000};
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("use: java MicroJava.LoadTest <echo.obj> [n ...]");
+            return;
+        }
+        int[] levels = defaults;
+        if (args.length > 1) {
+            levels = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) levels[i - 1] = Integer.parseInt(args[i]);
+        }
+        Engine engine = new Engine();
+        Program p;
+        try {
+            p = engine.load(args[0]);
+        } catch (IOException e) {
+            System.out.println("-- cannot load " + args[0] + ": " + e.getMessage());
+            return;
+        }
+        if (!Execution.virtualThreads()) {
+            System.out.println("-- LoadTest needs virtual threads, Java 21 or later; this JVM is Java "
+                    + Runtime.version().feature());
+            return;
+        }
+        System.out.println("executions  threads  machines  heap/execution");
+        for (int n : levels) {
+            if (!level(engine, p, n)) return;
+        }
+    }
+
+    // Runs n executions of p at the same time; false if one of them failed
+    static boolean level(Engine engine, Program p, int n) {
+        long base = usedHeap();
+        List<Pipe> pipes = new ArrayList<Pipe>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < n; i++) {
+            Pipe in = new Pipe();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pipes.add(in);
+            outputs.add(out);
+            results.add(engine.execution(p, in, out, options).startVirtual());
+        }
+        long deadline = System.currentTimeMillis() + 60000;
+        while (engine.waiting() < n) {
+            if (System.currentTimeMillis() > deadline) {
+                System.out.println("-- only " + engine.waiting() + " of " + n + " executions wait for input");
+                return false;
+            }
+            sleep(10);
+        }
+        long perExecution = (usedHeap() - base) / n;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("%10d %8d %9d %12d B%n", n, threads, engine.machines(), perExecution);
+        for (Pipe in : pipes) in.write("7 0\n");
+        for (int i = 0; i < n; i++) {
+            int r;
+            try {
+                r = results.get(i).get(60, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                System.out.println("-- execution " + i + " failed: " + e);
+                return false;
+            }
+            String text = outputs.get(i).toString();
+            if (r != Execution.completed || !text.equals("7\n")) {
+                System.out.println("-- execution " + i + ": result " + r + ", output \"" + text + "\"");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            sleep(20);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // An input stream that blocks until the test writes to it; it waits on a
+    // lock rather than a monitor, so a waiting virtual thread leaves its carrier
+    static final class Pipe extends InputStream {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition written = lock.newCondition();
+        private byte[] data = new byte[0];
+        private int pos;
+
+        void write(String s) {
+            lock.lock();
+            try {
+                data = s.getBytes();
+                pos = 0;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            lock.lock();
+            try {
+                while (pos == data.length) written.awaitUninterruptibly();
+                int n = Math.min(len, data.length - pos);
+                System.arraycopy(data, pos, b, off, n);
+                pos += n;
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int available() {
+            lock.lock();
+            try {
+                return data.length - pos;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
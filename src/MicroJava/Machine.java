@@ -0,0 +1,152 @@
+/* MicroJava Machine
+ *
+ * One copy of the VM for Engine. The VM keeps its state in static fields
+ * (Run, Gc, Jit, ...), so a machine loads the MicroJava classes once more in
+ * a class loader of its own; their static fields are separate from those of
+ * every other machine and of the host. A machine runs one program at a time.
+ * Code that it compiles (Jit) is defined below its loader and sees its Run.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+final class Machine {
+
+    private final Method run, prepare, slice, cancel, suspend, resume, await, decode;  // methods of Run in this machine
+    private final Field steps, heapSize;                                               // fields of Run in this machine
+    long idleSince;                                                                    // System.nanoTime() when Engine got it back
+
+    Machine(ClassLoader parent) {
+        try {
+            Class<?> c = Class.forName("MicroJava.Run", true, new Loader(parent));
+            run = c.getDeclaredMethod("run", String[].class, String.class, Object[].class,
+                    InputStream.class, PrintStream.class);
+            prepare = c.getDeclaredMethod("prepare", String[].class, String.class, Object[].class,
+                    InputStream.class, PrintStream.class, boolean.class, boolean.class);
+            slice = c.getDeclaredMethod("slice", long.class);
+            cancel = c.getDeclaredMethod("cancel");
+            suspend = c.getDeclaredMethod("suspend");
+            resume = c.getDeclaredMethod("resume", Object[].class);
+            await = c.getDeclaredMethod("await", Object[].class);
+            decode = c.getDeclaredMethod("decode", byte[].class);
+            steps = c.getDeclaredField("steps");
+            heapSize = c.getDeclaredField("heapSize");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot load the MicroJava classes", e);
+        }
+        run.setAccessible(true);
+        prepare.setAccessible(true);
+        slice.setAccessible(true);
+        cancel.setAccessible(true);
+        suspend.setAccessible(true);
+        resume.setAccessible(true);
+        await.setAccessible(true);
+        decode.setAccessible(true);
+        steps.setAccessible(true);
+        heapSize.setAccessible(true);
+    }
+
+    // Runs p (see Run.run()); returns one of the results in Execution
+    int run(Program p, String[] options, InputStream in, PrintStream out) {
+        return (Integer) invoke(run, options, p.name(), p.decoded, in, out);
+    }
+
+    // Sets p up to run in slices (see Run.prepare()); returns Execution.running or rejected
+    int start(Program p, String[] options, InputStream in, PrintStream out, boolean parking) {
+        return (Integer) invoke(prepare, options, p.name(), p.decoded, in, out, true, parking);
+    }
+
+    // Runs the started program for about quantum instructions (see Run.slice())
+    int slice(long quantum) {
+        return (Integer) invoke(slice, quantum);
+    }
+
+    // Stops the started program with an exception between two slices (see Run.cancel())
+    int cancel() {
+        return (Integer) invoke(cancel);
+    }
+
+    // Takes a program that is between two slices, or waits for input, out of this machine (see Run.suspend())
+    Object[] suspend() {
+        return (Object[]) invoke(suspend);
+    }
+
+    // Continues a suspended program on this machine
+    void resume(Object[] state) {
+        invoke(resume, (Object) state);
+    }
+
+    // Waits until a suspended program can read; the machine may run another program meanwhile
+    void await(Object[] state) {
+        invoke(await, (Object) state);
+    }
+
+    // Instructions executed by the last run, if it was counted (see Run.steps)
+    long steps() {
+        try {
+            return steps.getLong(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Size of the heap in words at the end of the last run
+    int heapSize() {
+        try {
+            return heapSize.getInt(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Decodes an object file for a Program (see Run.decode()): an Object[] or what is wrong with it
+    Object decode(byte[] image) {
+        return invoke(decode, (Object) image);
+    }
+
+    private static Object invoke(Method m, Object... args) {
+        try {
+            return m.invoke(null, args);
+        } catch (InvocationTargetException e) { // a failure of the VM itself
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new IllegalStateException(t);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Loads the classes of package MicroJava itself, all others through parent
+    private static class Loader extends ClassLoader {
+
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("MicroJava.")) return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] b;
+                    InputStream s = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                    if (s == null) throw new ClassNotFoundException(name);
+                    try {
+                        b = s.readAllBytes();
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    } finally {
+                        try { s.close(); } catch (IOException e) {}
+                    }
+                    c = defineClass(name, b, 0, b.length);
+                }
+                if (resolve) resolveClass(c);
+                return c;
+            }
+        }
+    }
+}
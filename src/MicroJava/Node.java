@@ -0,0 +1,616 @@
+/* MicroJava Tree Nodes
+ *
+ * Nodes of the tree interpreter (see Tree). A node evaluates itself in the
+ * frame of its method: the locals, then temporaries, then the result. The
+ * Generic* nodes replace themselves by specialized nodes when first run.
+ * Frames and operands that wait for an allocating operand are held in Gc.
+ */
+package MicroJava;
+
+import java.io.IOException;
+
+abstract class Node {
+
+    private static final int // instruction codes of the predecoded stream
+            add         = 23,
+            sub         = 24,
+            mul         = 25,
+            div         = 26,
+            rem         = 27,
+            shl         = 29,
+            shr         = 30,
+            jeq         = 40,
+            jne         = 41,
+            jlt         = 42,
+            jle         = 43,
+            jgt         = 44;
+
+    Node parent;
+    Node a, b, c; // operands
+    int adr;      // code address of the instruction, for error messages
+
+    Node(Node a, Node b, Node c) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        if (a != null) a.parent = this;
+        if (b != null) b.parent = this;
+        if (c != null) c.parent = this;
+    }
+
+    // Evaluates the node in frame f. Expressions return their value,
+    // statements 0, and the last node of a block the index of the next
+    // block, or -1 when the method returns.
+    abstract int eval(int[] f) throws VMError;
+
+    // True if evaluating the node may allocate: it contains a new, a
+    // newarray or a call
+    boolean allocates() {
+        return a != null && a.allocates() || b != null && b.allocates() || c != null && c.allocates();
+    }
+
+    // Replaces operand old by n
+    void replace(Node old, Node n) {
+        if (a == old) a = n;
+        else if (b == old) b = n;
+        else if (c == old) c = n;
+        n.parent = this;
+    }
+
+    // Replaces this node by n in the tree and returns n
+    final Node rewrite(Node n) {
+        n.adr = adr;
+        parent.replace(this, n);
+        return n;
+    }
+
+    final VMError error(String msg) {
+        Run.pc = Predecoder.faultPc(Run.code, adr);
+        VMError e = new VMError(msg);
+        e.located = true;
+        return e;
+    }
+
+    static boolean test(int op, int x, int y) {
+        switch (op) {
+            case jeq: return x == y;
+            case jne: return x != y;
+            case jlt: return x < y;
+            case jle: return x <= y;
+            case jgt: return x > y;
+            default:  return x >= y;
+        }
+    }
+
+    //----- expressions
+
+    static final class Const extends Node {
+        final int val;
+        Const(int val) { super(null, null, null); this.val = val; }
+        int eval(int[] f) { return val; }
+    }
+
+    static final class Local extends Node {
+        final int n;
+        Local(int n) { super(null, null, null); this.n = n; }
+        int eval(int[] f) { return f[n]; }
+    }
+
+    static final class Getstatic extends Node {
+        final int s;
+        Getstatic(int s) { super(null, null, null); this.s = s; }
+        int eval(int[] f) { return Run.data[s]; }
+    }
+
+    static final class Getfield extends Node {
+        final int off;
+        Getfield(Node a, int off) { super(a, null, null); this.off = off; }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (x == 0) throw error("null reference used");
+            return Run.heap[x + off];
+        }
+    }
+
+    // Binary arithmetic, specializes itself on its first execution
+    static final class GenericArith extends Node {
+        final int op;
+        GenericArith(int op, Node a, Node b) { super(a, b, null); this.op = op; }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f), y = b.eval(f);
+            Node n;
+            if ((op == add || op == sub) && b instanceof Const) {
+                int k = op == add ? ((Const) b).val : -((Const) b).val;
+                if (a instanceof Local) n = new LocalAddConst(((Local) a).n, k);
+                else n = new AddConst(a, k);
+            } else if ((op == div || op == rem) && b instanceof Const && ((Const) b).val != 0) {
+                n = op == div ? new DivConst(a, ((Const) b).val) : new RemConst(a, ((Const) b).val);
+            } else {
+                switch (op) {
+                    case add: n = new Add(a, b); break;
+                    case sub: n = new Sub(a, b); break;
+                    case mul: n = new Mul(a, b); break;
+                    case div: n = new Div(a, b); break;
+                    case rem: n = new Rem(a, b); break;
+                    case shl: n = new Shl(a, b); break;
+                    default:  n = new Shr(a, b); break;
+                }
+            }
+            rewrite(n);
+            switch (op) {
+                case add: return x + y;
+                case sub: return x - y;
+                case mul: return x * y;
+                case div: if (y == 0) throw error("division by zero"); return x / y;
+                case rem: if (y == 0) throw error("division by zero"); return x % y;
+                case shl: return x << y;
+                default:  return x >> y;
+            }
+        }
+    }
+
+    static final class Add extends Node {
+        Add(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError { return a.eval(f) + b.eval(f); }
+    }
+
+    static final class Sub extends Node {
+        Sub(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError { return a.eval(f) - b.eval(f); }
+    }
+
+    static final class Mul extends Node {
+        Mul(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError { return a.eval(f) * b.eval(f); }
+    }
+
+    static final class Div extends Node {
+        Div(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f), y = b.eval(f);
+            if (y == 0) throw error("division by zero");
+            return x / y;
+        }
+    }
+
+    static final class Rem extends Node {
+        Rem(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f), y = b.eval(f);
+            if (y == 0) throw error("division by zero");
+            return x % y;
+        }
+    }
+
+    static final class Shl extends Node {
+        Shl(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError { return a.eval(f) << b.eval(f); }
+    }
+
+    static final class Shr extends Node {
+        Shr(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError { return a.eval(f) >> b.eval(f); }
+    }
+
+    static final class AddConst extends Node {
+        final int k;
+        AddConst(Node a, int k) { super(a, null, null); this.k = k; }
+        int eval(int[] f) throws VMError { return a.eval(f) + k; }
+    }
+
+    static final class LocalAddConst extends Node {
+        final int n, k;
+        LocalAddConst(int n, int k) { super(null, null, null); this.n = n; this.k = k; }
+        int eval(int[] f) { return f[n] + k; }
+    }
+
+    static final class DivConst extends Node {
+        final int k;
+        DivConst(Node a, int k) { super(a, null, null); this.k = k; }
+        int eval(int[] f) throws VMError { return a.eval(f) / k; }
+    }
+
+    static final class RemConst extends Node {
+        final int k;
+        RemConst(Node a, int k) { super(a, null, null); this.k = k; }
+        int eval(int[] f) throws VMError { return a.eval(f) % k; }
+    }
+
+    static final class Neg extends Node {
+        Neg(Node a) { super(a, null, null); }
+        int eval(int[] f) throws VMError { return -a.eval(f); }
+    }
+
+    static final class New extends Node {
+        final int size;
+        New(int size) { super(null, null, null); this.size = size; }
+        boolean allocates() { return true; }
+        int eval(int[] f) throws VMError {
+            try {
+                return Gc.newObject(size, adr);
+            } catch (VMError e) {
+                throw error(e.getMessage());
+            }
+        }
+    }
+
+    static final class NewArray extends Node {
+        final int bytes; // 0: char array
+        NewArray(Node a, int bytes) { super(a, null, null); this.bytes = bytes; }
+        boolean allocates() { return true; }
+        int eval(int[] f) throws VMError {
+            int len = a.eval(f);
+            try {
+                return Gc.newArray(len, bytes, adr);
+            } catch (VMError e) {
+                throw error(e.getMessage());
+            }
+        }
+    }
+
+    // Array element, specializes itself on its first execution
+    static final class GenericALoad extends Node {
+        final boolean holds; // x must be held while b is evaluated
+        GenericALoad(Node a, Node b) { super(a, b, null); holds = b.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int i = b.eval(f);
+            if (holds) Gc.release(1);
+            if (a instanceof Local && b instanceof Local) rewrite(new ALoadLocals(((Local) a).n, ((Local) b).n));
+            else if (b instanceof Const && ((Const) b).val >= 0) rewrite(new ALoadConst(a, ((Const) b).val));
+            else rewrite(new ALoad(a, b));
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            return Run.heap[x+1+i];
+        }
+    }
+
+    static final class ALoad extends Node {
+        final boolean holds;
+        ALoad(Node a, Node b) { super(a, b, null); holds = b.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int i = b.eval(f);
+            if (holds) Gc.release(1);
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            return Run.heap[x+1+i];
+        }
+    }
+
+    static final class ALoadLocals extends Node {
+        final int n, m;
+        ALoadLocals(int n, int m) { super(null, null, null); this.n = n; this.m = m; }
+        int eval(int[] f) throws VMError {
+            int x = f[n], i = f[m];
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            return Run.heap[x+1+i];
+        }
+    }
+
+    static final class ALoadConst extends Node { // index is a constant >= 0
+        final int i;
+        ALoadConst(Node a, int i) { super(a, null, null); this.i = i; }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (x == 0) throw error("null reference used");
+            if (i >= Run.heap[x]) throw error("index out of bounds");
+            return Run.heap[x+1+i];
+        }
+    }
+
+    static final class BALoad extends Node {
+        final boolean holds;
+        BALoad(Node a, Node b) { super(a, b, null); holds = b.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int i = b.eval(f);
+            if (holds) Gc.release(1);
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            return Run.chars[Run.heap[x + 1] + i];
+        }
+    }
+
+    static final class ArrayLength extends Node {
+        ArrayLength(Node a) { super(a, null, null); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (x == 0) throw error("null reference used");
+            return Run.heap[x];
+        }
+    }
+
+    static final class Read extends Node {
+        Read() { super(null, null, null); }
+        int eval(int[] f) throws VMError {
+            try {
+                return Run.readInt();
+            } catch (IOException ex) {
+                throw error("end of input");
+            }
+        }
+    }
+
+    static final class BRead extends Node {
+        BRead() { super(null, null, null); }
+        int eval(int[] f) throws VMError {
+            try {
+                return Run.readByte();
+            } catch (IOException ex) {
+                throw error("end of input");
+            }
+        }
+    }
+
+    // Call of the method at stream index target, binds itself to the tree of
+    // that method on its first execution
+    static final class GenericCall extends Node {
+        final Tree tree;
+        final int target;
+        final Node[] args;
+        GenericCall(Tree tree, int target, Node[] args) {
+            super(null, null, null);
+            this.tree = tree;
+            this.target = target;
+            this.args = args;
+            for (int i = 0; i < args.length; i++) args[i].parent = this;
+        }
+        boolean allocates() { return true; }
+        void replace(Node old, Node n) {
+            for (int i = 0; i < args.length; i++) if (args[i] == old) args[i] = n;
+            n.parent = this;
+        }
+        int eval(int[] f) throws VMError {
+            return rewrite(new Call(tree.method(target), args)).eval(f);
+        }
+    }
+
+    static final class Call extends Node {
+        final Method m;
+        final Node[] args;
+        Call(Method m, Node[] args) {
+            super(null, null, null);
+            this.m = m;
+            this.args = args;
+            for (int i = 0; i < args.length; i++) args[i].parent = this;
+        }
+        boolean allocates() { return true; }
+        void replace(Node old, Node n) {
+            for (int i = 0; i < args.length; i++) if (args[i] == old) args[i] = n;
+            n.parent = this;
+        }
+        int eval(int[] f) throws VMError {
+            int[] g = new int[m.frameSize];
+            Gc.holdFrame(g);
+            for (int i = 0; i < args.length; i++) g[i] = args[i].eval(f);
+            if (Run.sp == Run.mStackMax) throw error("method stack overflow"); // return address
+            Run.sp++;
+            int val;
+            try {
+                val = m.eval(g);
+            } catch (StackOverflowError e) { // of the Java stack, in this call or a deeper one
+                throw error("method stack overflow");
+            }
+            Gc.releaseFrame();
+            return val;
+        }
+    }
+
+    //----- statements
+
+    static final class Store extends Node {
+        final int n;
+        Store(int n, Node a) { super(a, null, null); this.n = n; }
+        int eval(int[] f) throws VMError { f[n] = a.eval(f); return 0; }
+    }
+
+    static final class Putstatic extends Node {
+        final int s;
+        Putstatic(int s, Node a) { super(a, null, null); this.s = s; }
+        int eval(int[] f) throws VMError { Run.data[s] = a.eval(f); return 0; }
+    }
+
+    static final class Putfield extends Node {
+        final int off;
+        final boolean holds;
+        Putfield(Node a, Node b, int off) { super(a, b, null); this.off = off; holds = b.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int val = b.eval(f);
+            if (holds) Gc.release(1);
+            if (x == 0) throw error("null reference used");
+            Run.heap[x + off] = val;
+            return 0;
+        }
+    }
+
+    static final class AStore extends Node {
+        final boolean holds;
+        AStore(Node a, Node b, Node c) { super(a, b, c); holds = b.allocates() || c.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int i = b.eval(f), val = c.eval(f);
+            if (holds) Gc.release(1);
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            Run.heap[x+1+i] = val;
+            return 0;
+        }
+    }
+
+    static final class BAStore extends Node {
+        final boolean holds;
+        BAStore(Node a, Node b, Node c) { super(a, b, c); holds = b.allocates() || c.allocates(); }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int i = b.eval(f), val = c.eval(f);
+            if (holds) Gc.release(1);
+            if (x == 0) throw error("null reference used");
+            if (i < 0 || i >= Run.heap[x]) throw error("index out of bounds");
+            Run.chars[Run.heap[x + 1] + i] = (byte)val;
+            return 0;
+        }
+    }
+
+    static final class Print extends Node {
+        Print(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError {
+            int val = a.eval(f), len = b.eval(f);
+            Run.print(val, len);
+            return 0;
+        }
+    }
+
+    static final class BPrint extends Node {
+        BPrint(Node a, Node b) { super(a, b, null); }
+        int eval(int[] f) throws VMError {
+            int val = a.eval(f), len = b.eval(f);
+            Run.bprint(val, len);
+            return 0;
+        }
+    }
+
+    static final class Eval extends Node { // value is not used
+        Eval(Node a) { super(a, null, null); }
+        int eval(int[] f) throws VMError { a.eval(f); return 0; }
+    }
+
+    //----- ends of blocks
+
+    static final class Goto extends Node {
+        final int target;
+        Goto(int target) { super(null, null, null); this.target = target; }
+        int eval(int[] f) { return target; }
+    }
+
+    // Conditional jump, specializes itself on its first execution
+    static final class GenericCond extends Node {
+        final int op, yes, no;
+        final boolean holds;
+        GenericCond(int op, Node a, Node b, int yes, int no) {
+            super(a, b, null);
+            this.op = op; this.yes = yes; this.no = no;
+            holds = b.allocates();
+        }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int y = b.eval(f);
+            if (holds) Gc.release(1);
+            if (a instanceof Local && b instanceof Const)
+                rewrite(new CondLocalConst(op, ((Local) a).n, ((Const) b).val, yes, no));
+            else if (a instanceof Local && b instanceof Local)
+                rewrite(new CondLocals(op, ((Local) a).n, ((Local) b).n, yes, no));
+            else
+                rewrite(new Cond(op, a, b, yes, no));
+            return test(op, x, y) ? yes : no;
+        }
+    }
+
+    static final class Cond extends Node {
+        final int op, yes, no;
+        final boolean holds;
+        Cond(int op, Node a, Node b, int yes, int no) {
+            super(a, b, null);
+            this.op = op; this.yes = yes; this.no = no;
+            holds = b.allocates();
+        }
+        int eval(int[] f) throws VMError {
+            int x = a.eval(f);
+            if (holds) Gc.hold(x);
+            int y = b.eval(f);
+            if (holds) Gc.release(1);
+            return test(op, x, y) ? yes : no;
+        }
+    }
+
+    static final class CondLocalConst extends Node {
+        final int op, n, k, yes, no;
+        CondLocalConst(int op, int n, int k, int yes, int no) {
+            super(null, null, null);
+            this.op = op; this.n = n; this.k = k; this.yes = yes; this.no = no;
+        }
+        int eval(int[] f) { return test(op, f[n], k) ? yes : no; }
+    }
+
+    static final class CondLocals extends Node {
+        final int op, n, m, yes, no;
+        CondLocals(int op, int n, int m, int yes, int no) {
+            super(null, null, null);
+            this.op = op; this.n = n; this.m = m; this.yes = yes; this.no = no;
+        }
+        int eval(int[] f) { return test(op, f[n], f[m]) ? yes : no; }
+    }
+
+    static final class Return extends Node {
+        final int slot; // where the result goes, if a != null
+        Return(Node a, int slot) { super(a, null, null); this.slot = slot; }
+        int eval(int[] f) throws VMError {
+            if (a != null) f[slot] = a.eval(f);
+            return -1;
+        }
+    }
+
+    static final class Trap extends Node {
+        final int n;
+        Trap(int n) { super(null, null, null); this.n = n; }
+        int eval(int[] f) throws VMError { throw error("trap(" + n + ")"); }
+    }
+
+    static final class Wrong extends Node {
+        final int op;
+        Wrong(int op) { super(null, null, null); this.op = op; }
+        int eval(int[] f) throws VMError { throw error("wrong opcode " + op); }
+    }
+
+    //----- structure
+
+    static final class Block extends Node {
+        final Node[] stmts;
+        Node end;
+        Block(Node[] stmts, Node end) {
+            super(null, null, null);
+            this.stmts = stmts;
+            this.end = end;
+            for (int i = 0; i < stmts.length; i++) stmts[i].parent = this;
+            end.parent = this;
+        }
+        void replace(Node old, Node n) {
+            if (end == old) end = n;
+            else for (int i = 0; i < stmts.length; i++) if (stmts[i] == old) stmts[i] = n;
+            n.parent = this;
+        }
+        int eval(int[] f) throws VMError {
+            for (int i = 0; i < stmts.length; i++) stmts[i].eval(f);
+            return end.eval(f);
+        }
+    }
+
+    // A method; eval runs it in a new frame that holds the arguments
+    static final class Method extends Node {
+        final int nVars, frameSize, result;
+        Block[] blocks; // blocks[0] is executed first
+        Method(int nVars, int maxDepth) {
+            super(null, null, null);
+            this.nVars = nVars;
+            result = nVars + maxDepth;
+            frameSize = result + 1;
+        }
+        int eval(int[] f) throws VMError {
+            if (Run.sp + 1 + nVars > Run.mStackMax) throw error("method stack overflow");
+            Run.sp += 1 + nVars; // frame pointer and locals
+            int b = 0;
+            do b = blocks[b].eval(f); while (b >= 0);
+            Run.sp -= nVars + 2;
+            return f[result];
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* MicroJava Program Output
+ *
+ * Collects what print and bprint write in a byte buffer, formatting numbers
+ * in place. It goes to Run.console (or the file of Run -out) when it is full,
+ * before the program reads from a terminal or waits for the input of an
+ * Execution (e.g. of a Client, which may wait for the output), and when the
+ * run ends. VM messages follow a flush(); close() reports write errors.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+final class Output {
+
+    private final byte[] buf;
+    private int size;                   // used length of buf
+    private FileChannel channel;        // target file, null for Run.console
+    private final boolean interactive;  // flush before waiting for input, someone must see prompts
+    private IOException error;          // first write error
+    private ByteArrayOutputStream copy; // what has been written since keep(), or null
+
+    // Writes to Run.console through a buffer of n bytes
+    Output(int n) {
+        buf = new byte[n];
+        interactive = Run.embedded || Run.console == System.out && System.console() != null;
+    }
+
+    // Writes to the file fileName, which is created or truncated
+    Output(String fileName, int n) throws IOException {
+        buf = new byte[n];
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        interactive = false;
+    }
+
+    // An Output from the result of save()
+    Output(Object[] s) {
+        buf = new byte[(Integer) s[0]];
+        channel = (FileChannel) s[1];
+        interactive = (Boolean) s[2];
+        error = (IOException) s[3];
+    }
+
+    // Flushes and returns the state of this Output in classes of the JDK, so
+    // that another Machine can go on writing (see Run.suspend()); the buffer
+    // is not kept, a waiting program needs none
+    Object[] save() {
+        flush();
+        return new Object[] {buf.length, channel, interactive, error};
+    }
+
+    // Writes val right-aligned in a field of width chars
+    void print(int val, int width) {
+        int n = 0;
+        long v = val < 0 ? -(long) val : val;
+        do { n++; v /= 10; } while (v > 0);
+        if (val < 0) n++;
+        for (; width > n; width--) put(' ');
+        if (size + n > buf.length) flush();
+        int i = size + n;
+        v = val < 0 ? -(long) val : val;
+        do { buf[--i] = (byte) ('0' + v % 10); v /= 10; } while (v > 0);
+        if (val < 0) buf[--i] = '-';
+        size += n;
+    }
+
+    // Writes the char ch right-aligned in a field of width chars
+    void bprint(int ch, int width) {
+        for (int i = 1; i < width; i++) put(' ');
+        if (ch >= 0 && ch < 128) {
+            put(ch);
+        } else { // encoded like System.out.print((char) ch)
+            byte[] b = String.valueOf((char) ch).getBytes();
+            for (int i = 0; i < b.length; i++) put(b[i]);
+        }
+    }
+
+    // Writes the bytes b, e.g. the output of the program before a Snapshot
+    void write(byte[] b) {
+        for (int i = 0; i < b.length; i++) put(b[i]);
+    }
+
+    // Keeps a copy of the output from now on
+    void keep() {
+        copy = new ByteArrayOutputStream();
+    }
+
+    // Flushes and returns the output since keep(); the copy ends
+    byte[] kept() {
+        flush();
+        byte[] b = copy.toByteArray();
+        copy = null;
+        return b;
+    }
+
+    private void put(int b) {
+        if (size == buf.length) flush();
+        buf[size++] = (byte) b;
+    }
+
+    // Called before the program reads input
+    void beforeInput() {
+        if (interactive && size > 0) flush();
+    }
+
+    void flush() {
+        if (size == 0) return;
+        if (copy != null) copy.write(buf, 0, size);
+        if (error == null) {
+            try {
+                if (channel == null) {
+                    Run.console.write(buf, 0, size);
+                    Run.console.flush();
+                } else {
+                    ByteBuffer b = ByteBuffer.wrap(buf, 0, size);
+                    while (b.hasRemaining()) channel.write(b);
+                }
+            } catch (IOException e) {
+                error = e; // drop the rest of the output
+            }
+        }
+        size = 0;
+    }
+
+    // Flushes and closes a file; reports a write error
+    void close() {
+        flush();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+            channel = null;
+        }
+        if (error != null) Run.console.println("\n-- error writing output: " + error.getMessage());
+        error = null;
+    }
+}
@@ -515,6 +515,7 @@ public class Parser {
                 Expr();
                 expectedInt(last_type);
                 code.load(last_operand);
+                code.allocSite(new Struct(Struct.ARRAY, newType));
                 code.put (Code.newarray);
                 if (newType == Tab.charType) {
                     code.put(0);
@@ -529,6 +530,7 @@ public class Parser {
                 if (newType.kind != Struct.CLASS) {
                     semanticError("Class type expected");
                 }
+                code.allocSite(newType);
                 code.put(Code.new_);
                 code.put2(newType.nFields);
             }
@@ -1028,6 +1030,7 @@ public class Parser {
         }
         tokenMatch("Expected '}'.", Token.Kind.RIGHT_BRACE);
         code.dataSize = table.curScope.nVars;
+        code.globals = table.curScope.locals;
 //        Tab.dumpScope(table.curScope.locals);
         return this;
     }
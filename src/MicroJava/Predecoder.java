@@ -0,0 +1,258 @@
+/* MicroJava Predecoder
+ *
+ * Translates the byte code into a stream of ints with widened operands and
+ * resolved jump targets, which Run.interpretPredecoded() runs as it is.
+ * fuse() replaces frequent sequences by superinstructions (see Run -profile).
+ */
+package MicroJava;
+
+class Predecoder {
+
+    private static final int // instruction codes
+            load        =  1,
+            load0       =  2,
+            load3       =  5,
+            store       =  6,
+            store0      =  7,
+            store3      = 10,
+            getstatic   = 11,
+            putstatic   = 12,
+            getfield    = 13,
+            putfield    = 14,
+            const0      = 15,
+            const5      = 20,
+            const_m1    = 21,
+            const_      = 22,
+            add         = 23,
+            sub         = 24,
+            new_        = 31,
+            newarray    = 32,
+            aload       = 33,
+            jmp         = 39,
+            jeq         = 40,
+            jne         = 41,
+            jlt         = 42,
+            jle         = 43,
+            jgt         = 44,
+            jge         = 45,
+            call        = 46,
+            enter       = 48,
+            trap        = 54;
+
+    static final int // superinstructions, only used in the predecoded stream
+            load_load   = 55, // load a; load b
+            load_const  = 56, // load a; const k
+            add_const   = 57, // const k; add
+            sub_const   = 58, // const k; sub
+            inc         = 59, // load a; const k; add; store a
+            dec         = 60, // load a; const k; sub; store a
+            load_aload  = 61, // load a; load b; aload
+            getstatic_inc = 62, // getstatic s; const k; add; putstatic s
+            getstatic_dec = 63, // getstatic s; const k; sub; putstatic s
+            store_jmp   = 64, // store a; jmp t
+            jeq_lc      = 65, // load a; const k; jeq t (likewise jne_lc .. jge_lc)
+            jge_lc      = 70,
+            jeq_ll      = 71, // load a; load b; jeq t (likewise jne_ll .. jge_ll)
+            jge_ll      = 76;
+
+    int[] ops;   // predecoded instruction stream
+    int[] addr;  // addr[i]: code address of the instruction starting at ops[i]
+    int[] index; // index[adr]: stream index of the instruction at code[adr], -1 if none
+    int size;    // used length of ops
+
+    private byte[] code; // code being translated
+    private int cur;     // address of next byte to decode
+
+    // operands are fetched exactly as Run.next(), next2() and next4() do
+    private int get() {
+        return code[cur++];
+    }
+
+    private int get2() {
+        return (short) (((get() << 8) + (get() & 0xff)) << 16 >> 16);
+    }
+
+    private int get4() {
+        return (get2() << 16) + (get2() & 0xffff);
+    }
+
+    private void emit(int x) {
+        ops[size++] = x;
+    }
+
+    // Returns the number of operand bytes that follow opcode op
+    static int operandBytes(int op) {
+        switch (op) {
+            case load: case store: case newarray: case trap:
+                return 1;
+            case getstatic: case putstatic: case getfield: case putfield:
+            case new_: case jmp: case jeq: case jne: case jlt: case jle:
+            case jgt: case jge: case call: case enter:
+                return 2;
+            case const_:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    // A stream that save() returned; it must not be fused again
+    Predecoder(Object[] s) {
+        ops = (int[]) s[0];
+        addr = (int[]) s[1];
+        index = (int[]) s[2];
+        size = (Integer) s[3];
+    }
+
+    // The stream in classes of the JDK, so that all Machines can share it (see Run.decode())
+    Object[] save() {
+        return new Object[] {ops, addr, index, size};
+    }
+
+    Predecoder(byte[] code) throws FormatException {
+        this.code = code;
+        ops = new int[2 * code.length]; // no instruction takes more than 2 ints per byte
+        addr = new int[ops.length];
+        index = new int[code.length];
+        for (int i = 0; i < index.length; i++) index[i] = -1;
+        cur = 0;
+        // first pass: translate instructions, jump targets are still code addresses
+        while (cur < code.length) {
+            int adr = cur;
+            int op = get();
+            if (cur + operandBytes(op) > code.length)
+                throw new FormatException("truncated instruction at " + adr);
+            index[adr] = size;
+            addr[size] = adr;
+            if (op >= load0 && op <= load3) {
+                emit(load);
+                emit(op - load0);
+            } else if (op >= store0 && op <= store3) {
+                emit(store);
+                emit(op - store0);
+            } else if (op >= const0 && op <= const5) {
+                emit(const_);
+                emit(op - const0);
+            } else if (op == const_m1) {
+                emit(const_);
+                emit(-1);
+            } else if (op == const_) {
+                emit(op);
+                emit(get4());
+            } else if (op == enter) {
+                emit(op);
+                emit(get());
+                emit(get());
+            } else if (operandBytes(op) == 2) {
+                emit(op);
+                emit(get2());
+            } else if (operandBytes(op) == 1) {
+                emit(op);
+                emit(get());
+            } else if (op > 0 && op <= trap) {
+                emit(op);
+            } else {
+                emit(0); // fails when executed
+                emit(op);
+            }
+        }
+        // second pass: resolve jump and call targets
+        for (int i = 0; i < size; i = next(i)) {
+            int op = ops[i];
+            if (op >= jmp && op <= call) {
+                int target = ops[i + 1];
+                if (target < 0 || target >= index.length || index[target] < 0)
+                    throw new FormatException("illegal jump target " + target + " at " + addr[i]);
+                ops[i + 1] = index[target];
+            }
+        }
+        this.code = null;
+    }
+
+    // Returns the value that Run.interpret() leaves in pc when the instruction
+    // at code[adr] fails: behind the operands it fetched before the error
+    static int faultPc(byte[] code, int adr) {
+        int op = code[adr];
+        if (op == getfield || op == putfield) return adr + 1;
+        return adr + 1 + operandBytes(op);
+    }
+
+    // Returns the number of ints that instruction op occupies in the stream.
+    // A superinstruction spans all the instructions it replaces.
+    static int length(int op) {
+        switch (op) {
+            case 0:
+                return 2;
+            case enter:
+                return 3;
+            case add_const: case sub_const:
+                return 3;
+            case load_load: case load_const: case store_jmp:
+                return 4;
+            case load_aload:
+                return 5;
+            case inc: case dec: case getstatic_inc: case getstatic_dec:
+                return 7;
+            default:
+                if (op >= jeq_lc && op <= jge_ll) return 6;
+                return operandBytes(op) > 0 ? 2 : 1;
+        }
+    }
+
+    // Returns the stream index of the instruction following the one at i
+    int next(int i) {
+        return i + length(ops[i]);
+    }
+
+    // Returns the opcode at stream index i if it may become part of a
+    // superinstruction, i.e. if it exists and is not a jump target
+    private int opAt(int i, boolean[] target) {
+        if (i >= size || target[i]) return -1;
+        return ops[i];
+    }
+
+    // Replaces frequent instruction sequences by superinstructions. Only the
+    // opcode of the first instruction is overwritten; the other instructions
+    // of the sequence stay in place and are skipped by the superinstruction.
+    // When one of its runtime checks fails, the superinstruction executes
+    // just the first instruction and continues with the original sequence,
+    // so errors are raised by the instruction that caused them.
+    void fuse() {
+        boolean[] target = new boolean[size];
+        for (int i = 0; i < size; i = next(i)) {
+            if (ops[i] >= jmp && ops[i] <= call) target[ops[i + 1]] = true;
+        }
+        int i = 0;
+        while (i < size) {
+            int i2 = next(i);
+            int op1 = ops[i];
+            int op2 = opAt(i2, target);
+            int i3 = op2 > 0 ? next(i2) : size;
+            int op3 = opAt(i3, target);
+            int i4 = op3 > 0 ? next(i3) : size;
+            int op4 = opAt(i4, target);
+            if (op1 == load && op2 == const_ && (op3 == add || op3 == sub)
+                    && op4 == store && ops[i + 1] == ops[i4 + 1]) {
+                ops[i] = op3 == add ? inc : dec;
+            } else if (op1 == getstatic && op2 == const_ && (op3 == add || op3 == sub)
+                    && op4 == putstatic && ops[i + 1] == ops[i4 + 1]) {
+                ops[i] = op3 == add ? getstatic_inc : getstatic_dec;
+            } else if (op1 == load && op2 == load && op3 == aload) {
+                ops[i] = load_aload;
+            } else if (op1 == load && op2 == const_ && op3 >= jeq && op3 <= jge) {
+                ops[i] = jeq_lc + (op3 - jeq);
+            } else if (op1 == load && op2 == load && op3 >= jeq && op3 <= jge) {
+                ops[i] = jeq_ll + (op3 - jeq);
+            } else if (op1 == load && op2 == load) {
+                ops[i] = load_load;
+            } else if (op1 == load && op2 == const_) {
+                ops[i] = load_const;
+            } else if (op1 == const_ && (op2 == add || op2 == sub)) {
+                ops[i] = op2 == add ? add_const : sub_const;
+            } else if (op1 == store && op2 == jmp) {
+                ops[i] = store_jmp;
+            }
+            i = next(i);
+        }
+    }
+}
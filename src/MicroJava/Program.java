@@ -0,0 +1,22 @@
+/* MicroJava Program
+ *
+ * An object file that Engine.load() has read, checked and decoded (see
+ * Run.decode()). It never changes, so any number of Executions may run it
+ * at the same time.
+ */
+package MicroJava;
+
+public final class Program {
+
+    private final String name;  // stands for the object file in messages
+    final Object[] decoded;     // see Run.decode(), never modified
+
+    Program(String name, Object[] decoded) {
+        this.name = name;
+        this.decoded = decoded;
+    }
+
+    public String name() {
+        return name;
+    }
+}
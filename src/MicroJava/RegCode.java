@@ -0,0 +1,508 @@
+/* MicroJava Register Code
+ *
+ * Instruction set of the register machine (see RegRun), e.g. add 5 1 2
+ * computes r5 = r1 + r2 on slots of the current frame, and its generator,
+ * which translates the stack code that Parser emits through Code.
+ */
+package MicroJava;
+
+import java.io.*;
+
+public class RegCode {
+
+    public static final int // instruction codes (operands in brackets)
+            mov         =  1, // [d s]        rd = rs
+            ldc         =  2, // [d k]        rd = k
+            getstatic   =  3, // [d s]        rd = data[s]
+            putstatic   =  4, // [s r]        data[s] = rr
+            getfield    =  5, // [d a f]      rd = heap[ra + f]
+            putfield    =  6, // [a f r]      heap[ra + f] = rr
+            add         =  7, // [d a b]      rd = ra + rb
+            sub         =  8,
+            mul         =  9,
+            div         = 10,
+            rem         = 11,
+            shl         = 12,
+            shr         = 13,
+            neg         = 14, // [d a]        rd = -ra
+            addi        = 15, // [d a k]      rd = ra + k
+            muli        = 16, // [d a k]      rd = ra * k
+            new_        = 17, // [d n]        rd = new block of n words
+            newarray    = 18, // [d n c]      rd = new array of rn elements (c == 0: char)
+            aload       = 19, // [d a i]      rd = ra[ri]
+            astore      = 20, // [a i r]      ra[ri] = rr
+            baload      = 21, // [d a i]
+            bastore     = 22, // [a i r]
+            arraylength = 23, // [d a]
+            jmp         = 24, // [t]
+            jeq         = 25, // [a b t]      if (ra == rb) jump to t
+            jne         = 26,
+            jlt         = 27,
+            jle         = 28,
+            jgt         = 29,
+            jge         = 30,
+            jeqi        = 31, // [a k t]      if (ra == k) jump to t
+            jnei        = 32,
+            jlti        = 33,
+            jlei        = 34,
+            jgti        = 35,
+            jgei        = 36,
+            call        = 37, // [t b]        call t with a frame starting at rb
+            ret         = 38, // [r]          return rr
+            retv        = 39, // []           return without value
+            enter       = 40, // [p l n]      p parameters, l variables, frame size n
+            read        = 41, // [d]
+            bread       = 42, // [d]
+            print       = 43, // [r w]
+            bprint      = 44, // [r w]
+            trap        = 45, // [n]
+            wrong       = 46; // [n]          illegal opcode n
+
+    private static final int // instruction codes of the stack code (see Predecoder)
+            s_load        =  1,
+            s_store       =  6,
+            s_getstatic   = 11,
+            s_putstatic   = 12,
+            s_getfield    = 13,
+            s_putfield    = 14,
+            s_const       = 22,
+            s_add         = 23,
+            s_sub         = 24,
+            s_mul         = 25,
+            s_div         = 26,
+            s_rem         = 27,
+            s_neg         = 28,
+            s_shl         = 29,
+            s_shr         = 30,
+            s_new         = 31,
+            s_newarray    = 32,
+            s_aload       = 33,
+            s_astore      = 34,
+            s_baload      = 35,
+            s_bastore     = 36,
+            s_arraylength = 37,
+            s_pop         = 38,
+            s_jmp         = 39,
+            s_jeq         = 40,
+            s_jge         = 45,
+            s_call        = 46,
+            s_return      = 47,
+            s_enter       = 48,
+            s_exit        = 49,
+            s_read        = 50,
+            s_print       = 51,
+            s_bread       = 52,
+            s_bprint      = 53,
+            s_trap        = 54;
+
+    private static final int // kinds of symbolic stack entries
+            Reg = 0,
+            Con = 1;
+    private static final int[] mirror = {0, 1, 4, 5, 2, 3}; // a op b == b mirror[op] a
+
+    int[] ops;     // register code
+    int[] addr;    // addr[i]: code address to report for errors of instruction ops[i]
+    int size;      // used length of ops
+    int startIp;   // index of main() in ops
+    int dataSize;  // size of global data area
+
+    // translation state
+    private byte[] code;     // stack code
+    private Predecoder p;    // stack code as predecoded stream
+    private StackFlow flow;  // methods and stack depths of the stack code
+    private int[] ip;        // ip[i]: index in ops of stream instruction i if it is a jump target
+    private int[] fixups;    // positions in ops that hold stream indices of jump targets
+    private int nFixups;
+    private int[] kind, val; // symbolic expression stack
+    private int top;         // number of entries on the symbolic stack
+    private int nVars;       // number of variables of the current method
+    private int lastDest;    // position in ops of the result register of the last instruction, -1 if none
+    private int curAdr;      // error address of the stack instruction being translated
+
+    private RegCode() {
+    }
+
+    // Register code that save() returned
+    RegCode(Object[] s) {
+        ops = (int[]) s[0];
+        addr = (int[]) s[1];
+        size = (Integer) s[2];
+        startIp = (Integer) s[3];
+        dataSize = (Integer) s[4];
+    }
+
+    // The code in classes of the JDK, so that all Machines can share it (see Run.decode())
+    Object[] save() {
+        return new Object[] {ops, addr, size, startIp, dataSize};
+    }
+
+    // Generate register code for the stack code with main() at startPC
+    public RegCode(byte[] code, int startPC, int dataSize) throws FormatException {
+        this.code = code;
+        this.dataSize = dataSize;
+        p = new Predecoder(code);
+        flow = new StackFlow(p, startPC);
+        ops = new int[4 * p.size + 16];
+        addr = new int[ops.length];
+        ip = new int[p.size];
+        fixups = new int[p.size];
+        for (int i = 0; i < p.size; i = p.next(i)) {
+            if (flow.start[i]) method(i);
+        }
+        for (int k = 0; k < nFixups; k++) {
+            ops[fixups[k]] = ip[ops[fixups[k]]];
+        }
+        startIp = ip[p.index[startPC]];
+        this.code = null;
+        p = null;
+        flow = null;
+    }
+
+    //----- code emission
+
+    private void put(int x) {
+        if (size == ops.length) {
+            int[] a = new int[2 * size];
+            System.arraycopy(ops, 0, a, 0, size);
+            ops = a;
+            a = new int[2 * size];
+            System.arraycopy(addr, 0, a, 0, size);
+            addr = a;
+        }
+        ops[size++] = x;
+    }
+
+    private void emit(int op) {
+        addr[size] = curAdr;
+        lastDest = -1;
+        put(op);
+    }
+
+    private void emit(int op, int a) {
+        emit(op);
+        put(a);
+    }
+
+    private void emit(int op, int a, int b) {
+        emit(op);
+        put(a);
+        put(b);
+    }
+
+    private void emit(int op, int a, int b, int c) {
+        emit(op);
+        put(a);
+        put(b);
+        put(c);
+    }
+
+    private void jumpTo(int streamIndex) {
+        fixups[nFixups++] = size;
+        put(streamIndex);
+    }
+
+    //----- symbolic expression stack
+
+    private int temp(int n) { // temporary register for stack level n
+        return nVars + n;
+    }
+
+    private void push(int k, int v) {
+        kind[top] = k;
+        val[top] = v;
+        top++;
+    }
+
+    // push the result of the instruction just emitted, whose destination is the last operand
+    private void pushResult(int resultPos) {
+        push(Reg, temp(top));
+        lastDest = resultPos;
+    }
+
+    // Returns a register holding entry n, loading a constant into its temporary if needed
+    private int reg(int n) {
+        if (kind[n] == Con) {
+            emit(ldc, temp(n), val[n]);
+            kind[n] = Reg;
+            val[n] = temp(n);
+        }
+        return val[n];
+    }
+
+    // Move entry n into its own temporary register
+    private void materialize(int n) {
+        if (kind[n] == Con) {
+            reg(n);
+        } else if (val[n] != temp(n)) {
+            emit(mov, temp(n), val[n]);
+            val[n] = temp(n);
+        }
+    }
+
+    // Move all entries into their temporaries (as at jumps, jump targets and calls)
+    private void materializeAll() {
+        for (int n = 0; n < top; n++) materialize(n);
+    }
+
+    //----- translation
+
+    private void method(int from) throws FormatException {
+        int psize = p.ops[from + 1];
+        nVars = p.ops[from + 2];
+        int max = flow.analyze(from);
+        int[] depth = flow.depth;
+        kind = new int[max + 1];
+        val = new int[max + 1];
+        top = 0;
+        curAdr = Predecoder.faultPc(code, p.addr[from]);
+        ip[from] = size;
+        emit(enter, psize, nVars, nVars + max);
+        for (int i = p.next(from); i < flow.end[from]; i = p.next(i)) {
+            if (depth[i] < 0) continue; // unreachable
+            if (flow.leader[i]) {
+                materializeAll();
+                lastDest = -1;
+                ip[i] = size;
+                top = depth[i];
+                for (int n = 0; n < top; n++) {
+                    kind[n] = Reg;
+                    val[n] = temp(n);
+                }
+            }
+            curAdr = Predecoder.faultPc(code, p.addr[i]);
+            instruction(i, flow.function[from]);
+        }
+    }
+
+    private void binary(int op, int stackOp) {
+        int b = top - 1, a = top - 2;
+        if (kind[a] == Con && kind[b] == Con && (stackOp != s_div && stackOp != s_rem || val[b] != 0)) {
+            int x = val[a], y = val[b], r;
+            switch (stackOp) {
+                case s_add: r = x + y; break;
+                case s_sub: r = x - y; break;
+                case s_mul: r = x * y; break;
+                case s_div: r = x / y; break;
+                case s_rem: r = x % y; break;
+                case s_shl: r = x << y; break;
+                default:    r = x >> y; break;
+            }
+            top -= 2;
+            push(Con, r);
+            return;
+        }
+        if ((stackOp == s_add || stackOp == s_mul) && kind[a] == Con) { // commutative
+            int k = kind[a], v = val[a];
+            kind[a] = kind[b]; val[a] = val[b];
+            kind[b] = k; val[b] = v;
+        }
+        int dest = temp(a);
+        if (kind[b] == Con && (stackOp == s_add || stackOp == s_sub || stackOp == s_mul)) {
+            int k = stackOp == s_sub ? -val[b] : val[b];
+            emit(stackOp == s_mul ? muli : addi, dest, reg(a), k);
+        } else {
+            int ra = reg(a);
+            int rb = reg(b);
+            emit(op, dest, ra, rb);
+        }
+        int pos = size - 3;
+        top -= 2;
+        pushResult(pos);
+    }
+
+    private void instruction(int i, boolean isFunction) throws FormatException {
+        int op = p.ops[i];
+        int x = p.ops[i + 1];
+        int pos;
+        switch (op) {
+            case s_load:
+                push(Reg, x);
+                break;
+            case s_store:
+                top--;
+                // entries still referring to the old value of x must keep it
+                for (int n = 0; n < top; n++) {
+                    if (kind[n] == Reg && val[n] == x) materialize(n);
+                }
+                if (kind[top] == Reg && lastDest >= 0 && val[top] == temp(top) && ops[lastDest] == temp(top)) {
+                    ops[lastDest] = x; // store the result directly
+                    lastDest = -1;
+                } else if (kind[top] == Con) {
+                    emit(ldc, x, val[top]);
+                } else {
+                    emit(mov, x, val[top]);
+                }
+                break;
+            case s_getstatic:
+                emit(getstatic, temp(top), x);
+                pushResult(size - 2);
+                break;
+            case s_putstatic:
+                top--;
+                emit(putstatic, x, reg(top));
+                break;
+            case s_getfield:
+                top--;
+                emit(getfield, temp(top), reg(top), x);
+                pushResult(size - 3);
+                break;
+            case s_putfield: {
+                top -= 2;
+                int ra = reg(top);
+                int rv = reg(top + 1);
+                emit(putfield, ra, x, rv);
+                break;
+            }
+            case s_const:
+                push(Con, x);
+                break;
+            case s_add: binary(add, op); break;
+            case s_sub: binary(sub, op); break;
+            case s_mul: binary(mul, op); break;
+            case s_div: binary(div, op); break;
+            case s_rem: binary(rem, op); break;
+            case s_shl: binary(shl, op); break;
+            case s_shr: binary(shr, op); break;
+            case s_neg:
+                top--;
+                if (kind[top] == Con) {
+                    val[top] = -val[top];
+                    top++;
+                } else {
+                    emit(neg, temp(top), reg(top));
+                    pushResult(size - 2);
+                }
+                break;
+            case s_new:
+                emit(new_, temp(top), x);
+                pushResult(size - 2);
+                break;
+            case s_newarray:
+                top--;
+                emit(newarray, temp(top), reg(top), x);
+                pushResult(size - 3);
+                break;
+            case s_aload:
+            case s_baload: {
+                top -= 2;
+                int ra = reg(top);
+                int ri = reg(top + 1);
+                emit(op == s_aload ? aload : baload, temp(top), ra, ri);
+                pushResult(size - 3);
+                break;
+            }
+            case s_astore:
+            case s_bastore: {
+                top -= 3;
+                int ra = reg(top);
+                int ri = reg(top + 1);
+                int rv = reg(top + 2);
+                emit(op == s_astore ? astore : bastore, ra, ri, rv);
+                break;
+            }
+            case s_arraylength:
+                top--;
+                emit(arraylength, temp(top), reg(top));
+                pushResult(size - 2);
+                break;
+            case s_pop:
+                top--;
+                break;
+            case s_jmp:
+                materializeAll();
+                emit(jmp);
+                jumpTo(x);
+                break;
+            case s_call: { // the callee's frame starts at the arguments; it returns its result in its r0
+                int n = p.ops[x + 1];
+                materializeAll();
+                top -= n;
+                emit(call);
+                jumpTo(x);
+                put(temp(top));
+                if (flow.function[x]) push(Reg, temp(top));
+                break;
+            }
+            case s_return:
+                if (isFunction) emit(ret, reg(top - 1)); else emit(retv);
+                top = 0;
+                break;
+            case s_exit:
+                break; // the frame is removed by the following return
+            case s_read:
+            case s_bread:
+                emit(op == s_read ? read : bread, temp(top));
+                pushResult(size - 1);
+                break;
+            case s_print:
+            case s_bprint: {
+                top -= 2;
+                int rv = reg(top);
+                int rw = reg(top + 1);
+                emit(op == s_print ? print : bprint, rv, rw);
+                break;
+            }
+            case s_trap:
+                emit(trap, x);
+                top = 0;
+                break;
+            case 0:
+                emit(wrong, x);
+                top = 0;
+                break;
+            default:
+                if (op >= s_jeq && op <= s_jge) {
+                    int cond = op - s_jeq;
+                    top -= 2;
+                    materializeAll();
+                    int a = top, b = top + 1;
+                    if (kind[a] == Con && kind[b] != Con) {
+                        a = top + 1; b = top;
+                        cond = mirror[cond];
+                    }
+                    if (kind[b] == Con) {
+                        emit(jeqi + cond, reg(a), val[b]);
+                    } else {
+                        int ra = reg(a);
+                        int rb = reg(b);
+                        emit(jeq + cond, ra, rb);
+                    }
+                    jumpTo(x);
+                } else {
+                    throw new FormatException("cannot translate instruction at " + p.addr[i]);
+                }
+        }
+    }
+
+    //----- object file
+
+    // Write the register code as object file: "MR", size, dataSize, startIp,
+    // the instructions and the error address of every instruction
+    public void write(OutputStream s) throws IOException {
+        DataOutputStream out = new DataOutputStream(s);
+        out.write('M');
+        out.write('R');
+        out.writeInt(size);
+        out.writeInt(dataSize);
+        out.writeInt(startIp);
+        for (int i = 0; i < size; i++) out.writeInt(ops[i]);
+        for (int i = 0; i < size; i++) out.writeInt(addr[i]);
+        out.flush();
+    }
+
+    // Read register code after the "MR" marker of an object file
+    static RegCode read(DataInputStream in) throws IOException, FormatException {
+        RegCode r = new RegCode();
+        r.size = in.readInt();
+        if (r.size <= 0) throw new FormatException("codeSize <= 0");
+        r.dataSize = in.readInt();
+        if (r.dataSize < 0) throw new FormatException("dataSize < 0");
+        r.startIp = in.readInt();
+        if (r.startIp < 0 || r.startIp >= r.size) throw new FormatException("startPC out of code area");
+        r.ops = new int[r.size];
+        r.addr = new int[r.size];
+        for (int i = 0; i < r.size; i++) r.ops[i] = in.readInt();
+        for (int i = 0; i < r.size; i++) r.addr[i] = in.readInt();
+        return r;
+    }
+}
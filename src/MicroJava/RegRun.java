@@ -0,0 +1,319 @@
+/* MicroJava Register Machine
+ *
+ * Interpreter for register code (see RegCode) on the global data, heap and
+ * method stack of Run, without an expression stack. Run.sp is moved over
+ * the current frame before an allocation, so that Gc sees all registers.
+ */
+package MicroJava;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+class RegRun {
+
+    private static final int // instruction codes
+            mov         =  1,
+            ldc         =  2,
+            getstatic   =  3,
+            putstatic   =  4,
+            getfield    =  5,
+            putfield    =  6,
+            add         =  7,
+            sub         =  8,
+            mul         =  9,
+            div         = 10,
+            rem         = 11,
+            shl         = 12,
+            shr         = 13,
+            neg         = 14,
+            addi        = 15,
+            muli        = 16,
+            new_        = 17,
+            newarray    = 18,
+            aload       = 19,
+            astore      = 20,
+            baload      = 21,
+            bastore     = 22,
+            arraylength = 23,
+            jmp         = 24,
+            jeq         = 25,
+            jne         = 26,
+            jlt         = 27,
+            jle         = 28,
+            jgt         = 29,
+            jge         = 30,
+            jeqi        = 31,
+            jnei        = 32,
+            jlti        = 33,
+            jlei        = 34,
+            jgti        = 35,
+            jgei        = 36,
+            call        = 37,
+            ret         = 38,
+            retv        = 39,
+            enter       = 40,
+            read        = 41,
+            bread       = 42,
+            print       = 43,
+            bprint      = 44,
+            trap        = 45,
+            wrong       = 46;
+
+    static void interpret(RegCode rc) {
+        int[] ops = rc.ops;
+        int[] r = Run.local;                     // registers of all frames
+        int[] retIp = new int[Run.mStackSize];   // return addresses, apart from the overlapping frames
+        int[] retFp = new int[Run.mStackSize];   // frame pointers of the callers
+        int[] retTop = new int[Run.mStackSize];  // ends of the callers' frames
+        int csp = 0;                             // number of active calls
+        int fp = 0;                              // frame pointer
+        int top = 0;                             // end of the current frame
+        int ip = rc.startIp;                     // index of next instruction in ops
+        int cur = ip;                            // index of current instruction
+        int adr, val, idx, len, i;
+        try {
+            for (;;) { // terminated by return from main()
+                cur = ip;
+                switch (ops[ip++]) {
+                    case mov:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]];
+                        ip += 2;
+                        break;
+                    case ldc:
+                        r[fp + ops[ip]] = ops[ip + 1];
+                        ip += 2;
+                        break;
+                    case getstatic:
+                        r[fp + ops[ip]] = Run.data[ops[ip + 1]];
+                        ip += 2;
+                        break;
+                    case putstatic:
+                        Run.data[ops[ip]] = r[fp + ops[ip + 1]];
+                        ip += 2;
+                        break;
+                    case getfield:
+                        adr = r[fp + ops[ip + 1]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        r[fp + ops[ip]] = Run.heap[adr + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case putfield:
+                        adr = r[fp + ops[ip]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        Run.heap[adr + ops[ip + 1]] = r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+
+                    // arithmetic operations
+                    case add:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] + r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case sub:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] - r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case mul:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] * r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case div:
+                        val = r[fp + ops[ip + 2]];
+                        if (val == 0) throw new VMError("division by zero");
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] / val;
+                        ip += 3;
+                        break;
+                    case rem:
+                        val = r[fp + ops[ip + 2]];
+                        if (val == 0) throw new VMError("division by zero");
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] % val;
+                        ip += 3;
+                        break;
+                    case shl:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] << r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case shr:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] >> r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case neg:
+                        r[fp + ops[ip]] = -r[fp + ops[ip + 1]];
+                        ip += 2;
+                        break;
+                    case addi:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] + ops[ip + 2];
+                        ip += 3;
+                        break;
+                    case muli:
+                        r[fp + ops[ip]] = r[fp + ops[ip + 1]] * ops[ip + 2];
+                        ip += 3;
+                        break;
+
+                    // object creation
+                    case new_:
+                        Run.sp = top;
+                        r[fp + ops[ip]] = Gc.newObject(ops[ip + 1], -1);
+                        ip += 2;
+                        break;
+                    case newarray:
+                        Run.sp = top;
+                        r[fp + ops[ip]] = Gc.newArray(r[fp + ops[ip + 1]], ops[ip + 2], -1);
+                        ip += 3;
+                        break;
+
+                    // array access
+                    case aload:
+                        adr = r[fp + ops[ip + 1]];
+                        idx = r[fp + ops[ip + 2]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+                        r[fp + ops[ip]] = Run.heap[adr+1+idx];
+                        ip += 3;
+                        break;
+                    case astore:
+                        adr = r[fp + ops[ip]];
+                        idx = r[fp + ops[ip + 1]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+                        Run.heap[adr+1+idx] = r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case baload:
+                        adr = r[fp + ops[ip + 1]];
+                        idx = r[fp + ops[ip + 2]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+                        r[fp + ops[ip]] = Run.chars[Run.heap[adr + 1] + idx];
+                        ip += 3;
+                        break;
+                    case bastore:
+                        adr = r[fp + ops[ip]];
+                        idx = r[fp + ops[ip + 1]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.heap[adr]) throw new VMError("index out of bounds");
+                        Run.chars[Run.heap[adr + 1] + idx] = (byte)r[fp + ops[ip + 2]];
+                        ip += 3;
+                        break;
+                    case arraylength:
+                        adr = r[fp + ops[ip + 1]];
+                        if (adr == 0) throw new VMError("null reference used");
+                        r[fp + ops[ip]] = Run.heap[adr];
+                        ip += 2;
+                        break;
+
+                    // jumps
+                    case jmp:
+                        ip = ops[ip];
+                        break;
+                    case jeq:
+                        if (r[fp + ops[ip]] == r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jne:
+                        if (r[fp + ops[ip]] != r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jlt:
+                        if (r[fp + ops[ip]] < r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jle:
+                        if (r[fp + ops[ip]] <= r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jgt:
+                        if (r[fp + ops[ip]] > r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jge:
+                        if (r[fp + ops[ip]] >= r[fp + ops[ip + 1]]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jeqi:
+                        if (r[fp + ops[ip]] == ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jnei:
+                        if (r[fp + ops[ip]] != ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jlti:
+                        if (r[fp + ops[ip]] < ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jlei:
+                        if (r[fp + ops[ip]] <= ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jgti:
+                        if (r[fp + ops[ip]] > ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+                    case jgei:
+                        if (r[fp + ops[ip]] >= ops[ip + 1]) ip = ops[ip + 2]; else ip += 3;
+                        break;
+
+                    // method calls
+                    case call:
+                        adr = ops[ip];
+                        if (fp + ops[ip + 1] + ops[adr + 3] > r.length) // frame size is an operand of enter
+                            r = Run.growMethodStack(fp + ops[ip + 1] + ops[adr + 3]);
+                        if (csp == retIp.length) {
+                            if (csp >= Run.mStackMax) throw new VMError("method stack overflow");
+                            retIp = Arrays.copyOf(retIp, 2 * csp);
+                            retFp = Arrays.copyOf(retFp, 2 * csp);
+                            retTop = Arrays.copyOf(retTop, 2 * csp);
+                        }
+                        retIp[csp] = ip + 2;
+                        retFp[csp] = fp;
+                        retTop[csp] = top;
+                        csp++;
+                        fp += ops[ip + 1];
+                        ip = adr;
+                        break;
+                    case ret:
+                        r[fp] = r[fp + ops[ip]];
+                        // fall through
+                    case retv:
+                        if (csp == 0) return;
+                        csp--;
+                        fp = retFp[csp];
+                        top = retTop[csp];
+                        ip = retIp[csp];
+                        break;
+                    case enter:
+                        if (fp + ops[ip + 2] > r.length) r = Run.growMethodStack(fp + ops[ip + 2]);
+                        for (i = fp + ops[ip]; i < fp + ops[ip + 1]; i++) r[i] = 0;
+                        top = fp + ops[ip + 2];
+                        ip += 3;
+                        break;
+
+                    // IO
+                    case read:
+                        try {
+                            r[fp + ops[ip]] = Run.readInt();
+                        } catch (IOException ex) {
+                            throw new VMError("end of input");
+                        }
+                        ip++;
+                        break;
+                    case bread:
+                        try {
+                            r[fp + ops[ip]] = Run.readByte();
+                        } catch (IOException ex) {
+                            throw new VMError("end of input");
+                        }
+                        ip++;
+                        break;
+                    case print:
+                        Run.print(r[fp + ops[ip]], r[fp + ops[ip + 1]]);
+                        ip += 2;
+                        break;
+                    case bprint:
+                        Run.bprint(r[fp + ops[ip]], r[fp + ops[ip + 1]]);
+                        ip += 2;
+                        break;
+                    case trap:
+                        throw new VMError("trap(" + ops[ip] + ")");
+                    case wrong:
+                        throw new VMError("wrong opcode " + ops[ip]);
+                    default:
+                        throw new VMError("wrong register code " + ops[cur]);
+                }
+            }
+        } catch (VMError e) {
+            Run.pc = rc.addr[cur];
+            Run.exception(" at address " + (Run.pc-1) + ": " + e.getMessage());
+        }
+    }
+}
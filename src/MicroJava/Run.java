@@ -1,15 +1,19 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java MJ.Run fileName [-debug]
+// Syntax: java MJ.Run fileName [-debug] [-trace file] [-pc lo-hi] [-method adr] [-first n] [-gc] [-heap n[:max]] [-mstack n[:max]] [-estack n] [-offheap] [-mapheap file] [-classic] [-profile] [-nofuse] [-decode] [-reg] [-jit] [-tree] [-tos] [-unchecked] [-out file] [-quota n] [-snapshot file [-at adr] | -resume file] [-batch inputs]
 //=============================================================================
 package MicroJava;
 
 import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 
 public class Run {
   static byte code[];			// code array
   static int data[];			// global data
-  static int heap[];			// dynamic heap
+  static int heap[];			// dynamic heap, null if it is off-heap
+  static Heap mem;				// dynamic heap for Gc, interpret() and Trace (see Heap)
+  static byte chars[];		// elements of the char arrays, heap[adr+1] is the index of the first (see Gc)
   static int stack[];			// expression stack
   static int local[];			// method stack
   static int dataSize;		// size of global data area
@@ -18,12 +22,55 @@ public class Run {
   static int fp, sp;			// frame pointer, stack pointer on method stack
   static int esp;					// expression stack pointer
   static int free;				// next free heap address
+  static int charFree;		// next free index in chars
   static boolean debug;		// debug output on or off
+  static boolean profile;	// count executed opcode pairs
+  static int pairs[][];		// pairs[a][b]: how often opcode b directly followed opcode a
+  static int lastOp;			// previously executed opcode (for profiling)
+  static Predecoder pre;	// predecoded instruction stream, null if not used
+  static RegCode reg;			// register code, null if not used
+  static Jit jit;					// compiler for hot methods, null if not used
+  static Tree tree;				// node trees of the methods, null if not used
+  static boolean legacy;	// code without type information, whose astore may store chars
+  static Verifier verifier;	// stack needs of verified code, null if not used
+  static Output out;			// buffered output of print and bprint (see Output)
+  static Input in;				// buffered input of read and bread (see Input)
+  static PrintStream console;	// where output and messages go: System.out, or the stream of an Execution
+  static boolean failed;	// the program stopped with an exception
 
-  static final int
-  	heapSize = 100000,		// size of the heap in words
-  	mStackSize = 400,			// size of the method stack in words
-  	eStackSize = 30;			// size of the expression stack in words
+  static final int				// results of run()
+  	completed = 0,				// the program terminated
+  	stopped   = 1,				// it stopped with an exception
+  	rejected  = 2,				// it did not run: bad options, object file or resources
+  	running   = 3,				// it can run (prepare()) or go on (slice())
+  	waiting   = 4;				// it waits for input (slice() with parking)
+
+  static Trace trace;			// tracing interpreter of the run, null if not used
+  static boolean cached;	// run on interpretCached()
+  static boolean embedded;	// run by an Engine: no "Completion" line, memory released at the end
+  static long startTime;	// of the run, in ms
+  static long steps;			// instructions executed by interpret()
+  static long stepLimit;	// interpret() pauses at a backward jump or a call when steps reach it
+  static long quota;			// instructions the program may execute, see -quota
+  static boolean parking;	// interpret() stops before input that would block, see suspend()
+  static boolean parked;	// it has stopped there
+  static String snapshot;	// file that interpret() writes a Snapshot to before the first input, or null
+  static int marker;			// or before the instruction at this address, -1 if none (see -at)
+  static byte markerOp;		// the opcode at marker, replaced by 0 until the snapshot is written
+
+  static int
+  	heapSize,							// current size of the heap in words, including block headers (see Gc)
+  	mStackSize;						// current size of the method stack in words
+  static int							// memory settings in words, see setHeapSize() and defaults()
+  	heapInit,							// initial heap, grows geometrically up to heapMax
+  	heapMax,
+  	mStackInit,						// initial method stack, grows geometrically up to mStackMax
+  	mStackMax,
+  	eStackSize;						// size of the expression stack
+  static final int javaStackPerWord = 512;	// bytes of Java stack per word of the method stack (see onLargeStack)
+  static final long maxJavaStack = 4L << 30;	// but at most that many
+  static boolean offHeap;	// heap outside the Java heap, see setOffHeap()
+  static String heapFile;	// file that the off-heap heap is mapped to, null for direct memory
 
   static final int				// instruction codes
 		load        =  1,
@@ -81,6 +128,30 @@ public class Run {
 		bprint      = 53,
 		trap		    = 54;
 
+  static final int				// superinstructions, see Predecoder
+		load_load     = 55,
+		load_const    = 56,
+		add_const     = 57,
+		sub_const     = 58,
+		inc           = 59,
+		dec           = 60,
+		load_aload    = 61,
+		getstatic_inc = 62,
+		getstatic_dec = 63,
+		store_jmp     = 64,
+		jeq_lc        = 65,
+		jne_lc        = 66,
+		jlt_lc        = 67,
+		jle_lc        = 68,
+		jgt_lc        = 69,
+		jge_lc        = 70,
+		jeq_ll        = 71,
+		jne_ll        = 72,
+		jlt_ll        = 73,
+		jle_ll        = 74,
+		jgt_ll        = 75,
+		jge_ll        = 76;
+
   static final int  // compare operators
     eq = 0,
     ne = 1,
@@ -106,7 +177,7 @@ public class Run {
   //----- expression stack
 
   static void push(int val) throws VMError {
-		if (esp == eStackSize) throw new VMError("expression stack overflow");
+		if (esp == stack.length) throw new VMError("expression stack overflow");
 		stack[esp++] = val;
   }
 
@@ -118,7 +189,7 @@ public class Run {
   //----- method stack
 
   static void PUSH(int val) throws VMError {
-		if (sp == mStackSize) throw new VMError("method stack overflow");
+		if (sp == local.length) growMethodStack(sp + 1);
 		local[sp++] = val;
 	}
 
@@ -127,6 +198,97 @@ public class Run {
 		return local[--sp];
 	}
 
+	// Enlarges the method stack to at least n words; returns the new local
+	static int[] growMethodStack(int n) throws VMError {
+		if (n > mStackMax) throw methodOverflow();
+		int size = (int) Math.min(Math.max(2L * local.length, n), mStackMax);
+		try {
+			local = Arrays.copyOf(local, size);
+		} catch (OutOfMemoryError e) {
+			throw methodOverflow();
+		}
+		mStackSize = size;
+		return local;
+	}
+
+	//----- memory settings
+
+	static { defaults(); }
+
+	// Restores the default memory settings; every run() starts from them
+	static void defaults() {
+		heapInit = 100000; heapMax = 1 << 24;
+		mStackInit = 400; mStackMax = 1 << 22;
+		eStackSize = 30;
+		setOffHeap(false, null);
+	}
+
+	// Sets the initial and the maximum size of the heap in words
+	public static void setHeapSize(int initial, int max) {
+		if (initial < 2 || max < initial) throw new IllegalArgumentException("heap size " + initial + ":" + max);
+		heapInit = initial;
+		heapMax = max;
+	}
+
+	// Sets the initial and the maximum size of the method stack in words
+	public static void setMethodStackSize(int initial, int max) {
+		if (initial < 1 || max < initial) throw new IllegalArgumentException("method stack size " + initial + ":" + max);
+		mStackInit = initial;
+		mStackMax = max;
+	}
+
+	// Puts the heap outside the Java heap, mapped to file or in direct memory if
+	// file is null. Only the classic and the tracing interpreter run on such a heap.
+	public static void setOffHeap(boolean on, String file) {
+		offHeap = on;
+		heapFile = on ? file : null;
+	}
+
+	// Sets the size of the expression stack in words
+	public static void setExprStackSize(int size) {
+		if (size < 1) throw new IllegalArgumentException("expression stack size " + size);
+		eStackSize = size;
+	}
+
+	// Allocates the memory areas for a run of the loaded program
+	static void initMemory() throws IOException {
+		if (mem != null) mem.close();
+		mem = offHeap ? new Heap.Mapped(heapFile, heapInit) : new Heap.Array(heapInit);
+		heap  = mem.array();						// grows in Gc.allocate()
+		heapSize = heapInit;
+		chars = new byte[4096];					// grows in Gc.newArray()
+		charFree = 0;
+		data  = new int[dataSize];			// global data as specified in classfile
+		stack = new int[eStackSize];		// expression stack
+		local = new int[mStackInit];		// method stack, grows in growMethodStack()
+		mStackSize = mStackInit;
+		fp = 0; sp = 0;
+		esp = 0;
+		free = 1;												// no block should start at address 0
+		Gc.reset();
+	}
+
+	// Drops the memory areas of the last run
+	static void releaseMemory() {
+		if (mem != null) mem.close();
+		mem = null; heap = null; chars = null;
+		data = null; stack = null; local = null;
+		Gc.reset();
+	}
+
+	// Converts a size like 4000, 64k, 2m or 1g (words)
+	static int parseSize(String s) throws NumberFormatException {
+		int unit = 1;
+		char last = s.length() > 0 ? Character.toLowerCase(s.charAt(s.length() - 1)) : ' ';
+		if (last == 'k') unit = 1 << 10;
+		else if (last == 'm') unit = 1 << 20;
+		else if (last == 'g') unit = 1 << 30;
+		if (unit > 1) s = s.substring(0, s.length() - 1);
+		long n = (long) Integer.parseInt(s) * unit;
+		if (n > Integer.MAX_VALUE - 8) throw new NumberFormatException(s); // largest Java array, addresses are ints
+		return (int) n;
+	}
+
 	//----- instruction fetch
 
   static byte next() {
@@ -144,10 +306,26 @@ public class Run {
   //----- VM internals
 
 	static void load(String name) throws IOException, FormatException {
+		InputStream s = new FileInputStream(name);
+		try {
+			load(s);
+		} finally {
+			s.close();
+		}
+	}
+
+	static void load(InputStream s) throws IOException, FormatException {
 		int codeSize;
 		byte sig[] = new byte[2];
-		DataInputStream in = new DataInputStream(new FileInputStream(name));
+		DataInputStream in = new DataInputStream(s);
 		in.read(sig, 0, 2);
+		legacy = false;
+		if (sig[0] == 'M' && sig[1] == 'R') { // register code
+			reg = RegCode.read(in);
+			dataSize = reg.dataSize;
+			Gc.setTypes(new Object[4]);	// none, its blocks are untyped
+			return;
+		}
 		if (sig[0] != 'M' || sig[1] != 'J') throw new FormatException("wrong marker");
 		codeSize = in.readInt();
 		if (codeSize <= 0) throw new FormatException("codeSize <= 0");
@@ -157,71 +335,105 @@ public class Run {
 		if (startPC < 0 || startPC >= codeSize) throw new FormatException("startPC out of code area");
 		code = new byte[codeSize];
 		in.read(code, 0, codeSize);
+		legacy = !Gc.readTypes(in, code, dataSize);
   }
 
-  static int alloc(int size) throws VMError { // allocate heap block of size bytes
-    int adr = free;
-    free += size;
-    if (free > heapSize) throw new VMError("heap overflow");
-    return adr;
-  }
+  static int readByte() throws IOException { // read a byte from standard input stream, -1 at its end
+		return in.read();
+	}
 
-	static byte getByte(int val, int n) { // retrieve byte n from val. Byte 0 is MSB
-    return (byte)(val << (8*n) >>> 24);
-  }
+  static int readInt() throws IOException { // read int from standard input stream
+		return in.readInt();
+	}
 
-  static int setByte(int val, int n, byte b) { // replace byte n in val by b
-    int delta = (3 - n) * 8;
-    int mask = ~(255 << delta); // mask all 1 except on chosen byte
-    int by = (((int)b) & 255) << delta;
-    return (val & mask) ^ by;
-  }
+	static void exception(String msg) { // report the exception that stops the program
+		out.flush();
+		console.println("\n-- exception" + msg);
+		failed = true;
+	}
 
-  static int readInt() throws IOException { // read int from standard input stream
-    int val = 0;
-    int prev = ' ';
-    int b = System.in.read();
-    while (b < '0' || b > '9') {
-      prev = b; b = System.in.read();
-    }
-    while (b >= '0' && b <= '9') {
-      val = 10 * val + b - '0';
-      b = System.in.read();
-    }
-    if (prev == '-') val = -val;
-    return val;
-  }
+  static void print(int val, int len) { // print val right-aligned in a field of len chars
+		out.print(val, len);
+	}
+
+  static void bprint(int val, int len) { // print char val right-aligned in a field of len chars
+		out.bprint(val, len);
+	}
 
-	//----- debug output
+	//----- number output
 
   static void printNum(int val, int n) {
 		String s = new Integer(val).toString();
 		int len = s.length();
-		while (len < n) {System.out.print(" "); len++;}
-		System.out.print(s);
+		while (len < n) {console.print(" "); len++;}
+		console.print(s);
+	}
+
+	//----- opcode pair profile
+
+	static int canonical(int op) { // map short forms to the opcode Predecoder uses for them
+		if (op >= load0 && op <= load3) return load;
+		if (op >= store0 && op <= store3) return store;
+		if (op >= const0 && op <= const_m1) return const_;
+		return op;
 	}
 
-  static void printInstr() {
-		int op = code[pc - 1];
-		String instr = op > 0 && op <= trap ? opcode[op] : "???     ";
-		printNum(pc - 1, 4);
-		System.out.print(": " + instr + "| ");
+	static void countPair(int op) {
+		op = canonical(op);
+		if (op > 0 && op <= trap) {
+			if (lastOp > 0) pairs[lastOp][op]++;
+			lastOp = op;
+		}
 	}
 
-	static void printStack() {
-		for (int i = 0; i < esp; i++) System.out.print(stack[i] + " ");
-		System.out.println();
+	static void printPairs(int n) { // print the n most frequent opcode pairs
+		console.println("\n-- most frequent opcode pairs");
+		boolean[][] done = new boolean[trap + 1][trap + 1];
+		for (int k = 0; k < n; k++) {
+			int a = 0, b = 0;
+			for (int i = 1; i <= trap; i++)
+				for (int j = 1; j <= trap; j++)
+					if (!done[i][j] && pairs[i][j] > pairs[a][b]) { a = i; b = j; }
+			if (pairs[a][b] == 0) break;
+			done[a][b] = true;
+			printNum(pairs[a][b], 10);
+			console.println("  " + opcode[a] + " " + opcode[b]);
+		}
 	}
 
-	//----- actual interpretation
+	//----- actual interpretation (see Trace for -debug and -profile)
 
 	static void interpret() {
+		while (!interpretSlice()) takeSnapshot(); // only a snapshot stops a run without slices
+		if (snapshot != null) {
+			out.flush();
+			console.println("\n-- no snapshot written, the program ended before its first input"
+				+ (marker >= 0 ? " and address " + marker : ""));
+		}
+	}
+
+	// Writes the snapshot that interpretSlice() has stopped for; the run goes on without it
+	static void takeSnapshot() {
+		if (marker >= 0) code[marker] = markerOp;
+		marker = -1;
+		try {
+			Snapshot.write(snapshot);
+		} catch (IOException e) {
+			out.flush();
+			console.println("\n-- cannot write snapshot file " + snapshot);
+		}
+		snapshot = null;
+	}
+
+	// Interprets from pc until the program ends (true) or until steps reach
+	// stepLimit at a backward jump or a call (false); slice() continues there.
+	static boolean interpretSlice() {
 		int op, adr, val, val2, off, idx, len, i;
-		pc = startPC;
+		long n = steps, limit = stepLimit; // steps and stepLimit, in registers
 		try {
 			for (;;) { // terminated by return instruction
 				op = next();
-				if (debug) printInstr();
+				n++;
 				switch((int)op) {
 
 					// load/store local variables
@@ -252,13 +464,13 @@ public class Run {
 					case getfield:
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						push(heap[adr + next2()]);
+						push(mem.get(adr + next2()));
 						break;
 					case putfield:
 						val = pop();
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						heap[adr + next2()] = val;
+						mem.set(adr + next2(), val);
 						break;
 
 					// load constants
@@ -306,14 +518,13 @@ public class Run {
 
 					// object creation
 					case new_:
-						push(alloc(next2()));
+						adr = pc - 1;
+						push(Gc.newObject(next2(), adr));
 						break;
 					case newarray:
+						adr = pc - 1;
 						val = next();
-						len = pop();
-						if (val == 0) adr = alloc(1 + ((len+3)>>2)); else adr = alloc(1 + len);
-						heap[adr] = len;
-						push(adr);
+						push(Gc.newArray(pop(), val, adr));
 						break;
 
 					// array access
@@ -321,40 +532,41 @@ public class Run {
 						idx = pop();
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						len = heap[adr];
+						len = mem.get(adr);
 						if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
-						push(heap[adr+1+idx]);
+						push(mem.get(adr+1+idx));
 						break;
 					case astore:
 						val = pop();
 						idx = pop();
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						len = heap[adr];
+						len = mem.get(adr);
 						if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
-						heap[adr+1+idx] = val;
+						if (legacy && Gc.isChars(adr)) chars[mem.get(adr + 1) + idx] = (byte)val;
+						else mem.set(adr+1+idx, val);
 						break;
 					case baload:
 						idx = pop();
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						len = heap[adr];
+						len = mem.get(adr);
 						if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
-						push(getByte(heap[adr + 1 + idx/4], idx % 4));
+						push(chars[mem.get(adr + 1) + idx]);
 						break;
 					case bastore:
 						val = pop();
 						idx = pop();
 						adr = pop();
 						if (adr == 0) throw new VMError("null reference used");
-						len = heap[adr];
+						len = mem.get(adr);
 						if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
-						heap[adr + 1 + idx/4] = setByte(heap[adr + 1 + idx/4], idx % 4, (byte)val);
+						chars[mem.get(adr + 1) + idx] = (byte)val;
 						break;
 					case arraylength:
 						adr = pop();
 						if (adr==0) throw new VMError("null reference used");
-						push(heap[adr]);
+						push(mem.get(adr));
 						break;
 
 					// stack manipulation
@@ -365,6 +577,7 @@ public class Run {
 					// jumps
 					case jmp:
 						adr = next2();
+						if (adr < pc && n >= limit) { pc = adr; steps = n; return endSlice(); }
 						pc = adr;
 						break;
 					case jeq: case jne: case jlt: case jle: case jgt: case jge:
@@ -379,7 +592,10 @@ public class Run {
 							case jgt: cond = val > val2;  break;
 							case jge: cond = val >= val2; break;
 						}
-						if (cond) pc = adr;
+						if (cond) {
+							if (adr < pc && n >= limit) { pc = adr; steps = n; return endSlice(); }
+							pc = adr;
+						}
 						break;
 
 					// method calls
@@ -387,9 +603,10 @@ public class Run {
 						adr = next2();
 						PUSH(pc);
 						pc = adr;
+						if (n >= limit) { steps = n; return endSlice(); }
 						break;
 					case return_:
-						if (sp == 0) return; else pc = POP();
+						if (sp == 0) { steps = n; return true; } else pc = POP();
 						break;
 					case enter:
 						int psize = next();
@@ -406,6 +623,8 @@ public class Run {
 
 					// IO
 					case read:
+						if (parking && !in.ready(true)) { pc--; steps = n - 1; parked = true; return false; }
+						if (snapshot != null) { pc--; steps = n - 1; return false; }
 						try {
 							val = readInt();
 							push(val);
@@ -416,66 +635,1562 @@ public class Run {
 					case print:
 						len = pop();
 						val = pop();
-						String s = new Integer(val).toString();
-						len = len - s.length();
-						for (i = 0; i < len; i++) System.out.print(' ');
-						for (i = 0; i < s.length(); i++) System.out.print(s.charAt(i));
+						print(val, len);
 						break;
 					case bread:
+						if (parking && !in.ready(false)) { pc--; steps = n - 1; parked = true; return false; }
+						if (snapshot != null) { pc--; steps = n - 1; return false; }
 						try {
-							push(System.in.read());
+							push(readByte());
 						} catch (IOException ex) {
 							throw new VMError("end of input");
 						}
 						break;
 					case bprint:
-						len = pop() - 1;
+						len = pop();
 						val = pop();
-						for (i = 0; i < len; i++) System.out.print(' ');
-						System.out.print((char)val);
+						bprint(val, len);
 						break;
 					case trap:
 						throw new VMError("trap(" + next() + ")");
+					default:
+						if (pc - 1 == marker) { pc--; steps = n - 1; return false; } // see -at
+						throw new VMError("wrong opcode " + op);
+				}
+			}
+		} catch (VMError e) {
+			steps = n;
+			exception(" at address " + (pc-1) + ": " + e.getMessage());
+		}
+		return true;
+	}
+
+	// Called when steps reach stepLimit: ends the program if it has used up its
+	// quota (true), otherwise only the slice (false)
+	static boolean endSlice() {
+		if (steps < quota) return false;
+		exception(": instruction quota of " + quota + " exceeded");
+		return true;
+	}
+
+	//----- interpretation of the predecoded instruction stream
+
+	// The registers of the VM and the arrays they index are kept in local
+	// variables here, so that the JIT compiler of the JVM can keep them in
+	// machine registers; they are written back to the static fields only
+	// around calls that use them (Jit) and when the program ends. Errors are
+	// created by the methods below, which keeps the loop small: each check
+	// costs a compare and a call that the JIT compiler treats as cold.
+
+	static VMError overflow() { return new VMError("expression stack overflow"); }
+	static VMError underflow() { return new VMError("expression stack underflow"); }
+	static VMError methodOverflow() { return new VMError("method stack overflow"); }
+	static VMError methodUnderflow() { return new VMError("method stack underflow"); }
+	static VMError nullReference() { return new VMError("null reference used"); }
+	static VMError outOfBounds() { return new VMError("index out of bounds"); }
+	static VMError divisionByZero() { return new VMError("division by zero"); }
+	static VMError endOfInput() { return new VMError("end of input"); }
+
+	// Runs from pc, main() or where interpretUnchecked() gave up
+	static void interpretPredecoded() {
+		int[] ops = pre.ops;
+		int[] stack = Run.stack, local = Run.local, heap = Run.heap, data = Run.data;
+		int esp = Run.esp, sp = Run.sp, fp = Run.fp;
+		int ip = pre.index[pc];	// index of next instruction in ops
+		int cur = ip;									// index of current instruction
+		int op, adr, val, idx, len, i;
+		try {
+			for (;;) { // terminated by return instruction
+				cur = ip;
+				op = ops[ip++];
+				switch (op) {
+
+					// load/store local variables
+					case load:
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = local[fp + ops[ip++]];
+						break;
+					case store:
+						if (esp == 0) throw underflow();
+						local[fp + ops[ip++]] = stack[--esp];
+						break;
+
+					// load/store global variables
+					case getstatic:
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = data[ops[ip++]];
+						break;
+					case putstatic:
+						if (esp == 0) throw underflow();
+						data[ops[ip++]] = stack[--esp];
+						break;
+
+					// load/store object fields
+					case getfield:
+						if (esp == 0) throw underflow();
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						stack[esp - 1] = heap[adr + ops[ip++]];
+						break;
+					case putfield:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						adr = stack[esp];
+						if (adr == 0) throw nullReference();
+						heap[adr + ops[ip++]] = stack[esp + 1];
+						break;
+
+					// load constants
+					case const_:
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = ops[ip++];
+						break;
+
+					// arithmetic operations
+					case add:
+						if (esp < 2) throw underflow();
+						esp--;
+						stack[esp - 1] += stack[esp];
+						break;
+					case sub:
+						if (esp < 2) throw underflow();
+						esp--;
+						stack[esp - 1] -= stack[esp];
+						break;
+					case mul:
+						if (esp < 2) throw underflow();
+						esp--;
+						stack[esp - 1] *= stack[esp];
+						break;
+					case div:
+						if (esp == 0) throw underflow();
+						val = stack[--esp];
+						if (val == 0) throw divisionByZero();
+						if (esp == 0) throw underflow();
+						stack[esp - 1] /= val;
+						break;
+					case rem:
+						if (esp == 0) throw underflow();
+						val = stack[--esp];
+						if (val == 0) throw divisionByZero();
+						if (esp == 0) throw underflow();
+						stack[esp - 1] %= val;
+						break;
+					case neg:
+						if (esp == 0) throw underflow();
+						stack[esp - 1] = -stack[esp - 1];
+						break;
+					case shl:
+						if (esp < 2) throw underflow();
+						esp--;
+						stack[esp - 1] <<= stack[esp];
+						break;
+					case shr:
+						if (esp < 2) throw underflow();
+						esp--;
+						stack[esp - 1] >>= stack[esp];
+						break;
+
+					// object creation
+					case new_:
+						Run.esp = esp; Run.sp = sp; // roots for Gc
+						adr = Gc.newObject(ops[ip++], pre.addr[cur]);
+						heap = Run.heap; // may have grown
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = adr;
+						break;
+					case newarray:
+						val = ops[ip++];
+						if (esp == 0) throw underflow();
+						Run.esp = esp; Run.sp = sp;
+						stack[esp - 1] = Gc.newArray(stack[esp - 1], val, pre.addr[cur]);
+						heap = Run.heap;
+						break;
+
+					// array access
+					case aload:
+						if (esp < 2) throw underflow();
+						esp--;
+						idx = stack[esp];
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						stack[esp - 1] = heap[adr+1+idx];
+						break;
+					case astore:
+						if (esp < 3) throw underflow();
+						esp -= 3;
+						adr = stack[esp];
+						idx = stack[esp + 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						heap[adr+1+idx] = stack[esp + 2];
+						break;
+					case baload:
+						if (esp < 2) throw underflow();
+						esp--;
+						idx = stack[esp];
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						stack[esp - 1] = chars[heap[adr + 1] + idx];
+						break;
+					case bastore:
+						if (esp < 3) throw underflow();
+						esp -= 3;
+						adr = stack[esp];
+						idx = stack[esp + 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						chars[heap[adr + 1] + idx] = (byte)stack[esp + 2];
+						break;
+					case arraylength:
+						if (esp == 0) throw underflow();
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						stack[esp - 1] = heap[adr];
+						break;
+
+					// stack manipulation
+					case pop:
+						if (esp == 0) throw underflow();
+						esp--;
+						break;
+
+					// jumps, targets are stream indices
+					case jmp:
+						if (ops[ip] < cur && jit != null && jit.ready(cur)) { // hot loop
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							jit.resume(cur);
+							esp = Run.esp; sp = Run.sp; fp = Run.fp;
+							heap = Run.heap;
+							if (sp == 0) return;
+							ip = local[--sp];
+							break;
+						}
+						ip = ops[ip];
+						break;
+					case jeq:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] == stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jne:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] != stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jlt:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] < stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jle:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] <= stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jgt:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] > stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jge:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						if (stack[esp] >= stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+
+					// method calls, return addresses are stream indices
+					case call:
+						adr = ops[ip++];
+						if (jit != null && jit.ready(adr)) {
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							jit.invoke(adr);
+							esp = Run.esp; sp = Run.sp; fp = Run.fp;
+							heap = Run.heap;
+							break;
+						}
+						if (sp == local.length) local = growMethodStack(sp + 1);
+						local[sp++] = ip;
+						ip = adr;
+						break;
+					case return_:
+						if (sp == 0) {
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							return;
+						}
+						ip = local[--sp];
+						break;
+					case enter:
+						int psize = ops[ip++];
+						int lsize = ops[ip++];
+						if (sp + 1 + lsize > local.length) local = growMethodStack(sp + 1 + lsize);
+						local[sp++] = fp;
+						fp = sp;
+						for (i = 0; i < lsize; i++) local[sp++] = 0;
+						if (esp < psize) throw underflow();
+						esp -= psize;
+						for (i = 0; i < psize; i++) local[fp + i] = stack[esp + i];
+						break;
+					case exit:
+						sp = fp;
+						if (sp == 0) throw methodUnderflow();
+						fp = local[--sp];
+						break;
+
+					// IO
+					case read:
+						try {
+							val = readInt();
+						} catch (IOException ex) {
+							throw endOfInput();
+						}
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = val;
+						break;
+					case print:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						print(stack[esp], stack[esp + 1]);
+						break;
+					case bread:
+						try {
+							val = readByte();
+						} catch (IOException ex) {
+							throw endOfInput();
+						}
+						if (esp == stack.length) throw overflow();
+						stack[esp++] = val;
+						break;
+					case bprint:
+						if (esp < 2) throw underflow();
+						esp -= 2;
+						bprint(stack[esp], stack[esp + 1]);
+						break;
+					case trap:
+						throw new VMError("trap(" + ops[ip++] + ")");
+
+					// superinstructions (see Predecoder.fuse). If a check fails, only the
+					// first instruction of the sequence is executed here; the rest follows.
+					case load_load:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						stack[esp] = local[fp + ops[ip]];
+						stack[esp + 1] = local[fp + ops[ip + 2]];
+						esp += 2;
+						ip += 3;
+						break;
+					case load_const:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						stack[esp] = local[fp + ops[ip]];
+						stack[esp + 1] = ops[ip + 2];
+						esp += 2;
+						ip += 3;
+						break;
+					case add_const:
+						if (esp == 0 || esp == stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = ops[ip++]; break; }
+						stack[esp - 1] += ops[ip];
+						ip += 2;
+						break;
+					case sub_const:
+						if (esp == 0 || esp == stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = ops[ip++]; break; }
+						stack[esp - 1] -= ops[ip];
+						ip += 2;
+						break;
+					case inc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						local[fp + ops[ip]] += ops[ip + 2];
+						ip += 6;
+						break;
+					case dec:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						local[fp + ops[ip]] -= ops[ip + 2];
+						ip += 6;
+						break;
+					case load_aload:
+						adr = local[fp + ops[ip]];
+						idx = local[fp + ops[ip + 2]];
+						if (esp + 2 > stack.length || adr == 0 || idx < 0 || idx >= heap[adr]) {
+							if (esp == stack.length) throw overflow();
+							stack[esp++] = adr; ip++; break;
+						}
+						stack[esp++] = heap[adr+1+idx];
+						ip += 4;
+						break;
+					case getstatic_inc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = data[ops[ip++]]; break; }
+						data[ops[ip]] += ops[ip + 2];
+						ip += 6;
+						break;
+					case getstatic_dec:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = data[ops[ip++]]; break; }
+						data[ops[ip]] -= ops[ip + 2];
+						ip += 6;
+						break;
+					case store_jmp:
+						if (esp == 0) throw underflow();
+						local[fp + ops[ip]] = stack[--esp];
+						if (ops[ip + 2] < cur && jit != null && jit.ready(cur + 2)) { // hot loop
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							jit.resume(cur + 2);
+							esp = Run.esp; sp = Run.sp; fp = Run.fp;
+							heap = Run.heap;
+							if (sp == 0) return;
+							ip = local[--sp];
+							break;
+						}
+						ip = ops[ip + 2];
+						break;
+					case jeq_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] == ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jne_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] != ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jlt_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] < ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jle_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] <= ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jgt_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] > ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jge_lc:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] >= ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jeq_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] == local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jne_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] != local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jlt_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] < local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jle_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] <= local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jgt_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] > local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jge_ll:
+						if (esp + 2 > stack.length) { if (esp == stack.length) throw overflow(); stack[esp++] = local[fp + ops[ip++]]; break; }
+						if (local[fp + ops[ip]] >= local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+
+					case 0: // illegal opcode
+						throw new VMError("wrong opcode " + ops[ip]);
 					default:
 						throw new VMError("wrong opcode " + op);
 				}
-				if (debug) printStack();
 			}
 		} catch (VMError e) {
-			System.out.println("\n-- exception at address " + (pc-1) + ": " + e.getMessage());;
+			Run.esp = esp; Run.sp = sp; Run.fp = fp;
+			if (!e.located) pc = Predecoder.faultPc(code, pre.addr[cur]); // as interpret() would have left it
+			exception(" at address " + (pc-1) + ": " + e.getMessage());
 		}
 	}
 
+	//----- interpretation of verified code
+
+	// Like interpretPredecoded(), but for code that passed the Verifier. A call
+	// checks that the expression stack and the method stack have room for the
+	// whole called method, so no instruction checks for overflow or underflow.
+	// If one of them has not, the rest of the run goes to interpretPredecoded(),
+	// which stops where the stack really overflows, if it does on this path.
+	// Jit is not used.
+	static void interpretUnchecked() {
+		int[] ops = pre.ops;
+		int[] stack = Run.stack, local = Run.local, heap = Run.heap, data = Run.data;
+		int esp = Run.esp, sp = Run.sp, fp = Run.fp;
+		int ip = pre.index[pc];	// index of next instruction in ops
+		int cur = ip;									// index of current instruction
+		int[] stackRoom = verifier.stackRoom, frameSize = verifier.frameSize;
+		int op, adr, val, idx, len, i;
+		try {
+			if (esp + stackRoom[ip] > stack.length || sp + frameSize[ip] > mStackMax) { // main() is not called
+				interpretPredecoded();
+				return;
+			}
+			if (sp + frameSize[ip] > local.length) local = growMethodStack(sp + frameSize[ip]);
+			for (;;) { // terminated by return instruction
+				cur = ip;
+				op = ops[ip++];
+				switch (op) {
+
+					// load/store local variables
+					case load:
+						stack[esp++] = local[fp + ops[ip++]];
+						break;
+					case store:
+						local[fp + ops[ip++]] = stack[--esp];
+						break;
+
+					// load/store global variables
+					case getstatic:
+						stack[esp++] = data[ops[ip++]];
+						break;
+					case putstatic:
+						data[ops[ip++]] = stack[--esp];
+						break;
+
+					// load/store object fields
+					case getfield:
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						stack[esp - 1] = heap[adr + ops[ip++]];
+						break;
+					case putfield:
+						esp -= 2;
+						adr = stack[esp];
+						if (adr == 0) throw nullReference();
+						heap[adr + ops[ip++]] = stack[esp + 1];
+						break;
+
+					// load constants
+					case const_:
+						stack[esp++] = ops[ip++];
+						break;
+
+					// arithmetic operations
+					case add:
+						esp--;
+						stack[esp - 1] += stack[esp];
+						break;
+					case sub:
+						esp--;
+						stack[esp - 1] -= stack[esp];
+						break;
+					case mul:
+						esp--;
+						stack[esp - 1] *= stack[esp];
+						break;
+					case div:
+						val = stack[--esp];
+						if (val == 0) throw divisionByZero();
+						stack[esp - 1] /= val;
+						break;
+					case rem:
+						val = stack[--esp];
+						if (val == 0) throw divisionByZero();
+						stack[esp - 1] %= val;
+						break;
+					case neg:
+						stack[esp - 1] = -stack[esp - 1];
+						break;
+					case shl:
+						esp--;
+						stack[esp - 1] <<= stack[esp];
+						break;
+					case shr:
+						esp--;
+						stack[esp - 1] >>= stack[esp];
+						break;
+
+					// object creation
+					case new_:
+						Run.esp = esp; Run.sp = sp; // roots for Gc
+						adr = Gc.newObject(ops[ip++], pre.addr[cur]);
+						heap = Run.heap; // may have grown
+						stack[esp++] = adr;
+						break;
+					case newarray:
+						val = ops[ip++];
+						Run.esp = esp; Run.sp = sp;
+						stack[esp - 1] = Gc.newArray(stack[esp - 1], val, pre.addr[cur]);
+						heap = Run.heap;
+						break;
+
+					// array access
+					case aload:
+						esp--;
+						idx = stack[esp];
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						stack[esp - 1] = heap[adr+1+idx];
+						break;
+					case astore:
+						esp -= 3;
+						adr = stack[esp];
+						idx = stack[esp + 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						heap[adr+1+idx] = stack[esp + 2];
+						break;
+					case baload:
+						esp--;
+						idx = stack[esp];
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						stack[esp - 1] = chars[heap[adr + 1] + idx];
+						break;
+					case bastore:
+						esp -= 3;
+						adr = stack[esp];
+						idx = stack[esp + 1];
+						if (adr == 0) throw nullReference();
+						if (idx < 0 || idx >= heap[adr]) throw outOfBounds();
+						chars[heap[adr + 1] + idx] = (byte)stack[esp + 2];
+						break;
+					case arraylength:
+						adr = stack[esp - 1];
+						if (adr == 0) throw nullReference();
+						stack[esp - 1] = heap[adr];
+						break;
+
+					// stack manipulation
+					case pop:
+						esp--;
+						break;
+
+					// jumps, targets are stream indices
+					case jmp:
+						ip = ops[ip];
+						break;
+					case jeq:
+						esp -= 2;
+						if (stack[esp] == stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jne:
+						esp -= 2;
+						if (stack[esp] != stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jlt:
+						esp -= 2;
+						if (stack[esp] < stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jle:
+						esp -= 2;
+						if (stack[esp] <= stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jgt:
+						esp -= 2;
+						if (stack[esp] > stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+					case jge:
+						esp -= 2;
+						if (stack[esp] >= stack[esp + 1]) ip = ops[ip]; else ip++;
+						break;
+
+					// method calls, return addresses are stream indices
+					case call: // the only stack checks, for the whole method
+						adr = ops[ip++];
+						if (esp + stackRoom[adr] > stack.length || sp + frameSize[adr] > mStackMax) {
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							pc = pre.addr[cur];
+							interpretPredecoded(); // runs the call again, with checks
+							return;
+						}
+						if (sp + frameSize[adr] > local.length) local = growMethodStack(sp + frameSize[adr]);
+						local[sp++] = ip;
+						ip = adr;
+						break;
+					case return_:
+						if (sp == 0) {
+							Run.esp = esp; Run.sp = sp; Run.fp = fp;
+							return;
+						}
+						ip = local[--sp];
+						break;
+					case enter:
+						int psize = ops[ip++];
+						int lsize = ops[ip++];
+						local[sp++] = fp;
+						fp = sp;
+						for (i = 0; i < lsize; i++) local[sp++] = 0;
+						esp -= psize;
+						for (i = 0; i < psize; i++) local[fp + i] = stack[esp + i];
+						break;
+					case exit:
+						sp = fp;
+						fp = local[--sp];
+						break;
+
+					// IO
+					case read:
+						try {
+							val = readInt();
+						} catch (IOException ex) {
+							throw endOfInput();
+						}
+						stack[esp++] = val;
+						break;
+					case print:
+						esp -= 2;
+						print(stack[esp], stack[esp + 1]);
+						break;
+					case bread:
+						try {
+							val = readByte();
+						} catch (IOException ex) {
+							throw endOfInput();
+						}
+						stack[esp++] = val;
+						break;
+					case bprint:
+						esp -= 2;
+						bprint(stack[esp], stack[esp + 1]);
+						break;
+					case trap:
+						throw new VMError("trap(" + ops[ip++] + ")");
+
+					// superinstructions (see Predecoder.fuse)
+					case load_load:
+						stack[esp] = local[fp + ops[ip]];
+						stack[esp + 1] = local[fp + ops[ip + 2]];
+						esp += 2;
+						ip += 3;
+						break;
+					case load_const:
+						stack[esp] = local[fp + ops[ip]];
+						stack[esp + 1] = ops[ip + 2];
+						esp += 2;
+						ip += 3;
+						break;
+					case add_const:
+						stack[esp - 1] += ops[ip];
+						ip += 2;
+						break;
+					case sub_const:
+						stack[esp - 1] -= ops[ip];
+						ip += 2;
+						break;
+					case inc:
+						local[fp + ops[ip]] += ops[ip + 2];
+						ip += 6;
+						break;
+					case dec:
+						local[fp + ops[ip]] -= ops[ip + 2];
+						ip += 6;
+						break;
+					case load_aload:
+						adr = local[fp + ops[ip]];
+						idx = local[fp + ops[ip + 2]];
+						if (adr == 0 || idx < 0 || idx >= heap[adr]) { // aload fails
+							stack[esp++] = adr; ip++; break;
+						}
+						stack[esp++] = heap[adr+1+idx];
+						ip += 4;
+						break;
+					case getstatic_inc:
+						data[ops[ip]] += ops[ip + 2];
+						ip += 6;
+						break;
+					case getstatic_dec:
+						data[ops[ip]] -= ops[ip + 2];
+						ip += 6;
+						break;
+					case store_jmp:
+						local[fp + ops[ip]] = stack[--esp];
+						ip = ops[ip + 2];
+						break;
+					case jeq_lc:
+						if (local[fp + ops[ip]] == ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jne_lc:
+						if (local[fp + ops[ip]] != ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jlt_lc:
+						if (local[fp + ops[ip]] < ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jle_lc:
+						if (local[fp + ops[ip]] <= ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jgt_lc:
+						if (local[fp + ops[ip]] > ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jge_lc:
+						if (local[fp + ops[ip]] >= ops[ip + 2]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jeq_ll:
+						if (local[fp + ops[ip]] == local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jne_ll:
+						if (local[fp + ops[ip]] != local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jlt_ll:
+						if (local[fp + ops[ip]] < local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jle_ll:
+						if (local[fp + ops[ip]] <= local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jgt_ll:
+						if (local[fp + ops[ip]] > local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+					case jge_ll:
+						if (local[fp + ops[ip]] >= local[fp + ops[ip + 2]]) ip = ops[ip + 4]; else ip += 5;
+						break;
+
+					case 0: // illegal opcode
+						throw new VMError("wrong opcode " + ops[ip]);
+					default:
+						throw new VMError("wrong opcode " + op);
+				}
+			}
+		} catch (VMError e) {
+			Run.esp = esp; Run.sp = sp; Run.fp = fp;
+			if (!e.located) pc = Predecoder.faultPc(code, pre.addr[cur]); // as interpret() would have left it
+			exception(" at address " + (pc-1) + ": " + e.getMessage());
+		}
+	}
+
+	//----- interpretation with top-of-stack caching
+
+	// Like interpretPredecoded(), but keeps the top two values of the expression
+	// stack in the local variables tos and nos; n of them (0..2) are valid and
+	// stack[0..esp-1] holds the values below. The frequent instructions work on
+	// tos and nos if enough values are cached. Otherwise, and for all other
+	// instructions, the cached values are spilled to stack[] first (n = 0), and
+	// the instruction is executed as in interpretPredecoded(). Superinstructions
+	// are not used.
+	static void interpretCached() {
+		int[] ops = pre.ops;
+		int ip = pre.index[pc];	// index of next instruction in ops
+		int cur = ip;									// index of current instruction
+		int tos = 0, nos = 0, n = 0;	// cached top of stack
+		int op, adr, val, val2, idx, len, i;
+		try {
+			for (;;) { // terminated by return instruction
+				cur = ip;
+				op = ops[ip++];
+				switch (op) {
+
+					// instructions that push a value
+					case load:
+						if (esp + n == stack.length) throw new VMError("expression stack overflow");
+						if (n == 2) stack[esp++] = nos; else n++;
+						nos = tos; tos = local[fp + ops[ip++]];
+						break;
+					case getstatic:
+						if (esp + n == stack.length) throw new VMError("expression stack overflow");
+						if (n == 2) stack[esp++] = nos; else n++;
+						nos = tos; tos = data[ops[ip++]];
+						break;
+					case const_:
+						if (esp + n == stack.length) throw new VMError("expression stack overflow");
+						if (n == 2) stack[esp++] = nos; else n++;
+						nos = tos; tos = ops[ip++];
+						break;
+
+					// instructions that pop a value
+					case store:
+						if (n > 0) { local[fp + ops[ip++]] = tos; tos = nos; n--; }
+						else local[fp + ops[ip++]] = pop();
+						break;
+					case putstatic:
+						if (n > 0) { data[ops[ip++]] = tos; tos = nos; n--; }
+						else data[ops[ip++]] = pop();
+						break;
+					case pop:
+						if (n > 0) { tos = nos; n--; } else pop();
+						break;
+
+					// instructions that replace the top value
+					case getfield:
+						if (n == 0) { tos = pop(); n = 1; }
+						if (tos == 0) throw new VMError("null reference used");
+						tos = heap[tos + ops[ip++]];
+						break;
+					case neg:
+						if (n == 0) { tos = pop(); n = 1; }
+						tos = -tos;
+						break;
+
+					// instructions that combine the top two values. With less than two
+					// values cached, the missing ones come from stack[].
+					case add:
+						if (n == 2) { tos = nos + tos; n = 1; break; }
+						val2 = n == 1 ? tos : pop();
+						tos = pop() + val2;
+						n = 1;
+						break;
+					case sub:
+						if (n == 2) { tos = nos - tos; n = 1; break; }
+						val2 = n == 1 ? tos : pop();
+						tos = pop() - val2;
+						n = 1;
+						break;
+					case mul:
+						if (n == 2) { tos = nos * tos; n = 1; break; }
+						val2 = n == 1 ? tos : pop();
+						tos = pop() * val2;
+						n = 1;
+						break;
+					case div:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val2 == 0) throw new VMError("division by zero");
+						tos = val / val2;
+						n = 1;
+						break;
+					case rem:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val2 == 0) throw new VMError("division by zero");
+						tos = val % val2;
+						n = 1;
+						break;
+					case shl:
+						if (n == 2) { tos = nos << tos; n = 1; break; }
+						val2 = n == 1 ? tos : pop();
+						tos = pop() << val2;
+						n = 1;
+						break;
+					case shr:
+						if (n == 2) { tos = nos >> tos; n = 1; break; }
+						val2 = n == 1 ? tos : pop();
+						tos = pop() >> val2;
+						n = 1;
+						break;
+					case aload:
+						if (n == 2) { adr = nos; idx = tos; }
+						else { idx = n == 1 ? tos : pop(); adr = pop(); }
+						n = 0;
+						if (adr == 0) throw new VMError("null reference used");
+						if (idx < 0 || idx >= heap[adr]) throw new VMError("index out of bounds");
+						tos = heap[adr+1+idx];
+						n = 1;
+						break;
+					case putfield:
+						if (n == 2) { adr = nos; val = tos; }
+						else { val = n == 1 ? tos : pop(); adr = pop(); }
+						n = 0;
+						if (adr == 0) throw new VMError("null reference used");
+						heap[adr + ops[ip++]] = val;
+						break;
+					case astore:
+						if (n == 2) { idx = nos; val = tos; }
+						else { val = n == 1 ? tos : pop(); idx = pop(); }
+						n = 0;
+						adr = pop();
+						if (adr == 0) throw new VMError("null reference used");
+						if (idx < 0 || idx >= heap[adr]) throw new VMError("index out of bounds");
+						heap[adr+1+idx] = val;
+						break;
+
+					// jumps, targets are stream indices
+					case jmp:
+						ip = ops[ip];
+						break;
+					case jeq:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val == val2) ip = ops[ip]; else ip++;
+						break;
+					case jne:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val != val2) ip = ops[ip]; else ip++;
+						break;
+					case jlt:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val < val2) ip = ops[ip]; else ip++;
+						break;
+					case jle:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val <= val2) ip = ops[ip]; else ip++;
+						break;
+					case jgt:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val > val2) ip = ops[ip]; else ip++;
+						break;
+					case jge:
+						if (n == 2) { val = nos; val2 = tos; }
+						else { val2 = n == 1 ? tos : pop(); val = pop(); }
+						n = 0;
+						if (val >= val2) ip = ops[ip]; else ip++;
+						break;
+
+					// method calls do not touch the expression stack
+					case call:
+						adr = ops[ip++];
+						PUSH(ip);
+						ip = adr;
+						break;
+					case return_:
+						if (sp == 0) return; else ip = POP();
+						break;
+					case exit:
+						sp = fp;
+						fp = POP();
+						break;
+
+					// all other instructions work on stack[]
+					default:
+						if (n == 2) { stack[esp++] = nos; stack[esp++] = tos; }
+						else if (n == 1) stack[esp++] = tos;
+						n = 0;
+						switch (op) {
+							case enter:
+								int psize = ops[ip++];
+								int lsize = ops[ip++];
+								PUSH(fp);
+								fp = sp;
+								for (i = 0; i < lsize; i++) PUSH(0);
+								for (i = psize - 1; i >= 0; i--) local[fp + i] = pop();
+								break;
+							case new_:
+								push(Gc.newObject(ops[ip++], pre.addr[cur]));
+								break;
+							case newarray:
+								val = ops[ip++];
+								push(Gc.newArray(pop(), val, pre.addr[cur]));
+								break;
+							case baload:
+								idx = pop();
+								adr = pop();
+								if (adr == 0) throw new VMError("null reference used");
+								len = heap[adr];
+								if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
+								push(chars[heap[adr + 1] + idx]);
+								break;
+							case bastore:
+								val = pop();
+								idx = pop();
+								adr = pop();
+								if (adr == 0) throw new VMError("null reference used");
+								len = heap[adr];
+								if (idx < 0 || idx >= len) throw new VMError("index out of bounds");
+								chars[heap[adr + 1] + idx] = (byte)val;
+								break;
+							case arraylength:
+								adr = pop();
+								if (adr==0) throw new VMError("null reference used");
+								push(heap[adr]);
+								break;
+							case read:
+								try {
+									val = readInt();
+									push(val);
+								} catch (IOException ex) {
+									throw new VMError("end of input");
+								}
+								break;
+							case print:
+								len = pop();
+								val = pop();
+								print(val, len);
+								break;
+							case bread:
+								try {
+									push(readByte());
+								} catch (IOException ex) {
+									throw new VMError("end of input");
+								}
+								break;
+							case bprint:
+								len = pop();
+								val = pop();
+								bprint(val, len);
+								break;
+							case trap:
+								throw new VMError("trap(" + ops[ip++] + ")");
+							case 0: // illegal opcode
+								throw new VMError("wrong opcode " + ops[ip]);
+							default:
+								throw new VMError("wrong opcode " + op);
+						}
+				}
+			}
+		} catch (VMError e) {
+			pc = Predecoder.faultPc(code, pre.addr[cur]); // as interpret() would have left it
+			exception(" at address " + (pc-1) + ": " + e.getMessage());
+		}
+	}
+
+	// Runs r on a thread whose Java stack holds mStackMax words of frames of Tree
+	// or of compiled code, whose calls are Java calls, so that a deep recursion
+	// overflows the method stack as on the interpreters and not the Java stack
+	static void onLargeStack(Runnable r) {
+		long size = Math.min((long) mStackMax * javaStackPerWord, maxJavaStack);
+		Throwable[] failure = new Throwable[1];
+		Thread t = new Thread(null, () -> {
+			try {
+				r.run();
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "MicroJava", size);
+		t.start();
+		boolean interrupted = false;
+		while (t.isAlive()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+		if (failure[0] instanceof Error) throw (Error) failure[0];
+	}
+
 	public static void main(String[] arg) {
-		String fileName = null;
+		for (int i = 0; i < arg.length; i++)
+			if (arg[i].equals("-batch")) { Batch.main(arg); return; }
+		run(arg, null, null, null, System.out);
+	}
+
+	// Options of run() that are followed by a value; Batch passes them on with it
+	private static final String[] valueOptions = {"-trace", "-pc", "-method", "-first", "-heap", "-mstack",
+			"-estack", "-mapheap", "-out", "-quota", "-snapshot", "-at", "-resume"};
+
+	static boolean takesValue(String option) {
+		for (String o : valueOptions)
+			if (o.equals(option)) return true;
+		return false;
+	}
+
+	// Runs a program like main(). If program is not null, it holds the object file
+	// as decode() returned it and arg only options; name then stands for the file
+	// in messages, and there is no "Completion" line. input replaces System.in if it is not null.
+	// Output and messages go to console. Engine calls this method in the class
+	// loader of each Machine.
+	static int run(String[] arg, String name, Object[] program, InputStream input, PrintStream console) {
+		int result = prepare(arg, name, program, input, console, false, false);
+		if (result != running) return result;
+		try {
+			if (reg != null) RegRun.interpret(reg);
+			else if (tree != null) onLargeStack(tree::run);
+			else if (trace != null) trace.run();
+			else if (pre != null && jit != null) onLargeStack(cached ? Run::interpretCached : Run::interpretPredecoded);
+			else if (pre != null && cached) interpretCached();
+			else if (pre != null && verifier != null) interpretUnchecked();
+			else if (pre != null) interpretPredecoded();
+			else interpret();
+		} finally {
+			close();	// also when the VM itself fails
+		}
+		return report();
+	}
+
+	// Runs the program that prepare() set up for slices for about quantum more
+	// instructions; returns running, or the result of run() once it has ended.
+	// The Scheduler calls this method through Machine.
+	static int slice(long quantum) {
+		stepLimit = quantum < quota - steps ? steps + quantum : quota;
+		parked = false;
+		boolean done = true;
+		try {
+			done = interpretSlice();
+		} finally {
+			if (done) close();
+		}
+		return done ? report() : parked ? waiting : running;
+	}
+
+	// Moves the state of a program between two slices, or of one that waits for
+	// input (slice() returned waiting), out of the static fields.
+	// The state consists of classes of the JDK only, so that any Machine can
+	// continue the program with resume(); in the meantime, this one runs others.
+	static Object[] suspend() {
+		Object[] s = {in.save(), out.save(), code, data, mem.save(), chars, stack, local,
+			dataSize, startPC, pc, fp, sp, esp, free, charFree, heapSize, mStackSize,
+			heapInit, heapMax, mStackInit, mStackMax, eStackSize, offHeap, legacy,
+			console, failed, embedded, startTime, steps, quota, parking, Gc.save()};
+		mem = null;	// not closed, s holds it
+		releaseMemory();
+		code = null; out = null; in = null; console = null;
+		return s;
+	}
+
+	// Continues a program from the result of suspend()
+	static void resume(Object[] s) {
+		int k = 0;
+		in = new Input((Object[]) s[k++]);
+		out = new Output((Object[]) s[k++]);
+		in.prompt = out;
+		code = (byte[]) s[k++]; data = (int[]) s[k++];
+		mem = Heap.restore((Object[]) s[k++]); heap = mem.array();
+		chars = (byte[]) s[k++]; stack = (int[]) s[k++]; local = (int[]) s[k++];
+		dataSize = (Integer) s[k++]; startPC = (Integer) s[k++]; pc = (Integer) s[k++];
+		fp = (Integer) s[k++]; sp = (Integer) s[k++]; esp = (Integer) s[k++];
+		free = (Integer) s[k++]; charFree = (Integer) s[k++];
+		heapSize = (Integer) s[k++]; mStackSize = (Integer) s[k++];
+		heapInit = (Integer) s[k++]; heapMax = (Integer) s[k++];
+		mStackInit = (Integer) s[k++]; mStackMax = (Integer) s[k++]; eStackSize = (Integer) s[k++];
+		offHeap = (Boolean) s[k++]; legacy = (Boolean) s[k++];
+		console = (PrintStream) s[k++];
+		failed = (Boolean) s[k++]; embedded = (Boolean) s[k++];
+		startTime = (Long) s[k++]; steps = (Long) s[k++]; quota = (Long) s[k++];
+		parking = (Boolean) s[k++];
+		Gc.restore((Object[]) s[k++]);
+		pre = null; reg = null; jit = null; tree = null; verifier = null; trace = null;
+		debug = false; profile = false; cached = false;
+	}
+
+	// Waits until the suspended program s can read. It touches no static field,
+	// so it may run while the machine runs another program.
+	static void await(Object[] s) {
+		Input in = new Input((Object[]) s[0]);
+		boolean number = ((byte[]) s[2])[(Integer) s[10]] == read;
+		try {
+			in.await(number);
+		} catch (IOException e) {
+			// the read reports it
+		}
+		s[0] = in.save();
+	}
+
+	// Ends the program that slice() has left running because its Execution was
+	// cancelled; returns stopped
+	static int cancel() {
+		try {
+			exception(": execution cancelled");
+		} finally {
+			close();
+		}
+		return report();
+	}
+
+	// Ends a run: writes the output and drops the memory of an embedded run
+	static void close() {
+		out.close();
+		if (embedded) releaseMemory(); // the Machine waits for its next program
+	}
+
+	// Prints the statistics of a run that has ended and returns its result
+	static int report() {
+		if (!embedded) {	// an Execution reports the instructions itself
+			console.print("\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms");
+			if (quota < Long.MAX_VALUE) console.print("\n-- " + steps + " instructions");
+		}
+		if (Gc.stats) Gc.printStats();
+		if (profile) printPairs(20);
+		return failed ? stopped : completed;
+	}
+
+	// Loads and sets up a program like run(), without running it; returns running
+	// if it can run, otherwise rejected. A program for slices runs on interpret(),
+	// with parking it stops before input that would block (see suspend()).
+	static int prepare(String[] arg, String name, Object[] program, InputStream input, PrintStream console,
+			boolean sliced, boolean parking) {
+		Run.console = console;
+		String fileName = program != null ? name : null;
+		boolean classic = false, fuse = true, list = false, register = false, compile = false, nodes = false;
+		boolean unchecked = false;
+		String traceName = null, outName = null, resume = null;
+		int lo = 0, hi = Integer.MAX_VALUE, method = -1;
+		long first = Long.MAX_VALUE;
 		debug = false;
+		profile = false;
+		failed = false;
+		cached = false;
+		embedded = program != null;
+		quota = Long.MAX_VALUE;
+		Run.parking = false;
+		snapshot = null;
+		marker = -1;
+		trace = null;
+		defaults();
+		Gc.stats = false;
 		for (int i = 0; i < arg.length; i++) {
+			if (takesValue(arg[i]) && i + 1 == arg.length) { fileName = null; break; }
 			if (arg[i].equals("-debug")) debug = true;
-			else fileName = arg[i];
+			else if (arg[i].equals("-trace")) { traceName = arg[++i]; debug = true; }
+			else if (arg[i].equals("-pc")) {
+				String r = arg[++i];
+				int dash = r.indexOf('-', 1);
+				try {
+					lo = Integer.parseInt(dash < 0 ? r : r.substring(0, dash));
+					hi = dash < 0 ? lo : Integer.parseInt(r.substring(dash + 1));
+				} catch (NumberFormatException e) {
+					fileName = null; break;
+				}
+				debug = true;
+			}
+			else if (arg[i].equals("-method")) {
+				try {
+					method = Integer.parseInt(arg[++i]);
+				} catch (NumberFormatException e) {
+					fileName = null; break;
+				}
+				debug = true;
+			}
+			else if (arg[i].equals("-first")) {
+				try {
+					first = Long.parseLong(arg[++i]);
+				} catch (NumberFormatException e) {
+					fileName = null; break;
+				}
+				debug = true;
+			}
+			else if ((arg[i].equals("-heap") || arg[i].equals("-mstack"))) {
+				boolean h = arg[i].equals("-heap");
+				String r = arg[++i];
+				int colon = r.indexOf(':');
+				try {
+					int init = parseSize(colon < 0 ? r : r.substring(0, colon));
+					int max = colon < 0 ? Math.max(init, h ? heapMax : mStackMax) : parseSize(r.substring(colon + 1));
+					if (h) setHeapSize(init, max); else setMethodStackSize(init, max);
+				} catch (IllegalArgumentException e) { // includes NumberFormatException
+					fileName = null; break;
+				}
+			}
+			else if (arg[i].equals("-estack")) {
+				try {
+					setExprStackSize(parseSize(arg[++i]));
+				} catch (IllegalArgumentException e) {
+					fileName = null; break;
+				}
+			}
+			else if (arg[i].equals("-offheap")) setOffHeap(true, null);
+			else if (arg[i].equals("-mapheap")) setOffHeap(true, arg[++i]);
+			else if (arg[i].equals("-gc")) Gc.stats = true;
+			else if (arg[i].equals("-classic")) classic = true;
+			else if (arg[i].equals("-profile")) profile = true;
+			else if (arg[i].equals("-nofuse")) fuse = false;
+			else if (arg[i].equals("-decode")) list = true;
+			else if (arg[i].equals("-reg")) register = true;
+			else if (arg[i].equals("-jit")) compile = true;
+			else if (arg[i].equals("-tree")) nodes = true;
+			else if (arg[i].equals("-tos")) cached = true;
+			else if (arg[i].equals("-unchecked")) unchecked = true;
+			else if (arg[i].equals("-out")) outName = arg[++i];
+			else if (arg[i].equals("-quota")) {
+				try {
+					quota = Long.parseLong(arg[++i]);
+				} catch (NumberFormatException e) {
+					fileName = null; break;
+				}
+				if (quota < 0) { fileName = null; break; }
+			}
+			else if (arg[i].equals("-snapshot") && i + 1 < arg.length) snapshot = arg[++i];
+			else if (arg[i].equals("-at") && i + 1 < arg.length) {
+				try {
+					marker = Integer.parseInt(arg[++i]);
+				} catch (NumberFormatException e) {
+					fileName = null; break;
+				}
+				if (marker < 0) { fileName = null; break; }
+			}
+			else if (arg[i].equals("-resume") && i + 1 < arg.length) resume = arg[++i];
+			else if (program == null) fileName = arg[i];
+			else { fileName = null; break; }
 		}
-		if (fileName == null) {
-			System.out.println("Syntax: java MicroJava.Run filename [-debug]");
-			return;
+		if (fileName == null || marker >= 0 && snapshot == null || snapshot != null && resume != null) {
+			console.println("Syntax: java MicroJava.Run filename [-debug] [-trace file] [-pc lo-hi] [-method adr] [-first n] [-gc] [-heap n[:max]] [-mstack n[:max]] [-estack n] [-offheap] [-mapheap file] [-classic] [-profile] [-nofuse] [-decode] [-reg] [-jit] [-tree] [-tos] [-unchecked] [-out file] [-quota n] [-snapshot file [-at adr] | -resume file]");
+			return rejected;
 		}
 		try {
-			load(fileName);
-			heap  = new int[heapSize];			// fixed sized heap
-			data  = new int[dataSize];			// global data as specified in classfile
-			stack = new int[eStackSize];		// expression stack
-			local = new int[mStackSize];		// method stack
-			fp = 0; sp = 0;
-			esp = 0;
-			free = 1;												// no block should start at address 0
-			long startTime = System.currentTimeMillis();
-			interpret();
-			System.out.print("\nCompletion took " + (System.currentTimeMillis()-startTime) + " ms");
+			reg = null;
+			jit = null;
+			tree = null;
+			verifier = null;
+			if (program != null) share(program);
+			else load(fileName);
+			if (legacy) { // only interpret() and Trace store chars with astore
+				register = false;
+				nodes = false;
+				classic = true;
+			}
+			pre = null;
+			boolean counted = sliced || quota < Long.MAX_VALUE;
+			if (offHeap || counted) { // the other interpreters index the heap array and do not count instructions
+				if (reg != null) {
+					console.println("-- " + fileName + " holds register code, which cannot "
+						+ (offHeap ? "use an off-heap heap" : "run with a quota or in slices"));
+					return rejected;
+				}
+				if (counted && (debug || profile)) {
+					console.println("-- tracing and profiling cannot run with a quota or in slices");
+					return rejected;
+				}
+				register = false;
+				classic = true;
+			}
+			if (snapshot != null || resume != null) { // a snapshot holds the state of the byte code interpreters
+				String what = snapshot != null ? "write" : "resume from";
+				if (reg != null || offHeap || debug || profile) {
+					console.println("-- " + (reg != null ? fileName + " holds register code, which cannot "
+						: offHeap ? "an off-heap heap cannot " : "tracing and profiling cannot ") + what + " a snapshot");
+					return rejected;
+				}
+				if (snapshot != null && embedded) {
+					console.println("-- only a run of its own can write a snapshot");
+					return rejected;
+				}
+				if (marker >= 0) {
+					try {
+						if (marker >= code.length || new Predecoder(code).index[marker] < 0)
+							throw new FormatException("no instruction at address " + marker);
+					} catch (FormatException e) {
+						console.println("-- -at " + marker + ": " + e.getMessage());
+						return rejected;
+					}
+				}
+				if (snapshot != null) classic = true;	// it stops at the first read or bread
+				register = nodes = cached = unchecked = false; // they start only at the beginning of main
+			}
+			if (register && reg == null) reg = new RegCode(code, startPC, dataSize);
+			if (nodes && reg == null && !debug && !classic && !profile) {
+				try {
+					tree = new Tree(predecoded(program, false), startPC);
+				} catch (FormatException e) {
+					tree = null; // leave malformed code to the byte code interpreter
+				}
+			}
+			if (reg == null && tree == null && !debug && !classic && !profile) { // tracing needs the original byte code
+				try {
+					if (unchecked && !compile && !cached) {
+						try {
+							verifier = new Verifier(predecoded(program, false), startPC, dataSize); // without superinstructions
+						} catch (FormatException e) {
+							verifier = null; // run with checks
+						}
+					}
+					pre = predecoded(program, fuse && !cached); // interpretCached() has no superinstructions
+					if (list) Decoder.decode(pre);
+				} catch (FormatException e) {
+					pre = null; // leave malformed code to the byte code interpreter
+				}
+				if (pre != null && compile && !cached) {
+					try {
+						jit = new Jit(code, predecoded(program, false), startPC);
+					} catch (FormatException e) {
+						jit = null; // methods the verifier of the JVM might reject
+					}
+				}
+			}
+			try {
+				initMemory();
+			} catch (IOException e) {
+				console.println("-- cannot allocate the heap: " + e.getMessage());
+				return rejected;
+			}
+			try {
+				int n = embedded ? 1 << 12 : 1 << 16;	// an Engine may keep thousands of runs waiting
+				out = outName == null ? new Output(n) : new Output(outName, n);
+				in = input == null ? Input.stdin() : new Input(input, n);
+				in.prompt = out;
+			} catch (IOException e) {
+				console.println("-- cannot write output file " + outName);
+				return rejected;
+			}
+			startTime = System.currentTimeMillis();
+			if (profile) {
+				pairs = new int[trap + 1][trap + 1];
+				lastOp = 0;
+			}
+			if ((debug || profile) && reg == null) {
+				if (debug && traceName == null)
+					traceName = (fileName.endsWith(".obj") ? fileName.substring(0, fileName.length() - 4) : fileName) + ".trace";
+				try {
+					trace = new Trace(debug ? traceName : null);
+				} catch (IOException e) {
+					console.println("-- cannot write trace file " + traceName);
+					out.close();
+					return rejected;
+				}
+				trace.lo = lo; trace.hi = hi;
+				trace.method = method;
+				trace.first = first;
+			}
+			steps = 0;
+			stepLimit = quota;
+			pc = startPC;
+			if (resume != null) {
+				try {
+					byte[] output = Snapshot.read(resume);
+					if (pre != null) Snapshot.translate(pre);
+					out.write(output);
+				} catch (IOException | FormatException e) {
+					console.println("-- cannot resume from snapshot file " + resume + ": "
+						+ (e instanceof NoSuchFileException ? "not found" : e.getMessage()));
+					out.close();
+					return rejected;
+				}
+			}
+			if (snapshot != null) out.keep();
+			if (marker >= 0) {
+				markerOp = code[marker];
+				code[marker] = 0;	// stops interpretSlice() there, see takeSnapshot()
+			}
+			Run.parking = parking && sliced;
+			return running;
 		} catch (FileNotFoundException e) {
-			System.out.println("-- file " + fileName + " not found");
+			console.println("-- file " + fileName + " not found");
 		} catch (IOException e) {
-			System.out.println("-- error reading file " + fileName);
+			console.println("-- error reading file " + fileName);
 		} catch (FormatException e) {
-			System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+			console.println("-- corrupted object file " + fileName + ": " + e.getMessage());
 		}
+		return rejected;
+	}
+
+	//----- programs shared by the machines of an Engine
+
+	// Decodes the object file in image for a Program: its code, its type
+	// information and its predecoded streams, which no run changes. The result
+	// consists of classes of the JDK, so that every Machine can run it (see
+	// share()); if image is malformed, it is a String that says why.
+	static Object decode(byte[] image) {
+		try {
+			reg = null;
+			load(new ByteArrayInputStream(image));
+			if (reg != null) return new Object[] {null, dataSize, 0, Gc.types(), null, null, reg.save(), false};
+			Object[] plain = null, fused = null;
+			try {
+				Predecoder p = new Predecoder(code);
+				plain = p.save();
+				p = new Predecoder(code);
+				p.fuse();
+				fused = p.save();
+			} catch (FormatException e) {
+				// malformed code runs on the byte code interpreter
+			}
+			return new Object[] {code, dataSize, startPC, Gc.types(), plain, fused, null, legacy};
+		} catch (IOException e) {
+			return "truncated";
+		} catch (FormatException e) {
+			return e.getMessage();
+		} finally {
+			code = null; reg = null;
+		}
+	}
+
+	// Loads a program that decode() returned, like load()
+	static void share(Object[] program) {
+		code = (byte[]) program[0];
+		dataSize = (Integer) program[1];
+		startPC = (Integer) program[2];
+		Gc.setTypes((Object[]) program[3]);
+		reg = program[6] != null ? new RegCode((Object[]) program[6]) : null;
+		legacy = (Boolean) program[7];
+	}
+
+	// The predecoded stream of the loaded code, with superinstructions if fused;
+	// that of program if it has one (see decode())
+	static Predecoder predecoded(Object[] program, boolean fused) throws FormatException {
+		Object[] s = program != null ? (Object[]) program[fused ? 5 : 4] : null;
+		if (s != null) return new Predecoder(s);
+		Predecoder p = new Predecoder(code);
+		if (fused) p.fuse();
+		return p;
 	}
 }
 
@@ -484,6 +2199,7 @@ class FormatException extends Exception {
 }
 
 class VMError extends Exception {
+	boolean located;	// pc already holds the address of the failing instruction
 	VMError(String s) { super(s); }
 }
 
@@ -0,0 +1,83 @@
+/* MicroJava Scheduler
+ *
+ * Runs many Executions on a fixed number of threads, in slices of about
+ * quantum instructions on the classic interpreter. After a slice, an
+ * execution goes to the end of the queue, so one that loops forever takes no
+ * more than its share of the threads. One that waits for input blocks its
+ * thread, however.
+ */
+package MicroJava;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class Scheduler {
+
+    private final ExecutorService pool;
+    private final long quantum;
+    private int active;       // executions that have not ended
+    private boolean closed;   // shutdown() was called
+
+    public Scheduler(int threads, long quantum) {
+        if (threads < 1 || quantum < 1) throw new IllegalArgumentException("scheduler " + threads + " " + quantum);
+        this.quantum = quantum;
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "MicroJava scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Queues e, which must not have run yet; the future completes with the result of e
+    public synchronized CompletableFuture<Integer> submit(Execution e) {
+        if (closed) throw new IllegalStateException("scheduler is shut down");
+        CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        active++;
+        pool.execute(() -> {
+            try {
+                int r = e.start();
+                if (r == Execution.running) pool.execute(new Slice(e, result));
+                else ended(result, r);
+            } catch (RuntimeException | Error x) {
+                ended(result, x);
+            }
+        });
+        return result;
+    }
+
+    // Lets the submitted executions end, but accepts no new ones
+    public synchronized void shutdown() {
+        closed = true;
+        if (active == 0) pool.shutdown();
+    }
+
+    private void ended(CompletableFuture<Integer> result, Object r) {
+        synchronized (this) {
+            if (--active == 0 && closed) pool.shutdown();
+        }
+        if (r instanceof Throwable) result.completeExceptionally((Throwable) r);
+        else result.complete((Integer) r);
+    }
+
+    // The next slice of an execution
+    private final class Slice implements Runnable {
+        private final Execution e;
+        private final CompletableFuture<Integer> result;
+
+        Slice(Execution e, CompletableFuture<Integer> result) {
+            this.e = e;
+            this.result = result;
+        }
+
+        public void run() {
+            try {
+                int r = e.slice(quantum);
+                if (r == Execution.running) pool.execute(this); // to the end of the queue
+                else ended(result, r);
+            } catch (RuntimeException | Error x) {
+                ended(result, x);
+            }
+        }
+    }
+}
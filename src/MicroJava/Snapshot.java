@@ -0,0 +1,125 @@
+/* MicroJava Heap Snapshot
+ *
+ * The state of a program after its initialization, so that later runs can
+ * skip it (Run -snapshot file, Run -resume file). It is written on the
+ * classic interpreter just before the first read or bread, or before the
+ * instruction at -at adr, so it never contains input. It only resumes the
+ * object file that wrote it.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+final class Snapshot {
+
+    private static final int magic = 0x4d4a5331; // "MJS1"
+    private static final int header = 15;         // words before the areas
+
+    // Writes the state of the current run to fileName: the registers of the VM
+    // (pc, fp, sp, esp, free, charFree, the free list of Gc), the sizes of the
+    // areas, the global data, the used part of the heap, of the method stack,
+    // of the expression stack and of the chars, and the output so far. A run
+    // that reads it needs at least as much room (-heap, -mstack, -estack).
+    static void write(String fileName) throws IOException {
+        byte[] output = Run.out.kept();
+        long bytes = 4L * (header + Run.dataSize + Run.free + Run.sp + Run.esp) + Run.charFree + output.length;
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            b.putInt(magic);
+            b.putLong(checksum());
+            b.putInt(Run.pc); b.putInt(Run.fp); b.putInt(Run.sp); b.putInt(Run.esp);
+            b.putInt(Run.free); b.putInt(Run.charFree); b.putInt(Gc.freeList());
+            b.putInt(Run.heapSize); b.putInt(Run.mStackSize); b.putInt(Run.chars.length);
+            b.putInt(Run.dataSize); b.putInt(output.length);
+            b.asIntBuffer().put(Run.data, 0, Run.dataSize);
+            b.position(b.position() + 4 * Run.dataSize);
+            b.asIntBuffer().put(Run.heap, 0, Run.free);
+            b.position(b.position() + 4 * Run.free);
+            b.asIntBuffer().put(Run.local, 0, Run.sp);
+            b.position(b.position() + 4 * Run.sp);
+            b.asIntBuffer().put(Run.stack, 0, Run.esp);
+            b.position(b.position() + 4 * Run.esp);
+            b.put(Run.chars, 0, Run.charFree);
+            b.put(output);
+            b.force();
+        }
+    }
+
+    // Replaces the memory of the current run, after Run.initMemory(), by the snapshot
+    // in fileName; returns the output of the program before the snapshot
+    static byte[] read(String fileName) throws IOException, FormatException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (ch.size() < 4 * header) throw new FormatException("not a snapshot");
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (b.getInt() != magic) throw new FormatException("not a snapshot");
+            if (b.getLong() != checksum()) throw new FormatException("written by another object file");
+            int pc = b.getInt(), fp = b.getInt(), sp = b.getInt(), esp = b.getInt();
+            int free = b.getInt(), charFree = b.getInt(), freeList = b.getInt();
+            int heapSize = b.getInt(), mStackSize = b.getInt(), nChars = b.getInt();
+            int dataSize = b.getInt(), nOutput = b.getInt();
+            if (pc < 0 || pc >= Run.code.length || dataSize != Run.dataSize || free < 1 || free > heapSize
+                    || sp < 0 || sp > mStackSize || fp < 0 || fp > sp || esp < 0 || charFree < 0 || charFree > nChars
+                    || nOutput < 0 || ch.size() != 4L * (header + dataSize + free + sp + esp) + charFree + nOutput)
+                throw new FormatException("damaged");
+            if (heapSize > Run.heapSize) {
+                if (heapSize > Run.heapMax || !Run.mem.grow(heapSize))
+                    throw new FormatException("needs a heap of " + heapSize + " words");
+                Run.heap = Run.mem.array();
+                Run.heapSize = heapSize;
+            }
+            if (mStackSize > Run.mStackSize) {
+                if (mStackSize > Run.mStackMax) throw new FormatException("needs a method stack of " + mStackSize + " words");
+                Run.local = new int[mStackSize];
+                Run.mStackSize = mStackSize;
+            }
+            if (esp > Run.stack.length) throw new FormatException("needs an expression stack of " + esp + " words");
+            if (nChars > Run.chars.length) Run.chars = new byte[nChars];
+            b.asIntBuffer().get(Run.data, 0, dataSize);
+            b.position(b.position() + 4 * dataSize);
+            b.asIntBuffer().get(Run.heap, 0, free);
+            b.position(b.position() + 4 * free);
+            b.asIntBuffer().get(Run.local, 0, sp);
+            b.position(b.position() + 4 * sp);
+            b.asIntBuffer().get(Run.stack, 0, esp);
+            b.position(b.position() + 4 * esp);
+            b.get(Run.chars, 0, charFree);
+            byte[] output = new byte[nOutput];
+            b.get(output);
+            Run.pc = pc; Run.fp = fp; Run.sp = sp; Run.esp = esp;
+            Run.free = free; Run.charFree = charFree;
+            Gc.setFreeList(freeList);
+            return output;
+        }
+    }
+
+    // Turns pc and the return addresses in the frames of the method stack, code
+    // addresses of the classic interpreter, into the stream indices that the
+    // predecoded interpreters (and -jit) keep there; pc itself stays a code
+    // address, from which they start. A frame at fp holds the return address
+    // at fp-2 and the fp of the caller at fp-1; the frame of main at 1 has no
+    // return address.
+    static void translate(Predecoder pre) throws FormatException {
+        int[] local = Run.local, index = pre.index;
+        if (index[Run.pc] < 0) throw new FormatException("damaged");
+        for (int f = Run.fp; f > 1; f = local[f - 1]) {
+            int ret = local[f - 2];
+            if (ret < 0 || ret >= index.length || index[ret] < 0 || local[f - 1] >= f) throw new FormatException("damaged");
+            local[f - 2] = index[ret];
+        }
+    }
+
+    // Identifies the loaded object file
+    private static long checksum() {
+        CRC32 crc = new CRC32();
+        crc.update(Run.code);
+        crc.update(ByteBuffer.allocate(8).putInt(Run.dataSize).putInt(Run.startPC).flip());
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,176 @@
+/* MicroJava Stack Flow Analysis
+ *
+ * Splits a predecoded stream (without superinstructions) into its methods
+ * and computes the expression stack depth before every instruction.
+ */
+package MicroJava;
+
+class StackFlow {
+
+    private static final int // instruction codes of the predecoded stream
+            load        =  1,
+            store       =  6,
+            getstatic   = 11,
+            putstatic   = 12,
+            getfield    = 13,
+            putfield    = 14,
+            const_      = 22,
+            add         = 23,
+            sub         = 24,
+            mul         = 25,
+            div         = 26,
+            rem         = 27,
+            neg         = 28,
+            shl         = 29,
+            shr         = 30,
+            new_        = 31,
+            newarray    = 32,
+            aload       = 33,
+            astore      = 34,
+            baload      = 35,
+            bastore     = 36,
+            arraylength = 37,
+            pop         = 38,
+            jmp         = 39,
+            jeq         = 40,
+            jge         = 45,
+            call        = 46,
+            return_     = 47,
+            enter       = 48,
+            exit        = 49,
+            read        = 50,
+            print       = 51,
+            bread       = 52,
+            bprint      = 53,
+            trap        = 54;
+
+    Predecoder p;
+    boolean[] start;    // start[i]: a method begins at stream index i
+    boolean[] function; // function[i]: the method beginning at i returns a value
+    boolean[] leader;   // leader[i]: instruction i is the target of a jump
+    int[] end;          // end[i]: stream index behind the method beginning at i
+    int[] depth;        // depth[i]: stack depth before instruction i, -1 if unreachable
+
+    StackFlow(Predecoder p, int startPC) throws FormatException {
+        this.p = p;
+        if (startPC < 0 || startPC >= p.index.length || p.index[startPC] < 0)
+            throw new FormatException("startPC out of code area");
+        start = new boolean[p.size];
+        function = new boolean[p.size];
+        leader = new boolean[p.size];
+        end = new int[p.size];
+        depth = new int[p.size];
+        int last = -1, lastInstr = -1;
+        for (int i = 0; i < p.size; i = p.next(i)) {
+            int op = p.ops[i];
+            depth[i] = -1;
+            if (op >= jmp && op <= call) {
+                int t = p.ops[i + 1];
+                if (op != call) leader[t] = true;
+                else if (p.ops[t] != enter) throw new FormatException("call without enter at " + p.addr[i]);
+            } else if (op == enter) {
+                if (last >= 0) {
+                    end[last] = i;
+                    function[last] = p.ops[lastInstr] == trap;
+                }
+                start[i] = true;
+                last = i;
+            }
+            lastInstr = i;
+        }
+        if (last < 0 || p.ops[p.index[startPC]] != enter) throw new FormatException("main() without enter");
+        end[last] = p.size;
+        function[last] = p.ops[lastInstr] == trap;
+    }
+
+    // Returns the number of values instruction i takes from the expression stack
+    int pops(int i) {
+        switch (p.ops[i]) {
+            case store: case putstatic: case getfield: case neg: case newarray:
+            case arraylength: case pop:
+                return 1;
+            case putfield: case add: case sub: case mul: case div: case rem:
+            case shl: case shr: case aload: case baload: case print: case bprint:
+                return 2;
+            case astore: case bastore:
+                return 3;
+            case call:
+                return p.ops[p.ops[i + 1] + 1]; // parameters of the called method
+            default:
+                if (p.ops[i] >= jeq && p.ops[i] <= jge) return 2;
+                return 0;
+        }
+    }
+
+    // Returns the number of values instruction i leaves on the expression stack
+    int pushes(int i) {
+        switch (p.ops[i]) {
+            case load: case getstatic: case getfield: case const_: case add:
+            case sub: case mul: case div: case rem: case neg: case shl: case shr:
+            case new_: case newarray: case aload: case baload: case arraylength:
+            case read: case bread:
+                return 1;
+            case call:
+                return function[p.ops[i + 1]] ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    // Computes depth[] for the method beginning at from and returns its
+    // maximum stack depth
+    int analyze(int from) throws FormatException {
+        int to = end[from];
+        int psize = p.ops[from + 1], nVars = p.ops[from + 2];
+        if (psize < 0 || psize > nVars) throw new FormatException("illegal enter at " + p.addr[from]);
+        int[] work = new int[to - from + 1];
+        int n = 0, max = 0;
+        for (int i = from; i < to; i = p.next(i)) depth[i] = -1;
+        int first = p.next(from);
+        if (first >= to) throw new FormatException("empty method at " + p.addr[from]);
+        depth[first] = 0;
+        work[n++] = first;
+        while (n > 0) {
+            int i = work[--n];
+            int op = p.ops[i];
+            int d = depth[i] - pops(i);
+            if (d < 0) throw new FormatException("stack underflow at " + p.addr[i]);
+            d += pushes(i);
+            if (d > max) max = d;
+            if (op == enter) throw new FormatException("enter inside method at " + p.addr[i]);
+            if (op == load || op == store) {
+                if (p.ops[i + 1] < 0 || p.ops[i + 1] >= nVars)
+                    throw new FormatException("illegal local variable at " + p.addr[i]);
+            }
+            if (op == exit) {
+                int j = p.next(i);
+                if (j >= to || p.ops[j] != return_)
+                    throw new FormatException("exit without return at " + p.addr[i]);
+            }
+            if (op == return_ && depth[i] != (function[from] ? 1 : 0))
+                throw new FormatException("unbalanced stack at return at " + p.addr[i]);
+            int[] succ = new int[2];
+            int nSucc = 0;
+            if (op >= jmp && op <= jge) {
+                int t = p.ops[i + 1];
+                if (t < from || t >= to) throw new FormatException("jump out of method at " + p.addr[i]);
+                succ[nSucc++] = t;
+            }
+            if (op != jmp && op != return_ && op != trap && op != 0) {
+                int j = p.next(i);
+                if (j >= to) throw new FormatException("method ends without return at " + p.addr[i]);
+                succ[nSucc++] = j;
+            }
+            for (int k = 0; k < nSucc; k++) {
+                int j = succ[k];
+                if (depth[j] < 0) {
+                    depth[j] = d;
+                    work[n++] = j;
+                } else if (depth[j] != d) {
+                    throw new FormatException("inconsistent stack depth at " + p.addr[j]);
+                }
+            }
+        }
+        return max;
+    }
+}
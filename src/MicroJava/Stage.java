@@ -0,0 +1,267 @@
+/* MicroJava Stage
+ *
+ * Runs a program as a stage of a java.util.concurrent.Flow pipeline: the
+ * input items are what it reads, the output items (Strings) what it prints.
+ * The stage requests an input item when the program has read the previous
+ * one and prints only as far as its subscriber requested; a cancelled
+ * subscription stops the program (Execution.cancel()).
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class Stage implements Flow.Processor<Object, String> {
+
+    private final Engine engine;
+    private final Program program;
+    private final String[] options;
+    private final ReentrantLock lock = new ReentrantLock(); // guards the fields below
+    private final Condition changed = lock.newCondition();
+
+    // input
+    private Flow.Subscription upstream;
+    private byte[] data = new byte[0];   // the last input item: pos..data.length-1 is unread
+    private int pos;
+    private boolean requested;           // an item was requested and has not arrived
+    private boolean ended;               // the publisher completed
+    private Throwable failure;           // the publisher failed, or an item was wrong
+
+    // output
+    private Flow.Subscriber<? super String> downstream;
+    private long demand;                 // items the subscriber requested
+    private boolean cancelled;
+    private Throwable misuse;            // request() with n <= 0
+    private Execution execution;         // set before the subscriber gets its subscription
+
+    private final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+    public Stage(Engine engine, Program program, String... options) {
+        this.engine = engine;
+        this.program = program;
+        this.options = options.clone();
+    }
+
+    // Completes with the result of the execution (see Execution)
+    public CompletableFuture<Integer> result() {
+        return result;
+    }
+
+    //----- the subscriber of the input
+
+    public void onSubscribe(Flow.Subscription s) {
+        lock.lock();
+        try {
+            if (upstream == null && !cancelled) {
+                upstream = s;
+                changed.signalAll(); // the program may wait for it
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        s.cancel(); // a second publisher, or the output was cancelled
+    }
+
+    // An Integer is read() as a number on a line, a Character by bread(), a
+    // CharSequence char by char; a char is a byte of the program (ISO-8859-1)
+    public void onNext(Object item) {
+        byte[] b;
+        if (item instanceof Integer) b = (item + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        else if (item instanceof Character || item instanceof CharSequence) b = item.toString().getBytes(StandardCharsets.ISO_8859_1);
+        else if (item == null) throw new NullPointerException();
+        else {
+            upstream.cancel();
+            onError(new IllegalArgumentException("stage input " + item.getClass().getName()));
+            return;
+        }
+        lock.lock();
+        try {
+            data = b;
+            pos = 0;
+            requested = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onError(Throwable t) {
+        lock.lock();
+        try {
+            if (failure == null) failure = t;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onComplete() {
+        lock.lock();
+        try {
+            ended = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //----- the publisher of the output
+
+    public void subscribe(Flow.Subscriber<? super String> s) {
+        boolean first;
+        lock.lock();
+        try {
+            first = downstream == null;
+            if (first) downstream = s;
+        } finally {
+            lock.unlock();
+        }
+        if (!first) { // a stage runs its program once
+            s.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {}
+                public void cancel() {}
+            });
+            s.onError(new IllegalStateException("stage of " + program.name() + " has a subscriber"));
+            return;
+        }
+        Execution e = engine.execution(program, new Feed(), new Sink(), options);
+        lock.lock();
+        try {
+            execution = e;
+        } finally {
+            lock.unlock();
+        }
+        s.onSubscribe(new Demand());
+        (Execution.virtualThreads() ? e.startVirtual() : e.startPlatform())
+                .whenComplete((r, x) -> ended(r, x));
+    }
+
+    // The subscriber completes also if the program stopped with an exception,
+    // whose message is in the output; it fails if the publisher failed
+    private void ended(Integer r, Throwable x) {
+        Throwable error;
+        boolean quiet;
+        lock.lock();
+        try {
+            error = x != null ? x : misuse != null ? misuse : failure;
+            quiet = cancelled && misuse == null;
+        } finally {
+            lock.unlock();
+        }
+        if (!quiet) {
+            if (error != null) downstream.onError(error);
+            else downstream.onComplete();
+        }
+        if (x != null) result.completeExceptionally(x);
+        else result.complete(r);
+    }
+
+    // The subscription of the output
+    private final class Demand implements Flow.Subscription {
+
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    if (misuse == null) misuse = new IllegalArgumentException("request(" + n + ")");
+                    cancel();
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void cancel() {
+            Flow.Subscription s;
+            Execution e;
+            lock.lock();
+            try {
+                cancelled = true;
+                s = upstream;
+                e = execution;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            e.cancel(); // the program may never read or print again
+            if (s != null) s.cancel();
+        }
+    }
+
+    // What the program reads: the input items, one at a time
+    private final class Feed extends InputStream {
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            lock.lock();
+            try {
+                while (pos == data.length) {
+                    if (cancelled) throw new IOException("output cancelled");
+                    if (failure != null) throw new IOException(failure);
+                    if (ended) return -1;
+                    Flow.Subscription s = requested ? null : upstream;
+                    if (s != null) {
+                        requested = true;
+                        lock.unlock(); // the publisher may call onNext() at once
+                        try {
+                            s.request(1);
+                        } finally {
+                            lock.lock();
+                        }
+                    } else {
+                        changed.awaitUninterruptibly();
+                    }
+                }
+                int n = Math.min(len, data.length - pos);
+                System.arraycopy(data, pos, b, off, n);
+                pos += n;
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int available() {
+            lock.lock();
+            try {
+                return data.length - pos;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // What the program prints: passed on as far as the subscriber requested
+    private final class Sink extends OutputStream {
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            lock.lock();
+            try {
+                while (demand == 0 && !cancelled) changed.awaitUninterruptibly();
+                if (cancelled) throw new IOException("output cancelled");
+                demand--;
+            } finally {
+                lock.unlock();
+            }
+            downstream.onNext(new String(b, off, len, StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/* MicroJava Engine Tester
+ *
+ * Runs programs on an Engine, in Stages and on a Daemon and checks what they
+ * use and print.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestEngine {
+
+    public static void main(String args[]) {
+        executeTests();
+    }
+
+    private static void executeTests() {
+        testMachineCap();
+        testIdleMachinesDropped();
+        testSchedulerMachines();
+        testQuota();
+        testParkedExecutions();
+        testStagePipeline();
+        testCancelNonReadingStage();
+        testDaemon();
+    }
+
+    // Compiles source into a program of engine
+    private static Program compile(Engine engine, String name, String source) {
+        try {
+            return engine.load(name, image(name, source));
+        } catch (IOException e) {
+            throw new IllegalStateException(name + ": " + e.getMessage());
+        }
+    }
+
+    // Compiles source into an object file image
+    private static byte[] image(String name, String source) {
+        Parser parser = new Parser(new StringReader(source));
+        parser.parse();
+        if (parser.errors > 0) throw new IllegalStateException(name + ": " + parser.errors + " errors");
+        ByteArrayOutputStream obj = new ByteArrayOutputStream();
+        parser.code.write(obj);
+        return obj.toByteArray();
+    }
+
+    private static Program count(Engine engine) {
+        return compile(engine, "Count", "program Count {"
+                + " void main() int i, s; { i = 0; s = 0;"
+                + " while (i < 200000) { s = s + i % 7; i = i + 1; } print(s); } }");
+    }
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok: " : "FAILED: ") + what);
+    }
+
+    // More threads than machines: the executions wait for a machine
+    private static void testMachineCap() {
+        System.out.println("Test: machine cap");
+        Engine engine = new Engine(2);
+        Program p = count(engine);
+        int n = 8;
+        Thread[] threads = new Thread[n];
+        boolean[] ok = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int k = i;
+            threads[i] = new Thread(() -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int r = engine.execution(p, null, out).run();
+                ok[k] = r == Execution.completed && out.toString().equals("599994");
+            });
+            threads[i].start();
+        }
+        int completed = 0;
+        for (int i = 0; i < n; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (ok[i]) completed++;
+        }
+        check(completed == n, completed + " of " + n + " executions completed");
+        check(engine.machines() <= 2, engine.machines() + " machines for a cap of 2");
+        System.out.println();
+    }
+
+    // Executions in slices give their machine back between two slices, so
+    // the engine needs no more machines than the scheduler has threads
+    private static void testSchedulerMachines() {
+        System.out.println("Test: Scheduler machines");
+        Engine engine = new Engine();
+        Program p = count(engine);
+        int threads = 4, n = 200;
+        Scheduler scheduler = new Scheduler(threads, 10000);
+        ByteArrayOutputStream[] out = new ByteArrayOutputStream[n];
+        CompletableFuture<?>[] results = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = new ByteArrayOutputStream();
+            String[] options = i % 2 == 0 ? new String[0] : new String[] {"-offheap"}; // its heap moves too
+            results[i] = scheduler.submit(engine.execution(p, null, out[i], options));
+        }
+        scheduler.shutdown();
+        int completed = 0;
+        for (int i = 0; i < n; i++) {
+            if (results[i].join().equals(Execution.completed) && out[i].toString().equals("599994")) completed++;
+        }
+        check(completed == n, completed + " of " + n + " executions completed");
+        check(engine.machines() <= threads, engine.machines() + " machines for " + threads + " threads");
+        System.out.println();
+    }
+
+    // An execution that exceeds its quota stops, one in slices as well
+    private static void testQuota() {
+        System.out.println("Test: instruction quota");
+        Engine engine = new Engine();
+        Program p = compile(engine, "Spin", "program Spin {"
+                + " void main() int i; { i = 0; while (i == 0) i = 0; } }");
+        Execution e = engine.execution(p, null, new ByteArrayOutputStream(), "-quota", "100000");
+        check(e.run() == Execution.stopped && e.instructions() >= 100000,
+                "run() stopped after " + e.instructions() + " instructions");
+        Scheduler scheduler = new Scheduler(1, 1000);
+        e = engine.execution(p, null, new ByteArrayOutputStream(), "-quota", "100000");
+        CompletableFuture<Integer> r = scheduler.submit(e);
+        scheduler.shutdown();
+        check(r.join() == Execution.stopped && e.instructions() >= 100000,
+                "the scheduler stopped it after " + e.instructions() + " instructions");
+        System.out.println();
+    }
+
+    // Executions that wait for input hold no machine. runParked() is what
+    // startVirtual() runs; here it runs on platform threads, which any JVM has.
+    private static void testParkedExecutions() {
+        System.out.println("Test: executions waiting for input");
+        Engine engine = new Engine(2);
+        Program p = compile(engine, "Echo", "program Echo {"
+                + " void main() int x; { read(x); while (x != 0) { print(x); read(x); } } }");
+        int n = 20;
+        LoadTest.Pipe[] in = new LoadTest.Pipe[n];
+        ByteArrayOutputStream[] out = new ByteArrayOutputStream[n];
+        int[] result = new int[n];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            int k = i;
+            in[i] = new LoadTest.Pipe();
+            out[i] = new ByteArrayOutputStream();
+            Execution e = engine.execution(p, in[i], out[i]);
+            threads[i] = new Thread(() -> result[k] = e.runParked());
+            threads[i].start();
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (engine.waiting() < n && System.currentTimeMillis() < deadline) LoadTest.sleep(10);
+        check(engine.waiting() == n, engine.waiting() + " of " + n + " executions wait");
+        check(engine.machines() <= 2, engine.machines() + " machines for a cap of 2");
+        for (int i = 0; i < n; i++) in[i].write("7 0\n");
+        int completed = 0;
+        for (int i = 0; i < n; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (result[i] == Execution.completed && out[i].toString().equals("7")) completed++;
+        }
+        check(completed == n, completed + " of " + n + " executions completed after their input came");
+        System.out.println();
+    }
+
+    // Two chained stages: the first doubles the numbers, the second adds them up
+    private static void testStagePipeline() {
+        System.out.println("Test: Stage pipeline");
+        Engine engine = new Engine();
+        Program twice = compile(engine, "Twice", "program Twice {"
+                + " void main() int x; { read(x); while (x != 0) { print(2 * x, 4); read(x); } print(0, 4); } }");
+        Program sum = compile(engine, "Sum", "program Sum {"
+                + " void main() int x, s; { s = 0; read(x); while (x != 0) { s = s + x; read(x); } print(s); } }");
+        Stage first = new Stage(engine, twice), second = new Stage(engine, sum);
+        StringBuilder out = new StringBuilder();
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        first.subscribe(second);
+        second.subscribe(new Flow.Subscriber<String>() {
+            public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+            public void onNext(String item) { out.append(item); }
+            public void onError(Throwable t) { done.completeExceptionally(t); }
+            public void onComplete() { done.complete(null); }
+        });
+        try (SubmissionPublisher<Object> numbers = new SubmissionPublisher<Object>()) {
+            numbers.subscribe(first);
+            for (int i = 1; i <= 100; i++) numbers.submit(i);
+            numbers.submit(0);
+        }
+        boolean ended = await(done) && await(first.result()) && await(second.result());
+        check(ended && out.toString().equals("10100"), "the pipeline printed " + out);
+        check(ended && first.result().join() == Execution.completed
+                && second.result().join() == Execution.completed, "both stages completed");
+        System.out.println();
+    }
+
+    // A stage whose program neither reads nor prints stops when its
+    // subscriber cancels
+    private static void testCancelNonReadingStage() {
+        System.out.println("Test: cancel a stage that does not read");
+        Engine engine = new Engine();
+        Program p = compile(engine, "Spin", "program Spin {"
+                + " void main() int i; { i = 0; while (i == 0) i = 0; } }");
+        Stage stage = new Stage(engine, p);
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        stage.subscribe(new Flow.Subscriber<String>() {
+            public void onSubscribe(Flow.Subscription s) { subscription[0] = s; s.request(1); }
+            public void onNext(String item) {}
+            public void onError(Throwable t) {}
+            public void onComplete() {}
+        });
+        LoadTest.sleep(200); // the program is in its loop
+        subscription[0].cancel();
+        boolean ended = await(stage.result());
+        check(ended, "the program ended after cancel");
+        check(ended && stage.result().join() == Execution.stopped, "it stopped with an exception");
+        System.out.println();
+    }
+
+    // Clients run programs on a daemon, which keeps only the programs used last
+    private static void testDaemon() {
+        System.out.println("Test: Daemon and Client");
+        try {
+            File dir = Files.createTempDirectory("mjdaemon").toFile();
+            File echo = new File(dir, "echo.obj"), count = new File(dir, "count.obj");
+            Files.write(echo.toPath(), image("Echo", "program Echo {"
+                    + " void main() int x; { read(x); while (x != 0) { print(x); read(x); } } }"));
+            Files.write(count.toPath(), image("Count", "program Count {"
+                    + " void main() int i, s; { i = 0; s = 0;"
+                    + " while (i < 200000) { s = s + i % 7; i = i + 1; } print(s); } }"));
+            SocketAddress address = UnixDomainSocketAddress.of(new File(dir, "daemon").getPath());
+            Daemon daemon = new Daemon(2, 1);
+            Thread server = new Thread(() -> {
+                try {
+                    daemon.serve(address, 4, false, null, 0);
+                } catch (IOException e) {
+                    System.out.println("-- daemon: " + e.getMessage());
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int r = client(address, echo, false, "7 0\n", out);
+            check(r == Execution.completed && out.toString().startsWith("7\nCompletion took"),
+                    "a program by path printed " + out.toString().replace("\n", "|"));
+            out.reset();
+            r = client(address, count, true, "", out, "-quota", "100");
+            check(r == Execution.stopped && out.toString().contains("\n-- 10"),
+                    "a program sent with -quota stopped: " + out.toString().replace("\n", "|"));
+            out.reset();
+            r = client(address, count, false, "", out);
+            check(r == Execution.completed && out.toString().startsWith("599994"), "a second program by path");
+            check(daemon.cached() == 1, daemon.cached() + " program in a cache of 1");
+            out.reset();
+            r = client(address, echo, false, "", out, "-out", "x");
+            check(r == Execution.rejected && out.toString().startsWith("-- -out cannot be used"), "-out rejected");
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        } catch (IOException e) {
+            check(false, e.getMessage());
+        }
+        System.out.println();
+    }
+
+    // Runs obj with Client on the daemon at address, which may still be starting
+    private static int client(SocketAddress address, File obj, boolean send, String input,
+            OutputStream out, String... options) throws IOException {
+        for (int tries = 0; ; tries++) {
+            try {
+                return Client.run(address, obj.getPath(), send, Arrays.asList(options),
+                        new ByteArrayInputStream(input.getBytes()), out);
+            } catch (SocketException | NoSuchFileException e) {
+                if (tries == 300) throw e;
+                LoadTest.sleep(10);
+            }
+        }
+    }
+
+    // Waits up to 30 s for f; false if it has not completed normally by then
+    private static boolean await(CompletableFuture<?> f) {
+        try {
+            f.get(30, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // A machine idle for longer than keep-alive is dropped
+    private static void testIdleMachinesDropped() {
+        System.out.println("Test: idle machines dropped");
+        Engine engine = new Engine(2, 100);
+        Program p = count(engine);
+        check(engine.machines() == 1, engine.machines() + " machine after load");
+        try {
+            Thread.sleep(300);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        check(engine.machines() == 0, engine.machines() + " machines 300 ms later");
+        int r = engine.execution(p, null, new ByteArrayOutputStream()).run();
+        check(r == Execution.completed && engine.machines() == 1, "a new machine for the next run");
+        System.out.println();
+    }
+}
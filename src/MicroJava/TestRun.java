@@ -0,0 +1,253 @@
+/* MicroJava Run Tester
+ *
+ * Runs every program of mj_files (or of the directory given as argument) in
+ * each way the VM can run it and checks that it prints what -classic prints,
+ * and -classic what name.out holds if there is such a file. Some of them
+ * also run with a fixed method stack or heap (see bounded). Each program
+ * also runs on an Engine and with -batch over two copies of its input, in
+ * threads and in worker JVMs, and from a snapshot before its first input.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestRun {
+
+    private static final String defaultInput = "5\n3\n9\n-4\n1\n7\n0\n"; // if there is no name.in
+    private static final String[][] engines = {{}, {"-nofuse"}, {"-unchecked"}, {"-tos"}, {"-reg"}, {"-jit"}, {"-tree"}, {"-offheap"}};
+    private static final String[][] resumers = {{}, {"-classic"}, {"-jit"}}; // what can run from a snapshot
+    private static final String[][] bounded = { // program, options
+            {"char_arrays.mj", "-heap", "500:500"},
+            {"deep.mj", "-mstack", "5000:5000"},
+            {"gc_stress.mj", "-heap", "3000:3000"},
+            {"heapy.mj", "-heap", "64:64"}};
+    private static final int timeout = 60; // seconds per run
+
+    private static File work; // object files and outputs
+    private static int runs, failed;
+    private static final Engine engine = new Engine();
+    private static final String[] resultNames = {"completed", "stopped", "rejected"}; // see Execution
+
+    public static void main(String args[]) {
+        File dir = new File(args.length > 0 ? args[0] : "mj_files");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".mj"));
+        if (files == null) {
+            System.out.println("-- cannot open directory " + dir);
+            return;
+        }
+        Arrays.sort(files);
+        try {
+            work = Files.createTempDirectory("mjtest").toFile();
+            try {
+                executeTests(files);
+            } finally {
+                delete(work);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("-- " + e.getMessage());
+        }
+    }
+
+    private static void executeTests(File[] files) throws IOException, InterruptedException {
+        for (File f : files) {
+            testProgram(f);
+        }
+        for (String[] b : bounded) {
+            File f = new File(files[0].getParentFile(), b[0]);
+            if (f.exists()) testProgram(f, Arrays.copyOfRange(b, 1, b.length));
+        }
+        System.out.println("-- " + runs + " runs compared, " + failed + " failed");
+    }
+
+    private static void testProgram(File source, String... options) throws IOException, InterruptedException {
+        String name = source.getName();
+        String base = name.substring(0, name.length() - 3);
+        System.out.println("Test: " + name + (options.length > 0 ? " " + String.join(" ", options) : ""));
+        byte[] image = compile(source, false);
+        if (image == null) {
+            System.out.println("not run: does not compile");
+            System.out.println();
+            return;
+        }
+        File obj = new File(work, base + ".obj");
+        Files.write(obj.toPath(), image);
+        File in = new File(source.getParentFile(), base + ".in");
+        byte[] input = in.exists() ? Files.readAllBytes(in.toPath()) : defaultInput.getBytes("ISO-8859-1");
+        String expected = run(obj, input, join(options, "-classic"));
+        File out = new File(source.getParentFile(), base + ".out");
+        if (out.exists() && options.length == 0) compare("-classic", new String(Files.readAllBytes(out.toPath())), expected);
+
+        for (String[] e : engines) {
+            String what = e.length > 0 ? e[0] : "default";
+            String reason = differs(expected, what);
+            if (reason != null) System.out.println("not compared: " + what + ", " + reason);
+            else compare(what, expected, run(obj, input, join(options, e)));
+        }
+
+        Program p;
+        try {
+            p = engine.load(obj.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        ByteArrayOutputStream eout = new ByteArrayOutputStream();
+        int result = engine.execution(p, new ByteArrayInputStream(input), eout, join(options, "-classic")).run();
+        compare("Engine", expected, eout.toString());
+        String batch = batch(expected, result, base, input);
+        compare("-batch", batch, batchRun(obj, base, input, join(options, "-threads", "2")));
+        compare("-batch -workers", batch, batchRun(obj, base, input, join(options, "-workers", "2", "-shard", "1")));
+
+        File snap = new File(work, base + ".snap");
+        String written = run(obj, input, join(options, "-snapshot", snap.getPath()));
+        if (!snap.exists()) {
+            System.out.println("not compared: -snapshot, the program ends before its first input");
+        } else {
+            compare("-snapshot", expected, written);
+            for (String[] e : resumers) {
+                String what = "-resume" + (e.length > 0 ? " " + e[0] : "");
+                compare(what, expected, run(obj, input, join(join(options, "-resume", snap.getPath()), e)));
+            }
+        }
+
+        File trace = new File(work, base + ".trace");
+        compare("-debug", expected, run(obj, input, join(options, "-debug", "-trace", trace.getPath(), "-first", "1000")));
+
+        File reg = new File(work, base + ".reg.obj");
+        Files.write(reg.toPath(), compile(source, true));
+        String reason = differs(expected, "-reg");
+        if (reason != null) System.out.println("not compared: Compiler -reg, " + reason);
+        else compare("Compiler -reg", expected, run(reg, input, options));
+
+        reason = differs(expected, "Aot");
+        if (options.length > 0) System.out.println("not compared: Aot, it takes no options");
+        else if (reason != null) System.out.println("not compared: Aot, " + reason);
+        else compare("Aot", expected, aot(obj, input));
+        System.out.println();
+    }
+
+    // Why a run with the engine what need not print what -classic printed, or null
+    private static String differs(String expected, String what) {
+        if (expected.contains("expression stack overflow")
+                && (what.equals("-reg") || what.equals("-tree") || what.equals("Aot")))
+            return "no expression stack to overflow";
+        if (expected.contains("method stack overflow") && what.equals("-reg"))
+            return "register frames fill the method stack at another depth";
+        return null;
+    }
+
+    private static void compare(String what, String expected, String actual) {
+        runs++;
+        if (actual.equals(expected)) {
+            System.out.println("ok: " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED: " + what);
+            System.out.println("  expected " + expected.replace("\n", "|"));
+            System.out.println("  got      " + actual.replace("\n", "|"));
+        }
+    }
+
+    // Compiles source to stack code or register code; null if it has errors
+    private static byte[] compile(File source, boolean register) throws IOException {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the messages of the parser
+        try (Reader r = new InputStreamReader(new FileInputStream(source))) {
+            Parser parser = new Parser(r);
+            parser.parse();
+            if (parser.errors > 0) return null;
+            ByteArrayOutputStream obj = new ByteArrayOutputStream();
+            if (register) parser.code.writeRegisterCode(obj); else parser.code.write(obj);
+            return obj.toByteArray();
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    // What java MicroJava.Run obj options prints for input
+    private static String run(File obj, byte[] input, String[] options) throws IOException, InterruptedException {
+        return java(System.getProperty("java.class.path"), "MicroJava.Run", join(new String[] {obj.getPath()}, options), input);
+    }
+
+    // What the class that Aot translates obj into prints for input
+    private static String aot(File obj, byte[] input) throws IOException, InterruptedException {
+        String name = Aot.className(obj.getPath());
+        File c = new File(work, name + ".class");
+        c.delete();
+        Aot.main(new String[] {obj.getPath(), "-d", work.getPath()});
+        if (!c.exists()) return "-- not translated";
+        return java(work.getPath() + File.pathSeparator + System.getProperty("java.class.path"), name, new String[0], input);
+    }
+
+    // What a JVM running main class prints for input, without the "Completion" line
+    private static String java(String classPath, String main, String[] args, byte[] input) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-cp");
+        cmd.add(classPath);
+        cmd.add(main);
+        cmd.addAll(Arrays.asList(args));
+        File out = new File(work, "run.out");
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(out).start();
+        try (OutputStream s = p.getOutputStream()) {
+            s.write(input);
+        } catch (IOException e) {
+            // the program has ended without reading all of its input
+        }
+        if (!p.waitFor(timeout, TimeUnit.SECONDS)) {
+            p.destroyForcibly().waitFor();
+            return "-- timed out after " + timeout + " s";
+        }
+        return new String(Files.readAllBytes(out.toPath())).replaceFirst("\nCompletion took \\d+ ms$", "");
+    }
+
+    // What -batch prints for the inputs of inputs() if each run prints
+    // expected and ends with result
+    private static String batch(String expected, int result, String base, byte[] input) throws IOException {
+        File[] files = inputs(base, input).listFiles();
+        Arrays.sort(files);
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < files.length; i++) {
+            b.append("=== " + i + " " + files[i].getPath() + " " + resultNames[result] + "\n");
+            b.append(expected).append('\n');
+        }
+        return b.toString();
+    }
+
+    // What Run obj -batch writes for the inputs of inputs()
+    private static String batchRun(File obj, String base, byte[] input, String[] options) throws IOException, InterruptedException {
+        File out = new File(work, base + ".batch.out");
+        out.delete();
+        run(obj, new byte[0], join(options, "-batch", inputs(base, input).getPath(), "-out", out.getPath()));
+        return out.exists() ? new String(Files.readAllBytes(out.toPath())) : "";
+    }
+
+    // A directory with input twice
+    private static File inputs(String base, byte[] input) throws IOException {
+        File dir = new File(work, base + ".inputs");
+        if (!dir.exists()) {
+            dir.mkdir();
+            Files.write(new File(dir, "1.in").toPath(), input);
+            Files.write(new File(dir, "2.in").toPath(), input);
+        }
+        return dir;
+    }
+
+    private static String[] join(String[] a, String... b) {
+        String[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File g : files) delete(g);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,400 @@
+/* MicroJava Tracing Interpreter
+ *
+ * The interpreter loop for -debug and -profile. It runs the byte code like
+ * Run.interpret(), counts opcode pairs and writes the trace of the
+ * instructions that pass all filters through a byte buffer into a file.
+ */
+package MicroJava;
+
+import java.io.*;
+
+class Trace {
+
+    private static final int // instruction codes
+            load        =  1,
+            load0       =  2,
+            load1       =  3,
+            load2       =  4,
+            load3       =  5,
+            store       =  6,
+            store0      =  7,
+            store1      =  8,
+            store2      =  9,
+            store3      = 10,
+            getstatic   = 11,
+            putstatic   = 12,
+            getfield    = 13,
+            putfield    = 14,
+            const0      = 15,
+            const1      = 16,
+            const2      = 17,
+            const3      = 18,
+            const4      = 19,
+            const5      = 20,
+            const_m1    = 21,
+            const_      = 22,
+            add         = 23,
+            sub         = 24,
+            mul         = 25,
+            div         = 26,
+            rem         = 27,
+            neg         = 28,
+            shl         = 29,
+            shr         = 30,
+            new_        = 31,
+            newarray    = 32,
+            aload       = 33,
+            astore      = 34,
+            baload      = 35,
+            bastore     = 36,
+            arraylength = 37,
+            pop         = 38,
+            jmp         = 39,
+            jeq         = 40,
+            jne         = 41,
+            jlt         = 42,
+            jle         = 43,
+            jgt         = 44,
+            jge         = 45,
+            call        = 46,
+            return_     = 47,
+            enter       = 48,
+            exit        = 49,
+            read        = 50,
+            print       = 51,
+            bread       = 52,
+            bprint      = 53,
+            trap        = 54;
+
+    // filters
+    int lo = 0, hi = Integer.MAX_VALUE; // range of traced addresses
+    int method = -1;                    // address of the traced method, -1 for all
+    long first = Long.MAX_VALUE;        // number of instructions still to be traced
+
+    private OutputStream out;           // trace file, null if only profiling
+    private byte[] buf = new byte[1 << 16];
+    private int size;                   // used length of buf
+    private int[] callers = new int[64]; // methods of the frames below the current one
+    private int depth;
+
+    // Writes the trace to the file fileName; without a file only -profile is served
+    Trace(String fileName) throws IOException {
+        if (fileName != null) out = new FileOutputStream(fileName);
+    }
+
+    //----- output
+
+    private void flush() {
+        if (out == null) { size = 0; return; }
+        try {
+            out.write(buf, 0, size);
+        } catch (IOException e) {
+            out = null; // stop tracing, the program goes on
+            Run.out.flush();
+            Run.console.println("\n-- error writing trace file: " + e.getMessage());
+        }
+        size = 0;
+    }
+
+    private void put(int ch) {
+        if (size == buf.length) flush();
+        buf[size++] = (byte) ch;
+    }
+
+    private void put(String s) {
+        for (int i = 0; i < s.length(); i++) put(s.charAt(i));
+    }
+
+    // Writes val right-aligned in a field of width chars
+    private void put(int val, int width) {
+        int n = 0;
+        long v = val < 0 ? -(long) val : val;
+        do { n++; v /= 10; } while (v > 0);
+        if (val < 0) n++;
+        for (; width > n; width--) put(' ');
+        if (size + n > buf.length) flush();
+        int i = size + n;
+        v = val < 0 ? -(long) val : val;
+        do { buf[--i] = (byte) ('0' + v % 10); v /= 10; } while (v > 0);
+        if (val < 0) buf[--i] = '-';
+        size += n;
+    }
+
+    private void instr(int adr, int op) {
+        put(adr, 4);
+        put(':'); put(' ');
+        put(op > 0 && op <= trap ? Run.opcode[op] : "???     ");
+        put('|'); put(' ');
+    }
+
+    private void stack() {
+        for (int i = 0; i < Run.esp; i++) {
+            put(Run.stack[i], 0);
+            put(' ');
+        }
+        put('\n');
+    }
+
+    private void close() {
+        if (out == null) return;
+        flush();
+        try {
+            if (out != null) out.close(); // flush() drops out on errors
+        } catch (IOException e) {
+            Run.out.flush();
+            Run.console.println("\n-- error writing trace file: " + e.getMessage());
+        }
+    }
+
+    //----- interpretation
+
+    private void enterMethod(int caller) {
+        if (depth == callers.length) {
+            int[] newCallers = new int[2 * depth];
+            System.arraycopy(callers, 0, newCallers, 0, depth);
+            callers = newCallers;
+        }
+        callers[depth++] = caller;
+    }
+
+    void run() {
+        int op, adr, val, val2, idx, len, i;
+        int cur = Run.startPC;  // method of the current frame
+        boolean traced = false;
+        Run.pc = Run.startPC;
+        try {
+            for (;;) { // terminated by return instruction
+                int at = Run.pc;
+                op = Run.next();
+                traced = out != null && first > 0 && at >= lo && at <= hi && (method < 0 || cur == method);
+                if (traced) {
+                    first--;
+                    instr(at, op);
+                }
+                if (Run.profile) Run.countPair(op);
+                switch (op) {
+
+                    // load/store local variables
+                    case load:
+                        Run.push(Run.local[Run.fp + Run.next()]);
+                        break;
+                    case load0: case load1: case load2: case load3:
+                        Run.push(Run.local[Run.fp + op - load0]);
+                        break;
+                    case store:
+                        Run.local[Run.fp + Run.next()] = Run.pop();
+                        break;
+                    case store0: case store1: case store2: case store3:
+                        Run.local[Run.fp + op - store0] = Run.pop();
+                        break;
+
+                    // load/store global variables
+                    case getstatic:
+                        Run.push(Run.data[Run.next2()]);
+                        break;
+                    case putstatic:
+                        Run.data[Run.next2()] = Run.pop();
+                        break;
+
+                    // load/store object fields
+                    case getfield:
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        Run.push(Run.mem.get(adr + Run.next2()));
+                        break;
+                    case putfield:
+                        val = Run.pop();
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        Run.mem.set(adr + Run.next2(), val);
+                        break;
+
+                    // load constants
+                    case const0: case const1: case const2: case const3: case const4: case const5:
+                        Run.push(op - const0);
+                        break;
+                    case const_m1:
+                        Run.push(-1);
+                        break;
+                    case const_:
+                        Run.push(Run.next4());
+                        break;
+
+                    // arithmetic operations
+                    case add:
+                        Run.push(Run.pop() + Run.pop());
+                        break;
+                    case sub:
+                        Run.push(-Run.pop() + Run.pop());
+                        break;
+                    case mul:
+                        Run.push(Run.pop() * Run.pop());
+                        break;
+                    case div:
+                        val = Run.pop();
+                        if (val == 0) throw new VMError("division by zero");
+                        Run.push(Run.pop() / val);
+                        break;
+                    case rem:
+                        val = Run.pop();
+                        if (val == 0) throw new VMError("division by zero");
+                        Run.push(Run.pop() % val);
+                        break;
+                    case neg:
+                        Run.push(-Run.pop());
+                        break;
+                    case shl:
+                        val = Run.pop();
+                        Run.push(Run.pop() << val);
+                        break;
+                    case shr:
+                        val = Run.pop();
+                        Run.push(Run.pop() >> val);
+                        break;
+
+                    // object creation
+                    case new_:
+                        Run.push(Gc.newObject(Run.next2(), at));
+                        break;
+                    case newarray:
+                        val = Run.next();
+                        Run.push(Gc.newArray(Run.pop(), val, at));
+                        break;
+
+                    // array access
+                    case aload:
+                        idx = Run.pop();
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.mem.get(adr)) throw new VMError("index out of bounds");
+                        Run.push(Run.mem.get(adr+1+idx));
+                        break;
+                    case astore:
+                        val = Run.pop();
+                        idx = Run.pop();
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.mem.get(adr)) throw new VMError("index out of bounds");
+                        if (Run.legacy && Gc.isChars(adr)) Run.chars[Run.mem.get(adr + 1) + idx] = (byte)val;
+                        else Run.mem.set(adr+1+idx, val);
+                        break;
+                    case baload:
+                        idx = Run.pop();
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.mem.get(adr)) throw new VMError("index out of bounds");
+                        Run.push(Run.chars[Run.mem.get(adr + 1) + idx]);
+                        break;
+                    case bastore:
+                        val = Run.pop();
+                        idx = Run.pop();
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        if (idx < 0 || idx >= Run.mem.get(adr)) throw new VMError("index out of bounds");
+                        Run.chars[Run.mem.get(adr + 1) + idx] = (byte)val;
+                        break;
+                    case arraylength:
+                        adr = Run.pop();
+                        if (adr == 0) throw new VMError("null reference used");
+                        Run.push(Run.mem.get(adr));
+                        break;
+
+                    // stack manipulation
+                    case pop:
+                        Run.pop();
+                        break;
+
+                    // jumps
+                    case jmp:
+                        Run.pc = Run.next2();
+                        break;
+                    case jeq: case jne: case jlt: case jle: case jgt: case jge:
+                        adr = Run.next2();
+                        val2 = Run.pop(); val = Run.pop();
+                        boolean cond = false;
+                        switch (op) {
+                            case jeq: cond = val == val2; break;
+                            case jne: cond = val != val2; break;
+                            case jlt: cond = val < val2;  break;
+                            case jle: cond = val <= val2; break;
+                            case jgt: cond = val > val2;  break;
+                            case jge: cond = val >= val2; break;
+                        }
+                        if (cond) Run.pc = adr;
+                        break;
+
+                    // method calls
+                    case call:
+                        adr = Run.next2();
+                        Run.PUSH(Run.pc);
+                        Run.pc = adr;
+                        enterMethod(cur);
+                        cur = adr;
+                        break;
+                    case return_:
+                        if (Run.sp == 0) {
+                            if (traced) stack();
+                            return;
+                        }
+                        Run.pc = Run.POP();
+                        if (depth > 0) cur = callers[--depth];
+                        break;
+                    case enter:
+                        int psize = Run.next();
+                        int lsize = Run.next();
+                        Run.PUSH(Run.fp);
+                        Run.fp = Run.sp;
+                        for (i = 0; i < lsize; i++) Run.PUSH(0);
+                        for (i = psize - 1; i >= 0; i--) Run.local[Run.fp + i] = Run.pop();
+                        break;
+                    case exit:
+                        Run.sp = Run.fp;
+                        Run.fp = Run.POP();
+                        break;
+
+                    // IO
+                    case read:
+                        try {
+                            val = Run.readInt();
+                            Run.push(val);
+                        } catch (IOException ex) {
+                            throw new VMError("end of input");
+                        }
+                        break;
+                    case print:
+                        len = Run.pop();
+                        val = Run.pop();
+                        Run.print(val, len);
+                        break;
+                    case bread:
+                        try {
+                            Run.push(Run.readByte());
+                        } catch (IOException ex) {
+                            throw new VMError("end of input");
+                        }
+                        break;
+                    case bprint:
+                        len = Run.pop();
+                        val = Run.pop();
+                        Run.bprint(val, len);
+                        break;
+                    case trap:
+                        throw new VMError("trap(" + Run.next() + ")");
+                    default:
+                        throw new VMError("wrong opcode " + op);
+                }
+                if (traced) stack();
+            }
+        } catch (VMError e) {
+            if (traced) {
+                put('\n');
+                put("-- exception: ");
+                put(e.getMessage());
+                put('\n');
+            }
+            Run.exception(" at address " + (Run.pc-1) + ": " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/* MicroJava Tree Interpreter
+ *
+ * Runs each method as basic blocks of Node trees, built from its stack code
+ * when it is first called. Run.sp advances as the interpreter's frames
+ * would, so the method stack overflows at the same depth; Run runs the
+ * nodes on a large Java stack (see Run.onLargeStack).
+ */
+package MicroJava;
+
+class Tree {
+
+    private static final int // instruction codes of the predecoded stream
+            load        =  1,
+            store       =  6,
+            getstatic   = 11,
+            putstatic   = 12,
+            getfield    = 13,
+            putfield    = 14,
+            const_      = 22,
+            add         = 23,
+            sub         = 24,
+            mul         = 25,
+            div         = 26,
+            rem         = 27,
+            neg         = 28,
+            shl         = 29,
+            shr         = 30,
+            new_        = 31,
+            newarray    = 32,
+            aload       = 33,
+            astore      = 34,
+            baload      = 35,
+            bastore     = 36,
+            arraylength = 37,
+            pop         = 38,
+            jmp         = 39,
+            jeq         = 40,
+            jge         = 45,
+            call        = 46,
+            return_     = 47,
+            enter       = 48,
+            exit        = 49,
+            read        = 50,
+            print       = 51,
+            bread       = 52,
+            bprint      = 53,
+            trap        = 54;
+
+    private Predecoder p;
+    private StackFlow flow;
+    private Node.Method[] methods; // methods[t]: tree of the method at stream index t, or null
+    private int startIdx;          // stream index of main()
+
+    // state of the method being built
+    private int from, nVars;
+    private int[] block;           // block[i - from]: number of the block starting at i, or -1
+    private Node[] stack;          // symbolic expression stack
+    private int top;
+    private Node[] stmts;          // statements of the current block
+    private int nStmts;
+
+    // p is the code predecoded without superinstructions. All methods are
+    // checked here, so that building them later cannot fail.
+    Tree(Predecoder p, int startPC) throws FormatException {
+        this.p = p;
+        flow = new StackFlow(p, startPC);
+        for (int i = 0; i < p.size; i = p.next(i)) {
+            if (flow.start[i]) flow.analyze(i);
+        }
+        methods = new Node.Method[p.size];
+        startIdx = p.index[startPC];
+    }
+
+    // Runs main()
+    void run() {
+        Gc.localTop = 0; // all frames are those of the nodes
+        try {
+            Node.Method main = method(startIdx);
+            int[] f = new int[main.frameSize];
+            Gc.holdFrame(f);
+            main.eval(f);
+        } catch (VMError e) {
+            Run.exception(" at address " + (Run.pc-1) + ": " + e.getMessage());
+        } finally {
+            Gc.dropRoots();
+        }
+    }
+
+    // Returns the tree of the method at stream index t
+    Node.Method method(int t) throws VMError {
+        if (methods[t] == null) {
+            try {
+                methods[t] = build(t);
+            } catch (FormatException e) {
+                throw new VMError(e.getMessage()); // not reached, the constructor checked all methods
+            }
+        }
+        return methods[t];
+    }
+
+    //----- construction
+
+    private Node.Method build(int start) throws FormatException {
+        from = start;
+        nVars = p.ops[from + 2];
+        int to = flow.end[from];
+        int max = flow.analyze(from);
+        int[] depth = flow.depth;
+        Node.Method m = new Node.Method(nVars, max);
+        m.adr = p.addr[from];
+        // basic blocks start at jump targets and after jumps
+        block = new int[to - from];
+        int nBlocks = 0;
+        boolean startNext = true;
+        for (int i = p.next(from); i < to; i = p.next(i)) {
+            block[i - from] = -1;
+            if (depth[i] < 0) {
+                startNext = true;
+                continue;
+            }
+            if (startNext || flow.leader[i]) block[i - from] = nBlocks++;
+            int op = p.ops[i];
+            startNext = op >= jmp && op <= jge || op == return_ || op == trap || op == 0;
+        }
+        m.blocks = new Node.Block[nBlocks];
+        stack = new Node[max + 1];
+        stmts = new Node[to - from + max];
+        int cur = -1; // number of the current block, -1 if none is open
+        for (int i = p.next(from); i < to; i = p.next(i)) {
+            if (depth[i] < 0) continue; // unreachable
+            if (block[i - from] >= 0) {
+                if (cur >= 0) { // fall through into the next block
+                    materialize();
+                    m.blocks[cur] = endBlock(new Node.Goto(block[i - from]), i);
+                }
+                cur = block[i - from];
+                nStmts = 0;
+                top = depth[i];
+                for (int k = 0; k < top; k++) stack[k] = new Node.Local(nVars + k);
+            }
+            Node end = instruction(i, m);
+            if (end != null) {
+                m.blocks[cur] = endBlock(end, i);
+                cur = -1;
+            }
+        }
+        return m;
+    }
+
+    private Node.Block endBlock(Node end, int i) {
+        end.adr = p.addr[i];
+        Node[] s = new Node[nStmts];
+        System.arraycopy(stmts, 0, s, 0, nStmts);
+        return new Node.Block(s, end);
+    }
+
+    private Node push(Node n, int i) {
+        n.adr = p.addr[i];
+        stack[top++] = n;
+        return n;
+    }
+
+    // Keeps the values on the expression stack in temporaries, in the order
+    // in which they were computed
+    private void materialize() {
+        for (int k = 0; k < top; k++) {
+            Node n = stack[k];
+            if (n instanceof Node.Local && ((Node.Local) n).n == nVars + k) continue;
+            stmts[nStmts++] = new Node.Store(nVars + k, n);
+            stack[k] = new Node.Local(nVars + k);
+        }
+    }
+
+    private void statement(Node n, int i) {
+        if (top > 0) materialize(); // values below must be computed first
+        n.adr = p.addr[i];
+        stmts[nStmts++] = n;
+    }
+
+    // Translates instruction i. Returns the node that ends the block if i
+    // is a jump, return or trap, otherwise null.
+    private Node instruction(int i, Node.Method m) throws FormatException {
+        int op = p.ops[i];
+        int x = p.ops[i + 1];
+        Node a, b, c;
+        switch (op) {
+            case load:
+                push(new Node.Local(x), i);
+                break;
+            case store:
+                a = stack[--top];
+                statement(new Node.Store(x, a), i);
+                break;
+            case getstatic:
+                push(new Node.Getstatic(x), i);
+                break;
+            case putstatic:
+                a = stack[--top];
+                statement(new Node.Putstatic(x, a), i);
+                break;
+            case getfield:
+                a = stack[--top];
+                push(new Node.Getfield(a, x), i);
+                break;
+            case putfield:
+                b = stack[--top]; a = stack[--top];
+                statement(new Node.Putfield(a, b, x), i);
+                break;
+            case const_:
+                push(new Node.Const(x), i);
+                break;
+            case add: case sub: case mul: case div: case rem: case shl: case shr:
+                b = stack[--top]; a = stack[--top];
+                push(new Node.GenericArith(op, a, b), i);
+                break;
+            case neg:
+                a = stack[--top];
+                push(new Node.Neg(a), i);
+                break;
+            case new_:
+                push(new Node.New(x), i);
+                break;
+            case newarray:
+                a = stack[--top];
+                push(new Node.NewArray(a, x), i);
+                break;
+            case aload:
+                b = stack[--top]; a = stack[--top];
+                push(new Node.GenericALoad(a, b), i);
+                break;
+            case baload:
+                b = stack[--top]; a = stack[--top];
+                push(new Node.BALoad(a, b), i);
+                break;
+            case astore:
+                c = stack[--top]; b = stack[--top]; a = stack[--top];
+                statement(new Node.AStore(a, b, c), i);
+                break;
+            case bastore:
+                c = stack[--top]; b = stack[--top]; a = stack[--top];
+                statement(new Node.BAStore(a, b, c), i);
+                break;
+            case arraylength:
+                a = stack[--top];
+                push(new Node.ArrayLength(a), i);
+                break;
+            case pop:
+                a = stack[--top];
+                statement(new Node.Eval(a), i);
+                break;
+            case call:
+                Node[] args = new Node[p.ops[x + 1]];
+                for (int k = args.length - 1; k >= 0; k--) args[k] = stack[--top];
+                a = new Node.GenericCall(this, x, args);
+                if (flow.function[x]) push(a, i);
+                else {
+                    a.adr = p.addr[i];
+                    statement(new Node.Eval(a), i);
+                }
+                break;
+            case read:
+                push(new Node.Read(), i);
+                break;
+            case bread:
+                push(new Node.BRead(), i);
+                break;
+            case print:
+                b = stack[--top]; a = stack[--top];
+                statement(new Node.Print(a, b), i);
+                break;
+            case bprint:
+                b = stack[--top]; a = stack[--top];
+                statement(new Node.BPrint(a, b), i);
+                break;
+            case exit:
+                break; // the frame is removed by Node.Method
+            case jmp:
+                materialize();
+                return new Node.Goto(block[x - from]);
+            case return_:
+                a = flow.function[from] ? stack[--top] : null;
+                return new Node.Return(a, m.result);
+            case trap:
+                materialize();
+                return new Node.Trap(x);
+            case 0:
+                materialize();
+                return new Node.Wrong(x);
+            default:
+                if (op >= jeq && op <= jge) {
+                    b = stack[--top]; a = stack[--top];
+                    materialize();
+                    return new Node.GenericCond(op, a, b, block[x - from], block[p.next(i) - from]);
+                }
+                throw new FormatException("cannot translate instruction at " + p.addr[i]);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+/* MicroJava Verifier
+ *
+ * Checks at load time that the stack code of every method is well formed
+ * (see StackFlow) and computes what a call of each method needs on the
+ * expression and the method stack, so that Run.interpretUnchecked() checks
+ * once per call instead of at every instruction.
+ */
+package MicroJava;
+
+class Verifier {
+
+    private static final int // instruction codes of the predecoded stream
+            getstatic   = 11,
+            putstatic   = 12;
+
+    int[] stackRoom;  // stackRoom[m]: expression stack words a call of the method at stream index m adds
+    int[] frameSize;  // frameSize[m]: method stack words a call of the method at m needs
+    int methods;      // number of methods
+    int maxStack;     // largest stack depth of a single method
+
+    // Verifies the stream of p, which must not be fused yet
+    Verifier(Predecoder p, int startPC, int dataSize) throws FormatException {
+        StackFlow flow = new StackFlow(p, startPC);
+        if (p.ops[p.index[startPC] + 1] != 0) throw new FormatException("main() with parameters");
+        stackRoom = new int[p.size];
+        frameSize = new int[p.size];
+        for (int m = 0; m < p.size; m = p.next(m)) {
+            if (!flow.start[m]) continue;
+            int max = flow.analyze(m);
+            for (int i = m; i < flow.end[m]; i = p.next(i)) {
+                int op = p.ops[i];
+                if (flow.depth[i] >= 0 && (op == getstatic || op == putstatic)
+                        && (p.ops[i + 1] < 0 || p.ops[i + 1] >= dataSize))
+                    throw new FormatException("illegal global variable at " + p.addr[i]);
+            }
+            stackRoom[m] = max - p.ops[m + 1];
+            frameSize[m] = 2 + p.ops[m + 2];
+            methods++;
+            if (max > maxStack) maxStack = max;
+        }
+    }
+}
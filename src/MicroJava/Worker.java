@@ -0,0 +1,65 @@
+/* MicroJava Batch Worker
+ *
+ * A JVM of its own that runs shards of a batch for a Coordinator, which it
+ * talks to through its standard input and output. Output files are written
+ * under a name of the worker's own and then renamed, so two workers that run
+ * the same shard cannot mix their outputs.
+ */
+package MicroJava;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+final class Worker {
+
+    // Standard input brings the object file, the options of Run and the output
+    // directory (empty for a combined output), then shards: an id, the number
+    // of inputs and for each input its index and file name, until the id -1.
+    // For each input the worker answers with the shard id, the index, the
+    // result and the output of the run with its header line (see Batch);
+    // after the shard it sends its id and done.
+    public static void main(String[] arg) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err); // messages must not get between the answers
+        String fileName = in.readUTF();
+        String[] opts = new String[in.readInt()];
+        for (int i = 0; i < opts.length; i++) opts[i] = in.readUTF();
+        String outDir = in.readUTF();
+        Engine engine = new Engine();
+        Program p = engine.load(fileName);
+        String tmp = "." + ProcessHandle.current().pid() + ".tmp";
+        int shard;
+        while ((shard = in.readInt()) >= 0) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int index = in.readInt();
+                File input = new File(in.readUTF());
+                byte[] text;
+                int result;
+                if (outDir.isEmpty()) {
+                    Batch.Outcome r = Batch.runToBuffer(engine, p, index, input, opts);
+                    text = r.text;
+                    result = r.result;
+                } else {
+                    File target = new File(outDir, input.getName() + ".out");
+                    File part = new File(outDir, input.getName() + tmp);
+                    result = Batch.runToFile(engine, p, input, part, opts);
+                    if (part.exists())
+                        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    text = new byte[0];
+                }
+                out.writeInt(shard);
+                out.writeInt(index);
+                out.writeByte(result);
+                out.writeInt(text.length);
+                out.write(text);
+                out.flush(); // what is sent survives a crash of the worker
+            }
+            out.writeInt(shard);
+            out.writeInt(Coordinator.done);
+            out.flush();
+        }
+    }
+}